@@ -0,0 +1,90 @@
+package com.avalon.domain;
+
+import com.avalon.proto.game.GameStatusUpdate;
+import com.avalon.util.EncodedMessage;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost to the game of sending one update to its subscribers, kept by a dispatcher or reading the
+ * spectator ring. Both drain on a background thread, so only the writer's side is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BroadcastBenchmark {
+  @Param({"5", "500", "5000"})
+  int subscribers;
+
+  private ExecutorService drainExecutor;
+  private MessageDispatcher<GameStatusUpdate> messageDispatcher;
+  private BroadcastRing<GameStatusUpdate> broadcastRing;
+  private volatile EncodedMessage<GameStatusUpdate> last;
+  private int index;
+
+  @Setup
+  public void setUp() {
+    drainExecutor =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "bench-drain");
+              thread.setDaemon(true);
+              return thread;
+            });
+    DispatcherFactory dispatcherFactory = Fixtures.dispatcherFactory(drainExecutor);
+    messageDispatcher = dispatcherFactory.create(Runnable::run, (viewer, ignored) -> latest());
+    broadcastRing =
+        dispatcherFactory.createRing(
+            Runnable::run, GameStatusUpdate::getIndex, ignored -> latest());
+    for (int i = 0; i < subscribers; i++) {
+      messageDispatcher.add(new Fixtures.DiscardingObserver<>(), Collections.emptyList(), null);
+      broadcastRing.add(new Fixtures.DiscardingObserver<>(), 0);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    drainExecutor.shutdownNow();
+  }
+
+  @Benchmark
+  public void dispatch() {
+    messageDispatcher.dispatch(next());
+  }
+
+  @Benchmark
+  public void publish() {
+    broadcastRing.publish(next());
+  }
+
+  /** A subscriber that fell behind skips to the latest update, as a resync from history would. */
+  private List<EncodedMessage<GameStatusUpdate>> latest() {
+    EncodedMessage<GameStatusUpdate> latest = last;
+    return latest == null ? Collections.emptyList() : Collections.singletonList(latest);
+  }
+
+  private EncodedMessage<GameStatusUpdate> next() {
+    last =
+        EncodedMessage.of(
+            GameStatusUpdate.newBuilder()
+                .setIndex(++index)
+                .setVotedForPlayer(
+                    GameStatusUpdate.VotedForPlayer.newBuilder()
+                        .setFromWhom(index % 10)
+                        .setVoted(true))
+                .build());
+    return last;
+  }
+}
@@ -0,0 +1,52 @@
+package com.avalon.domain;
+
+import com.avalon.proto.game.GameStatusUpdate;
+import com.avalon.util.EncodedMessage;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Fan-out of one update to every subscriber of a game, including the single serialization and the
+ * per-subscriber queueing and draining. Draining happens on the calling thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+  @Param({"1", "10", "100", "1000"})
+  int subscribers;
+
+  private MessageDispatcher<GameStatusUpdate> messageDispatcher;
+  private int index;
+
+  @Setup
+  public void setUp() {
+    messageDispatcher =
+        Fixtures.dispatcherFactory()
+            .create(Runnable::run, (viewer, ignored) -> Collections.emptyList());
+    for (int i = 0; i < subscribers; i++) {
+      messageDispatcher.add(new Fixtures.DiscardingObserver<>(), Collections.emptyList(), null);
+    }
+  }
+
+  @Benchmark
+  public void dispatch() {
+    messageDispatcher.dispatch(
+        EncodedMessage.of(
+            GameStatusUpdate.newBuilder()
+                .setIndex(++index)
+                .setVotedForPlayer(
+                    GameStatusUpdate.VotedForPlayer.newBuilder()
+                        .setFromWhom(index % 10)
+                        .setVoted(true))
+                .build()));
+  }
+}
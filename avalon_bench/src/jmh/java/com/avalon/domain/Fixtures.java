@@ -0,0 +1,85 @@
+package com.avalon.domain;
+
+import com.avalon.metrics.Metrics;
+import com.avalon.proto.game.Character;
+import com.avalon.proto.game.Room;
+import com.avalon.util.EncodedMessage;
+import com.avalon.util.TimerWheel;
+import com.google.protobuf.Message;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.util.concurrent.Executor;
+
+/** Shared setup of the benchmarks, mirroring what {@code AppModule} provides. */
+final class Fixtures {
+  static final TimerWheel TIMER_WHEEL = new TimerWheel("bench-timer-wheel", 10, 512);
+
+  private Fixtures() {}
+
+  /** A factory whose dispatchers drain on the dispatching thread. */
+  static DispatcherFactory dispatcherFactory() {
+    return dispatcherFactory(Runnable::run);
+  }
+
+  static DispatcherFactory dispatcherFactory(Executor executor) {
+    return new DispatcherFactory(
+        new MessageDispatcher.Options(
+            256, MessageDispatcher.OverflowPolicy.COALESCE_AND_RESYNC, 30_000),
+        executor,
+        TIMER_WHEEL,
+        5_000,
+        new Metrics());
+  }
+
+  static Room room(int players) {
+    Room.Builder room = Room.newBuilder().setRoomName("bench").setMaximumRound(5);
+    for (int i = 0; i < players; i++) {
+      room.addCharacter(i % 3 == 0 ? Character.MORGANA : Character.ARTHUR_SERVANT);
+    }
+    return room.build();
+  }
+
+  /** A subscriber that is always ready and only forces the message to be serialized. */
+  static class DiscardingObserver<T extends Message>
+      extends ServerCallStreamObserver<EncodedMessage<T>> {
+    long bytes;
+
+    @Override
+    public void onNext(EncodedMessage<T> value) {
+      bytes += value.bytes().length;
+    }
+
+    @Override
+    public void onError(Throwable t) {}
+
+    @Override
+    public void onCompleted() {}
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setOnReadyHandler(Runnable onReadyHandler) {}
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public void setOnCancelHandler(Runnable onCancelHandler) {}
+
+    @Override
+    public void setCompression(String compression) {}
+
+    @Override
+    public void disableAutoInboundFlowControl() {}
+
+    @Override
+    public void request(int count) {}
+
+    @Override
+    public void setMessageCompression(boolean enable) {}
+  }
+}
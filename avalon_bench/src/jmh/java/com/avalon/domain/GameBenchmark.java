@@ -0,0 +1,126 @@
+package com.avalon.domain;
+
+import com.avalon.proto.game.Proposal;
+import com.avalon.proto.game.Room;
+import com.avalon.proto.game.VoteForPlayerRequest;
+import com.avalon.proto.store.GameCreated;
+import com.avalon.store.DiscardingEventStore;
+import com.avalon.store.EventStore;
+import com.avalon.util.ResponseException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * State transitions of a single game, without subscribers: a mission that passes on the first
+ * proposal, and a round whose proposal is rejected. With {@code voteWindowMillis} at 0 the votes of
+ * a round, cast as one task on the game's executor, are dispatched as a single update.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GameBenchmark {
+  @Param({"5", "10"})
+  int players;
+
+  @Param({"-1", "0"})
+  long voteWindowMillis;
+
+  private final EventStore eventStore = new DiscardingEventStore();
+  private AvalonGame.Options options;
+  private DispatcherFactory dispatcherFactory;
+  private Room room;
+  private AvalonGame game;
+  private int gameId;
+  private int leader;
+  private int round;
+  private Proposal[] proposals;
+
+  @Setup
+  public void setUp() {
+    options = new AvalonGame.Options(voteWindowMillis, 0, VoteForPlayerRequest.Voting.AGREE, true);
+    dispatcherFactory = Fixtures.dispatcherFactory();
+    room = Fixtures.room(players);
+    proposals = new Proposal[players];
+    for (int i = 0; i < players; i++) {
+      proposals[i] = Proposal.newBuilder().setFromWhom(i).addPlayers(i).addPlayers(0).build();
+    }
+    newGame();
+  }
+
+  @Benchmark
+  public AvalonGame passedMission() throws ResponseException {
+    game.propose(proposals[leader]);
+    vote(VoteForPlayerRequest.Voting.AGREE);
+    game.voteForTask(leader, true);
+    if (leader != 0) {
+      game.voteForTask(0, true);
+    }
+
+    nextLeader(true);
+    return game;
+  }
+
+  @Benchmark
+  public AvalonGame rejectedRound() throws ResponseException {
+    game.propose(proposals[leader]);
+    vote(VoteForPlayerRequest.Voting.DISAGREE);
+
+    nextLeader(++round == room.getMaximumRound());
+    return game;
+  }
+
+  private void vote(VoteForPlayerRequest.Voting voting) {
+    game.executor.execute(
+        () -> {
+          try {
+            for (int i = 0; i < players; i++) {
+              game.voteForPlayer(i, voting);
+            }
+          } catch (ResponseException e) {
+            throw new IllegalStateException(e);
+          }
+        });
+  }
+
+  /** Follows the leader rotation, starting a new game once this one is decided. */
+  private void nextLeader(boolean missionEnded) {
+    leader = (leader + 1) % players;
+    if (missionEnded) {
+      round = 0;
+      game.maybeSnapshot();
+    }
+    if (game.finished) {
+      dispatcherFactory.release(game.messageDispatcher);
+      dispatcherFactory.release(game.spectatorRing);
+      newGame();
+    }
+  }
+
+  /** Starts a game with seat 0 leading, as {@link AvalonGame#restore} does not pick a leader. */
+  private void newGame() {
+    GameCreated gameCreated =
+        GameCreated.newBuilder()
+            .setGameId(++gameId)
+            .setRoomName(room.getRoomName())
+            .addAllCharacter(room.getCharacterList())
+            .build();
+    game =
+        AvalonGame.restore(
+            gameCreated,
+            room,
+            options,
+            Runnable::run,
+            Fixtures.TIMER_WHEEL,
+            dispatcherFactory,
+            eventStore);
+    leader = 0;
+    round = 0;
+  }
+}
@@ -0,0 +1,68 @@
+package com.avalon.domain;
+
+import com.avalon.proto.game.GameStatusUpdate;
+import com.avalon.proto.game.Proposal;
+import com.avalon.util.EncodedMessage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Building and serializing the updates a game sends, small and large. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GameStatusUpdateBenchmark {
+  private GameStatusUpdate votedResult;
+  private GameStatusUpdate snapshot;
+  private int index;
+
+  @Setup
+  public void setUp() {
+    votedResult = buildVotedResult();
+    GameStatusUpdate.Snapshot.Builder state =
+        GameStatusUpdate.Snapshot.newBuilder().setMission(3).setRound(2).setLeader(4);
+    for (int i = 0; i < 10; i++) {
+      state.addVotedForPlayer(i).addTeam(i).addMissionResult(i % 2 == 0);
+    }
+    snapshot = GameStatusUpdate.newBuilder().setIndex(100).setSnapshot(state).build();
+  }
+
+  @Benchmark
+  public GameStatusUpdate buildProposal() {
+    return GameStatusUpdate.newBuilder()
+        .setIndex(++index)
+        .setProposal(Proposal.newBuilder().setFromWhom(1).addPlayers(1).addPlayers(3).addPlayers(5))
+        .build();
+  }
+
+  @Benchmark
+  public GameStatusUpdate buildVotedResult() {
+    GameStatusUpdate.VotedResult.Builder votedResult =
+        GameStatusUpdate.VotedResult.newBuilder().setTotallyAgreed(true);
+    for (int i = 0; i < 10; i += 2) {
+      votedResult.addAgreed(i);
+    }
+    return GameStatusUpdate.newBuilder().setIndex(++index).setVotedResult(votedResult).build();
+  }
+
+  @Benchmark
+  public byte[] serializeVotedResult() {
+    return votedResult.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] serializeSnapshot() {
+    return snapshot.toByteArray();
+  }
+
+  /** What a dispatch pays once for all subscribers. */
+  @Benchmark
+  public byte[] encodeVotedResult() {
+    return EncodedMessage.of(votedResult).bytes();
+  }
+}
@@ -0,0 +1,70 @@
+package com.avalon.domain;
+
+import com.avalon.auth.TokenSigner;
+import com.avalon.cluster.ClusterClient;
+import com.avalon.cluster.NodeAuth;
+import com.avalon.cluster.ShardMap;
+import com.avalon.proto.base.Auth;
+import com.avalon.proto.service.User;
+import com.avalon.store.DiscardingEventStore;
+import com.avalon.util.ResponseException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * {@link UserManager#validate} from many threads at once, as every RPC calls it. {@code manyUsers}
+ * spreads the calls over many users while {@code oneUser} has all threads hit the same one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(Threads.MAX)
+public class ValidateBenchmark {
+  private static final int USERS = 1024;
+
+  private UserManager userManager;
+  private final Auth[] auths = new Auth[USERS];
+
+  @State(Scope.Thread)
+  public static class Caller {
+    int next;
+  }
+
+  @Setup
+  public void setUp() throws ResponseException {
+    TokenSigner tokenSigner =
+        new TokenSigner(
+            new TokenSigner.Options(
+                new byte[32], TimeUnit.DAYS.toMillis(1), TimeUnit.DAYS.toMillis(7)));
+    ShardMap shardMap =
+        new ShardMap(new ShardMap.Options(Collections.singletonList("localhost:8980"), 0));
+    userManager =
+        new UserManager(
+            new DiscardingEventStore(),
+            tokenSigner,
+            shardMap,
+            new ClusterClient(
+                new ClusterClient.Options(1), shardMap, new NodeAuth(shardMap, tokenSigner)));
+    for (int i = 0; i < USERS; i++) {
+      auths[i] = userManager.createUser(User.newBuilder().setUsername("user" + i).build());
+    }
+  }
+
+  @Benchmark
+  public UserManager.UserInfo manyUsers(Caller caller) throws ResponseException {
+    return userManager.validate(auths[caller.next++ & (USERS - 1)]);
+  }
+
+  @Benchmark
+  public UserManager.UserInfo oneUser() throws ResponseException {
+    return userManager.validate(auths[0]);
+  }
+}
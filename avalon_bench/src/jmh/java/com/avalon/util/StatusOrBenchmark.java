@@ -0,0 +1,44 @@
+package com.avalon.util;
+
+import com.avalon.proto.base.ResponseError;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** The {@code transform}/{@code to} chain every unary service method wraps its call in. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StatusOrBenchmark {
+  private int calls;
+
+  @Benchmark
+  public ResponseError success() {
+    return StatusOr.success(null)
+        .transform(ignored -> ++calls)
+        .to(ignored -> ResponseError.newBuilder().build(), error -> error);
+  }
+
+  @Benchmark
+  public ResponseError failure() {
+    return StatusOr.success(null)
+        .transform(
+            ignored -> {
+              throw new ResponseException("Failed to auth");
+            })
+        .to(ignored -> ResponseError.newBuilder().build(), error -> error);
+  }
+
+  @Benchmark
+  public ResponseError chained() {
+    return StatusOr.success(calls)
+        .transform(value -> value + 1)
+        .transformStatus(value -> StatusOr.success(value * 2))
+        .transform(value -> calls = value)
+        .to(ignored -> ResponseError.newBuilder().build(), error -> error);
+  }
+}
@@ -0,0 +1,68 @@
+package com.avalon.util;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Rearming a turn timeout, that is cancelling a timer and scheduling the next, with as many other
+ * timers pending as games on a busy server, against a {@link ScheduledThreadPoolExecutor} whose
+ * queue is a heap.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimerWheelBenchmark {
+  private static final Runnable NOTHING = () -> {};
+
+  @Param({"0", "100000"})
+  int pending;
+
+  private TimerWheel timerWheel;
+  private TimerWheel.Timeout timeout;
+  private ScheduledExecutorService scheduler;
+  private ScheduledFuture<?> future;
+
+  @Setup
+  public void setUp() {
+    timerWheel = new TimerWheel("bench-timer-wheel", 10, 512);
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    executor.setRemoveOnCancelPolicy(true);
+    scheduler = executor;
+    for (int i = 0; i < pending; i++) {
+      timerWheel.schedule(1 + i % 120, TimeUnit.MINUTES, Runnable::run, NOTHING);
+      scheduler.schedule(NOTHING, 1 + i % 120, TimeUnit.MINUTES);
+    }
+    timeout = timerWheel.schedule(2, TimeUnit.MINUTES, Runnable::run, NOTHING);
+    future = scheduler.schedule(NOTHING, 2, TimeUnit.MINUTES);
+  }
+
+  @TearDown
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  @Benchmark
+  public TimerWheel.Timeout timerWheel() {
+    timeout.cancel();
+    timeout = timerWheel.schedule(2, TimeUnit.MINUTES, Runnable::run, NOTHING);
+    return timeout;
+  }
+
+  @Benchmark
+  public ScheduledFuture<?> scheduledExecutor() {
+    future.cancel(false);
+    future = scheduler.schedule(NOTHING, 2, TimeUnit.MINUTES);
+    return future;
+  }
+}
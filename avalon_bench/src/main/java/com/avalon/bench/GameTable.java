@@ -0,0 +1,506 @@
+package com.avalon.bench;
+
+import com.avalon.proto.base.Auth;
+import com.avalon.proto.base.ResponseError;
+import com.avalon.proto.game.AvalonGameServiceGrpc;
+import com.avalon.proto.game.Character;
+import com.avalon.proto.game.GameStatusUpdate;
+import com.avalon.proto.game.LadyTestRequest;
+import com.avalon.proto.game.PlayRequest;
+import com.avalon.proto.game.PlayResponse;
+import com.avalon.proto.game.PollRequest;
+import com.avalon.proto.game.Proposal;
+import com.avalon.proto.game.ProposeRequest;
+import com.avalon.proto.game.Room;
+import com.avalon.proto.game.VoteForPlayerRequest;
+import com.avalon.proto.game.VoteForTaskRequest;
+import com.avalon.proto.service.AvalonRoomServiceGrpc;
+import com.avalon.proto.service.ChangeSeatRequest;
+import com.avalon.proto.service.CreateRoomRequest;
+import com.avalon.proto.service.CreateUserRequest;
+import com.avalon.proto.service.JoinRoomRequest;
+import com.avalon.proto.service.RoomUpdate;
+import com.avalon.proto.service.StartGameRequest;
+import com.avalon.proto.service.User;
+import io.grpc.Channel;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * One game played by bots through the public RPCs, from creating their users to the deciding
+ * mission. Bots agree to most proposals and pass most missions, so games take a few rounds.
+ *
+ * <p>Game actions are either separate unary calls or, with {@code play} set, requests on one Play
+ * stream per bot that also carries its updates.
+ */
+final class GameTable {
+  private static final Character[] CHARACTERS = {
+    Character.MERLIN,
+    Character.ASSASSIN,
+    Character.PERCIVAL,
+    Character.MORGANA,
+    Character.ARTHUR_SERVANT,
+    Character.MORDRED,
+    Character.ARTHUR_SERVANT,
+    Character.ARTHUR_SERVANT,
+    Character.OBERON,
+    Character.ARTHUR_SERVANT,
+  };
+
+  interface Listener {
+    void onFinished(GameTable gameTable, boolean success);
+  }
+
+  private final String name;
+  private final AvalonRoomServiceGrpc.AvalonRoomServiceStub roomStub;
+  private final AvalonGameServiceGrpc.AvalonGameServiceStub gameStub;
+  private final RpcStats rpcStats;
+  private final boolean play;
+  private final Listener listener;
+  private final Bot[] bots;
+
+  private final AtomicInteger usersCreated = new AtomicInteger();
+  private final AtomicInteger seated = new AtomicInteger();
+  private final AtomicInteger botsDone = new AtomicInteger();
+  private final AtomicBoolean finished = new AtomicBoolean();
+  /** When the last action of the game was sent, which stream lag is measured from. */
+  private volatile long lastActionNanos = System.nanoTime();
+
+  GameTable(
+      String name,
+      int players,
+      Channel channel,
+      RpcStats rpcStats,
+      boolean play,
+      Listener listener) {
+    this.name = name;
+    this.roomStub = AvalonRoomServiceGrpc.newStub(channel);
+    this.gameStub = AvalonGameServiceGrpc.newStub(channel);
+    this.rpcStats = rpcStats;
+    this.play = play;
+    this.listener = listener;
+    this.bots = new Bot[players];
+    for (int i = 0; i < players; i++) {
+      bots[i] = new Bot(i);
+    }
+  }
+
+  void start() {
+    for (Bot bot : bots) {
+      roomStub.createUser(
+          CreateUserRequest.newBuilder()
+              .setUser(User.newBuilder().setUsername(name + "-" + bot.seat))
+              .build(),
+          unary(
+              "CreateUser",
+              response -> response.getResponseError(),
+              response -> {
+                bot.auth = response.getAuth();
+                if (usersCreated.incrementAndGet() == bots.length) {
+                  createRoom();
+                }
+              }));
+    }
+  }
+
+  private void createRoom() {
+    Room.Builder room =
+        Room.newBuilder().setRoomName(name).setMaximumRound(5).setHasLadyByTheLake(true);
+    for (int i = 0; i < bots.length; i++) {
+      room.addCharacter(CHARACTERS[i % CHARACTERS.length]);
+    }
+
+    roomStub.createRoom(
+        CreateRoomRequest.newBuilder().setAuth(bots[0].auth).setRoom(room).build(),
+        unary(
+            "CreateRoom",
+            response -> response.getResponseError(),
+            response -> {
+              for (Bot bot : bots) {
+                bot.joinRoom();
+              }
+            }));
+  }
+
+  private void startGame() {
+    action();
+    roomStub.startGame(
+        StartGameRequest.newBuilder().setAuth(bots[0].auth).setRoomName(name).build(),
+        unary("StartGame", Function.identity(), ignored -> {}));
+  }
+
+  private void action() {
+    lastActionNanos = System.nanoTime();
+  }
+
+  private void finish(boolean success) {
+    if (!finished.compareAndSet(false, true)) {
+      return;
+    }
+
+    for (Bot bot : bots) {
+      bot.cancel();
+    }
+    listener.onFinished(this, success);
+  }
+
+  /**
+   * Observes a unary call, failing the whole game on a transport error or when a call needed to set
+   * the game up returns an error.
+   */
+  private <T> StreamObserver<T> unary(
+      String rpc, Function<T, ResponseError> responseError, Consumer<T> onSuccess) {
+    return new StreamObserver<T>() {
+      @Override
+      public void onNext(T response) {
+        if (responseError.apply(response).getError().isEmpty()) {
+          onSuccess.accept(response);
+          return;
+        }
+
+        rpcStats.error(rpc);
+        if (botsDone.get() == 0 && isSetup(rpc)) {
+          finish(false);
+        }
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        rpcStats.error(rpc);
+        finish(false);
+      }
+
+      @Override
+      public void onCompleted() {}
+    };
+  }
+
+  private static boolean isSetup(String rpc) {
+    return rpc.equals("CreateUser")
+        || rpc.equals("CreateRoom")
+        || rpc.equals("ChangeSeat")
+        || rpc.equals("StartGame");
+  }
+
+  /**
+   * A player. Its view of the game is only touched from its own game stream, whose callbacks gRPC
+   * never runs concurrently.
+   */
+  private final class Bot implements ClientResponseObserver<PollRequest, GameStatusUpdate> {
+    final int seat;
+    volatile Auth auth;
+    private final AtomicBoolean polling = new AtomicBoolean();
+    private volatile ClientCallStreamObserver<?> roomStream;
+    private volatile ClientCallStreamObserver<?> gameStream;
+    private volatile ClientCallStreamObserver<PlayRequest> playStream;
+    /** Actions sent on the Play stream that are not acked yet, by request id. */
+    private final Map<Integer, Sent> unacked = new ConcurrentHashMap<>();
+
+    private int nextId;
+    /** Set once the game is over, after which nothing may be sent on the Play stream. */
+    private boolean cancelled;
+
+    private int gameId;
+    private int leader = -1;
+    /** Holder of the lady by the lake, first the seat before the first leader. */
+    private int lady = -1;
+
+    private long team;
+    private int succeeded;
+    private int failed;
+
+    Bot(int seat) {
+      this.seat = seat;
+    }
+
+    void joinRoom() {
+      roomStub.joinRoom(
+          JoinRoomRequest.newBuilder().setAuth(auth).setRoomName(name).build(),
+          new ClientResponseObserver<JoinRoomRequest, RoomUpdate>() {
+            @Override
+            public void beforeStart(ClientCallStreamObserver<JoinRoomRequest> requestStream) {
+              roomStream = requestStream;
+            }
+
+            @Override
+            public void onNext(RoomUpdate roomUpdate) {
+              if (roomUpdate.hasGameStartUpdate()) {
+                poll(roomUpdate.getGameStartUpdate().getGame());
+              } else if (roomUpdate.hasRoomClosedUpdate()) {
+                rpcStats.error("JoinRoom");
+                finish(false);
+              }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+              if (!finished.get()) {
+                rpcStats.error("JoinRoom");
+                finish(false);
+              }
+            }
+
+            @Override
+            public void onCompleted() {}
+          });
+
+      roomStub.changeSeat(
+          ChangeSeatRequest.newBuilder().setAuth(auth).setRoomName(name).setSeat(seat).build(),
+          unary(
+              "ChangeSeat",
+              Function.identity(),
+              ignored -> {
+                if (seated.incrementAndGet() == bots.length) {
+                  startGame();
+                }
+              }));
+    }
+
+    private void poll(int gameId) {
+      if (!polling.compareAndSet(false, true)) {
+        return;
+      }
+
+      this.gameId = gameId;
+      PollRequest pollRequest = PollRequest.newBuilder().setAuth(auth).setGameId(gameId).build();
+      if (play) {
+        gameStub.play(new PlayObserver());
+        send("Play", PlayRequest.newBuilder().setPoll(pollRequest));
+      } else {
+        gameStub.pollGameStatus(pollRequest, this);
+      }
+    }
+
+    /**
+     * Sends an action on the Play stream. Locked against {@link #cancel}, which another bot may
+     * call concurrently.
+     */
+    private synchronized void send(String rpc, PlayRequest.Builder request) {
+      if (cancelled) {
+        return;
+      }
+
+      int id = ++nextId;
+      unacked.put(id, new Sent(rpc, System.nanoTime()));
+      playStream.onNext(request.setId(id).build());
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<PollRequest> requestStream) {
+      gameStream = requestStream;
+    }
+
+    @Override
+    public void onNext(GameStatusUpdate update) {
+      rpcStats.lag(update.getUpdateCase(), System.nanoTime() - lastActionNanos);
+
+      switch (update.getUpdateCase()) {
+        case ROUND_START:
+          leader = update.getRoundStart().getLeader();
+          if (lady < 0) {
+            lady = (leader + bots.length - 1) % bots.length;
+          }
+          team = 0;
+          if (leader == seat) {
+            propose();
+          }
+          break;
+        case PROPOSAL:
+          if (update.getProposal().getFromWhom() == leader) {
+            team = 0;
+            for (int player : update.getProposal().getPlayersList()) {
+              team |= 1L << player;
+            }
+            vote();
+          }
+          break;
+        case VOTED_RESULT:
+          if (update.getVotedResult().getTotallyAgreed() && (team & (1L << seat)) != 0) {
+            voteForTask();
+          }
+          break;
+        case MISSION_RESULT:
+          if (update.getMissionResult()) {
+            succeeded++;
+          } else {
+            failed++;
+          }
+          if (succeeded == 3 || failed == 3) {
+            done();
+          } else if (lady == seat) {
+            ladyTest();
+          }
+          break;
+        case LADY_TEST_DONE:
+          lady = update.getLadyTestDone().getToWhom();
+          break;
+        case SNAPSHOT:
+          GameStatusUpdate.Snapshot snapshot = update.getSnapshot();
+          leader = snapshot.getLeader();
+          lady = snapshot.getLadyByTheLake();
+          succeeded = 0;
+          failed = 0;
+          for (boolean missionResult : snapshot.getMissionResultList()) {
+            if (missionResult) {
+              succeeded++;
+            } else {
+              failed++;
+            }
+          }
+          break;
+        case RESPONSE_ERROR:
+          rpcStats.error("PollGameStatus");
+          finish(false);
+          break;
+        default:
+          break;
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      if (!finished.get()) {
+        rpcStats.error("PollGameStatus");
+        finish(false);
+      }
+    }
+
+    @Override
+    public void onCompleted() {}
+
+    private void propose() {
+      Proposal.Builder proposal = Proposal.newBuilder().setFromWhom(seat).addPlayers(seat);
+      proposal.addPlayers((seat + 1) % bots.length);
+      action();
+      if (play) {
+        send("Propose", PlayRequest.newBuilder().setProposal(proposal));
+        return;
+      }
+      gameStub.propose(
+          ProposeRequest.newBuilder().setAuth(auth).setGameId(gameId).setProposal(proposal).build(),
+          unary("Propose", Function.identity(), ignored -> {}));
+    }
+
+    private void vote() {
+      VoteForPlayerRequest.Voting voting =
+          ThreadLocalRandom.current().nextInt(10) < 8
+              ? VoteForPlayerRequest.Voting.AGREE
+              : VoteForPlayerRequest.Voting.DISAGREE;
+      action();
+      if (play) {
+        send("VoteForPlayer", PlayRequest.newBuilder().setVoteForPlayer(voting));
+        return;
+      }
+      gameStub.voteForPlayer(
+          VoteForPlayerRequest.newBuilder()
+              .setAuth(auth)
+              .setGameId(gameId)
+              .setVoting(voting)
+              .build(),
+          unary("VoteForPlayer", Function.identity(), ignored -> {}));
+    }
+
+    private void voteForTask() {
+      boolean success = ThreadLocalRandom.current().nextInt(10) < 7;
+      action();
+      if (play) {
+        send("voteFoTask", PlayRequest.newBuilder().setVoteForTask(success));
+        return;
+      }
+      gameStub.voteFoTask(
+          VoteForTaskRequest.newBuilder()
+              .setAuth(auth)
+              .setGameId(gameId)
+              .setSuccess(success)
+              .build(),
+          unary("voteFoTask", Function.identity(), ignored -> {}));
+    }
+
+    private void ladyTest() {
+      int whom = (seat + 1) % bots.length;
+      action();
+      if (play) {
+        send("LadyTest", PlayRequest.newBuilder().setLadyTest(whom));
+        return;
+      }
+      gameStub.ladyTest(
+          LadyTestRequest.newBuilder().setAuth(auth).setGameId(gameId).setWhom(whom).build(),
+          unary("LadyTest", response -> response.getResponseError(), ignored -> {}));
+    }
+
+    private void done() {
+      if (botsDone.incrementAndGet() == bots.length) {
+        finish(true);
+      }
+    }
+
+    synchronized void cancel() {
+      cancelled = true;
+      if (gameStream != null) {
+        gameStream.cancel("Game over", null);
+      }
+      if (roomStream != null) {
+        roomStream.cancel("Game over", null);
+      }
+    }
+
+    /** Feeds the updates of the Play stream to the bot and records the latency of each ack. */
+    private final class PlayObserver implements ClientResponseObserver<PlayRequest, PlayResponse> {
+      @Override
+      public void beforeStart(ClientCallStreamObserver<PlayRequest> requestStream) {
+        gameStream = requestStream;
+        playStream = requestStream;
+      }
+
+      @Override
+      public void onNext(PlayResponse response) {
+        if (response.hasUpdate()) {
+          Bot.this.onNext(response.getUpdate());
+          return;
+        }
+
+        PlayResponse.Ack ack = response.getAck();
+        Sent sent = unacked.remove(ack.getId());
+        if (sent == null) {
+          return;
+        }
+        rpcStats.ack(sent.rpc, System.nanoTime() - sent.nanos);
+        if (!ack.getResponseError().getError().isEmpty()) {
+          rpcStats.error(sent.rpc);
+          if (sent.rpc.equals("Play")) {
+            finish(false);
+          }
+        }
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        if (!finished.get()) {
+          rpcStats.error("Play");
+          finish(false);
+        }
+      }
+
+      @Override
+      public void onCompleted() {}
+    }
+  }
+
+  private static final class Sent {
+    final String rpc;
+    final long nanos;
+
+    Sent(String rpc, long nanos) {
+      this.rpc = rpc;
+      this.nanos = nanos;
+    }
+  }
+}
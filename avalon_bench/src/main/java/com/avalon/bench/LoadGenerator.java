@@ -0,0 +1,125 @@
+package com.avalon.bench;
+
+import com.avalon.entry.AppComponent;
+import com.avalon.entry.DaggerAppComponent;
+import io.grpc.Channel;
+import io.grpc.ClientInterceptors;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays complete games with bot clients against a server running in this process, then reports
+ * throughput, the latency of each RPC and how late stream updates arrive.
+ *
+ * <p>Flags, all optional: {@code --games=1000 --players=5 --concurrency=200
+ * --transport=inprocess|netty --api=unary|play --timeoutSeconds=300 --target=host:port
+ * --channels=1}. The netty transport goes through loopback TCP, the default one skips the network
+ * entirely. The play api sends game actions on one Play stream per player instead of a unary call
+ * each. A target replaces the server in this process with a running one, such as the routing proxy
+ * in front of a cluster; as it caps the streams of each connection, tables are spread over {@code
+ * channels} connections.
+ */
+public class LoadGenerator {
+  public static void main(String[] args) throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    for (String arg : args) {
+      String[] flag = arg.replaceFirst("^--", "").split("=", 2);
+      flags.put(flag[0], flag.length == 2 ? flag[1] : "true");
+    }
+    int games = Integer.parseInt(flags.getOrDefault("games", "1000"));
+    int players = Integer.parseInt(flags.getOrDefault("players", "5"));
+    int concurrency = Integer.parseInt(flags.getOrDefault("concurrency", "200"));
+    boolean netty = flags.getOrDefault("transport", "inprocess").equals("netty");
+    boolean play = flags.getOrDefault("api", "unary").equals("play");
+    long timeoutSeconds = Long.parseLong(flags.getOrDefault("timeoutSeconds", "300"));
+    String target = flags.get("target");
+    int channels = Integer.parseInt(flags.getOrDefault("channels", "1"));
+
+    Server server = null;
+    ManagedChannel[] managedChannels = new ManagedChannel[target != null ? channels : 1];
+    if (target != null) {
+      for (int i = 0; i < managedChannels.length; i++) {
+        managedChannels[i] = NettyChannelBuilder.forTarget(target).usePlaintext().build();
+      }
+    } else {
+      AppComponent appComponent = DaggerAppComponent.create();
+      ServerBuilder<?> serverBuilder;
+      if (netty) {
+        serverBuilder = NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", 0));
+      } else {
+        serverBuilder = InProcessServerBuilder.forName("load-generator");
+      }
+      server =
+          serverBuilder
+              .addService(appComponent.avalonRoomService().bindEncodedService())
+              .addService(appComponent.avalonGameService().bindEncodedService())
+              .build()
+              .start();
+      managedChannels[0] =
+          netty
+              ? NettyChannelBuilder.forAddress("127.0.0.1", server.getPort()).usePlaintext().build()
+              : InProcessChannelBuilder.forName("load-generator").build();
+    }
+
+    RpcStats rpcStats = new RpcStats();
+    Channel[] interceptedChannels = new Channel[managedChannels.length];
+    for (int i = 0; i < managedChannels.length; i++) {
+      interceptedChannels[i] = ClientInterceptors.intercept(managedChannels[i], rpcStats);
+    }
+    Semaphore tables = new Semaphore(concurrency);
+    CountDownLatch finishedGames = new CountDownLatch(games);
+    AtomicInteger succeeded = new AtomicInteger();
+    GameTable.Listener listener =
+        (gameTable, success) -> {
+          if (success) {
+            succeeded.incrementAndGet();
+          }
+          tables.release();
+          finishedGames.countDown();
+        };
+
+    long startNanos = System.nanoTime();
+    long deadlineNanos = startNanos + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+    for (int i = 0; i < games; i++) {
+      if (!tables.tryAcquire(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+        break;
+      }
+      Channel channel = interceptedChannels[i % interceptedChannels.length];
+      new GameTable("load-" + i, players, channel, rpcStats, play, listener).start();
+    }
+    finishedGames.await(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+    System.out.printf(
+        "%d games of %d players, %d succeeded, %d failed, %d unfinished in %.1f s%n",
+        games,
+        players,
+        succeeded.get(),
+        games - finishedGames.getCount() - succeeded.get(),
+        finishedGames.getCount(),
+        seconds);
+    System.out.printf(
+        "%.1f games/s, %.1f calls/s%n%n", succeeded.get() / seconds, rpcStats.calls() / seconds);
+    rpcStats.print(System.out);
+
+    for (ManagedChannel managedChannel : managedChannels) {
+      managedChannel.shutdownNow();
+    }
+    if (server != null) {
+      server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+    System.exit(0);
+  }
+}
@@ -0,0 +1,111 @@
+package com.avalon.bench;
+
+import com.avalon.proto.game.GameStatusUpdate;
+import com.avalon.util.LatencyHistogram;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency of every RPC made through the intercepted channel, measured from the start of the call to
+ * its first response, which for streaming calls is the first update, and of every action sent on a
+ * Play stream until its ack. Also collects how late stream updates arrive.
+ */
+final class RpcStats implements ClientInterceptor {
+  private static final String HEADER = "%-20s %10s %8s %10s %10s %10s%n";
+  private static final String ROW = "%-20s %10d %8s %10.3f %10.3f %10.3f%n";
+
+  private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentSkipListMap<>();
+  private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+  private final ConcurrentMap<GameStatusUpdate.UpdateCase, LatencyHistogram> lags =
+      new ConcurrentSkipListMap<>();
+
+  @Override
+  public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+      MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+    String rpc = method.getFullMethodName().substring(method.getServiceName().length() + 1);
+    LatencyHistogram latency = latencies.computeIfAbsent(rpc, ignored -> new LatencyHistogram());
+
+    return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(
+        next.newCall(method, callOptions)) {
+      @Override
+      public void start(Listener<RespT> responseListener, Metadata headers) {
+        long startNanos = System.nanoTime();
+        super.start(
+            new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(
+                responseListener) {
+              private boolean responded;
+
+              @Override
+              public void onMessage(RespT message) {
+                if (!responded) {
+                  responded = true;
+                  latency.record(System.nanoTime() - startNanos);
+                }
+                super.onMessage(message);
+              }
+            },
+            headers);
+      }
+    };
+  }
+
+  /** Records that the action {@code rpc} sent on a Play stream was acked after {@code nanos}. */
+  void ack(String rpc, long nanos) {
+    latencies.computeIfAbsent("Play/" + rpc, ignored -> new LatencyHistogram()).record(nanos);
+  }
+
+  /** Counts a call that failed or returned a {@code ResponseError}. */
+  void error(String rpc) {
+    errors.computeIfAbsent(rpc, ignored -> new LongAdder()).increment();
+  }
+
+  /** Records that an update arrived {@code nanos} after the action that caused it was sent. */
+  void lag(GameStatusUpdate.UpdateCase updateCase, long nanos) {
+    lags.computeIfAbsent(updateCase, ignored -> new LatencyHistogram()).record(nanos);
+  }
+
+  long calls() {
+    long calls = 0;
+    for (LatencyHistogram latency : latencies.values()) {
+      calls += latency.count();
+    }
+    return calls;
+  }
+
+  void print(PrintStream out) {
+    out.printf(HEADER, "rpc", "count", "errors", "p50 ms", "p99 ms", "p999 ms");
+    for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+      LongAdder error = errors.get(entry.getKey());
+      print(out, entry.getKey(), entry.getValue(), error == null ? 0 : error.sum());
+    }
+
+    out.println();
+    out.printf(HEADER, "stream lag", "count", "", "p50 ms", "p99 ms", "p999 ms");
+    for (Map.Entry<GameStatusUpdate.UpdateCase, LatencyHistogram> entry : lags.entrySet()) {
+      print(out, entry.getKey().name(), entry.getValue(), -1);
+    }
+  }
+
+  private static void print(PrintStream out, String name, LatencyHistogram latency, long errors) {
+    out.printf(
+        ROW,
+        name,
+        latency.count(),
+        errors < 0 ? "" : Long.toString(errors),
+        latency.percentileMillis(0.5),
+        latency.percentileMillis(0.99),
+        latency.percentileMillis(0.999));
+  }
+}
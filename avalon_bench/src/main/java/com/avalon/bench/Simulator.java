@@ -0,0 +1,144 @@
+package com.avalon.bench;
+
+import com.avalon.rules.GameRules;
+import com.avalon.rules.HeuristicPolicy;
+import com.avalon.rules.Policy;
+import com.avalon.rules.RandomPolicy;
+import com.avalon.rules.Rng;
+import com.avalon.rules.Role;
+import com.avalon.rules.Simulation;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.LongStream;
+
+/**
+ * Plays games with the rules alone, no server or proto involved, on every core, then reports how
+ * many games per second that is and how they ended.
+ *
+ * <p>Flags, all optional: {@code --games=1000000 --players=5
+ * --roles=MERLIN,PERCIVAL,ARTHUR_SERVANT,MORGANA,ASSASSIN --policy=random|heuristic --seed=0
+ * --maximumRound=5 --threads=<cores>}. Roles replace the standard ones for the number of players.
+ * Game {@code i} is seeded with {@code seed + i}, so a run is the same whatever the threads.
+ */
+public class Simulator {
+  private static final Role[] BLUE = {Role.MERLIN, Role.PERCIVAL};
+  private static final Role[] RED = {Role.MORGANA, Role.ASSASSIN, Role.MORDRED, Role.OBERON};
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    for (String arg : args) {
+      String[] flag = arg.replaceFirst("^--", "").split("=", 2);
+      flags.put(flag[0], flag.length == 2 ? flag[1] : "true");
+    }
+    long games = Long.parseLong(flags.getOrDefault("games", "1000000"));
+    int players = Integer.parseInt(flags.getOrDefault("players", "5"));
+    Role[] roles =
+        flags.containsKey("roles")
+            ? Arrays.stream(flags.get("roles").split(",")).map(Role::valueOf).toArray(Role[]::new)
+            : standardRoles(players);
+    Policy policy =
+        flags.getOrDefault("policy", "random").equals("heuristic")
+            ? new HeuristicPolicy()
+            : new RandomPolicy(0.5, 0.5);
+    long seed = Long.parseLong(flags.getOrDefault("seed", "0"));
+    int maximumRound = Integer.parseInt(flags.getOrDefault("maximumRound", "5"));
+    int threads =
+        Integer.parseInt(
+            flags.getOrDefault(
+                "threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+    Policy[] policies = new Policy[Role.values().length];
+    Arrays.fill(policies, policy);
+
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    long startNanos = System.nanoTime();
+    Stats stats =
+        pool.submit(
+                () ->
+                    LongStream.range(0, games)
+                        .parallel()
+                        .mapToObj(
+                            i ->
+                                Simulation.play(
+                                    roles, policies, maximumRound, Rng.seeded(seed + i)))
+                        .collect(Stats::new, Stats::add, Stats::merge))
+            .get();
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    pool.shutdown();
+
+    System.out.printf(
+        "%d games of %s on %d threads in %.2f s, %.0f games/s%n%n",
+        games, Arrays.toString(roles), threads, seconds, games / seconds);
+    stats.print(games);
+  }
+
+  /** Returns the roles usually played by {@code players}, a third of them red. */
+  static Role[] standardRoles(int players) {
+    Role[] roles = new Role[players];
+    int red = (players + 2) / 3;
+    for (int i = 0; i < players - red; i++) {
+      roles[i] = i < BLUE.length ? BLUE[i] : Role.ARTHUR_SERVANT;
+    }
+    for (int i = 0; i < red; i++) {
+      roles[players - red + i] = i < RED.length ? RED[i] : Role.LANCELOT_RED;
+    }
+    return roles;
+  }
+
+  /** Outcomes of the games played by one thread, merged once they are all done. */
+  static class Stats {
+    long blueWins;
+    long redWins;
+    long unfinished;
+    long proposals;
+    long rejectedMissions;
+    /** Games by the missions they ended with: successes then failures. */
+    final long[][] scores = new long[GameRules.MISSIONS_TO_WIN + 1][GameRules.MISSIONS_TO_WIN + 1];
+
+    void add(Simulation.Outcome outcome) {
+      if (!outcome.finished) {
+        unfinished++;
+      } else if (outcome.blueWon()) {
+        blueWins++;
+      } else {
+        redWins++;
+      }
+      proposals += outcome.proposals;
+      rejectedMissions += outcome.rejectedMissions;
+      scores[Math.min(outcome.successes, GameRules.MISSIONS_TO_WIN)][
+          Math.min(outcome.failures, GameRules.MISSIONS_TO_WIN)]++;
+    }
+
+    void merge(Stats other) {
+      blueWins += other.blueWins;
+      redWins += other.redWins;
+      unfinished += other.unfinished;
+      proposals += other.proposals;
+      rejectedMissions += other.rejectedMissions;
+      for (int i = 0; i < scores.length; i++) {
+        for (int j = 0; j < scores[i].length; j++) {
+          scores[i][j] += other.scores[i][j];
+        }
+      }
+    }
+
+    void print(long games) {
+      System.out.printf(
+          "blue won %.2f%%, red won %.2f%%, unfinished %.2f%%%n",
+          100.0 * blueWins / games, 100.0 * redWins / games, 100.0 * unfinished / games);
+      System.out.printf(
+          "%.2f proposals and %.3f missions failed by rejections per game%n%n",
+          (double) proposals / games, (double) rejectedMissions / games);
+      System.out.println("successes-failures  games");
+      for (int i = 0; i < scores.length; i++) {
+        for (int j = 0; j < scores[i].length; j++) {
+          if (scores[i][j] != 0) {
+            System.out.printf("%d-%d                 %.2f%%%n", i, j, 100.0 * scores[i][j] / games);
+          }
+        }
+      }
+    }
+  }
+}
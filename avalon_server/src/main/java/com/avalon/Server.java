@@ -1,4 +1,261 @@
 package com.avalon;
 
+import com.avalon.cluster.ClusterClient;
+import com.avalon.cluster.NodeAuth;
+import com.avalon.domain.EventLogRecovery;
+import com.avalon.domain.LifecycleSweeper;
+import com.avalon.entry.DaggerAppComponent;
+import com.avalon.metrics.AdminServer;
+import com.avalon.metrics.MetricsInterceptor;
+import com.avalon.service.AvalonGameService;
+import com.avalon.service.AvalonNodeService;
+import com.avalon.service.AvalonRoomService;
+import com.avalon.store.EventStore;
+import io.grpc.ServerInterceptors;
+import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.ServerChannel;
+import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.util.concurrent.DefaultThreadFactory;
+import io.grpc.services.HealthStatusManager;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.inject.Inject;
+
+/**
+ * Serves the room and game services over Netty, after rebuilding the state from the event log.
+ *
+ * <p>The health service reports SERVING once recovery is done and NOT_SERVING as soon as a shutdown
+ * starts, so a load balancer can move traffic during a rolling deploy while in-flight calls drain.
+ */
 public class Server {
+  private static final Logger logger = Logger.getLogger(Server.class.getName());
+
+  public enum ExecutorType {
+    FIXED,
+    FORK_JOIN,
+    /** Falls back to {@link #FORK_JOIN} on JVMs without virtual threads. */
+    VIRTUAL,
+  }
+
+  public static class Options {
+    final int port;
+    /** Threads accepting connections; 0 lets Netty pick. */
+    final int bossThreads;
+    /** Threads handling the IO of the connections; 0 lets Netty pick. */
+    final int workerThreads;
+    /** Runs the service methods. */
+    final ExecutorType executorType;
+    /** Size of the executor, ignored for virtual threads. */
+    final int executorThreads;
+
+    final int maxInboundMessageBytes;
+    final int flowControlWindowBytes;
+    final long keepAliveMillis;
+    final long keepAliveTimeoutMillis;
+    final int maxConcurrentStreams;
+    /** How long in-flight calls get to finish on shutdown before they are cancelled. */
+    final long drainMillis;
+    /** Local port serving the metrics over HTTP, or -1 to not serve them. */
+    final int adminPort;
+
+    public Options(
+        int port,
+        int bossThreads,
+        int workerThreads,
+        ExecutorType executorType,
+        int executorThreads,
+        int maxInboundMessageBytes,
+        int flowControlWindowBytes,
+        long keepAliveMillis,
+        long keepAliveTimeoutMillis,
+        int maxConcurrentStreams,
+        long drainMillis,
+        int adminPort) {
+      this.port = port;
+      this.bossThreads = bossThreads;
+      this.workerThreads = workerThreads;
+      this.executorType = executorType;
+      this.executorThreads = executorThreads;
+      this.maxInboundMessageBytes = maxInboundMessageBytes;
+      this.flowControlWindowBytes = flowControlWindowBytes;
+      this.keepAliveMillis = keepAliveMillis;
+      this.keepAliveTimeoutMillis = keepAliveTimeoutMillis;
+      this.maxConcurrentStreams = maxConcurrentStreams;
+      this.drainMillis = drainMillis;
+      this.adminPort = adminPort;
+    }
+  }
+
+  private final Options options;
+  private final AvalonRoomService avalonRoomService;
+  private final AvalonGameService avalonGameService;
+  private final AvalonNodeService avalonNodeService;
+  private final NodeAuth nodeAuth;
+  private final ClusterClient clusterClient;
+  private final EventLogRecovery eventLogRecovery;
+  /** Only held so its sweeps, scheduled on construction, are part of the server. */
+  private final LifecycleSweeper lifecycleSweeper;
+
+  private final EventStore eventStore;
+  private final MetricsInterceptor metricsInterceptor;
+  private final AdminServer adminServer;
+  private final HealthStatusManager healthStatusManager = new HealthStatusManager();
+
+  private EventLoopGroup bossGroup;
+  private EventLoopGroup workerGroup;
+  private ExecutorService executor;
+  private io.grpc.Server grpcServer;
+
+  @Inject
+  Server(
+      Options options,
+      AvalonRoomService avalonRoomService,
+      AvalonGameService avalonGameService,
+      AvalonNodeService avalonNodeService,
+      NodeAuth nodeAuth,
+      ClusterClient clusterClient,
+      EventLogRecovery eventLogRecovery,
+      LifecycleSweeper lifecycleSweeper,
+      EventStore eventStore,
+      MetricsInterceptor metricsInterceptor,
+      AdminServer adminServer) {
+    this.options = options;
+    this.avalonRoomService = avalonRoomService;
+    this.avalonGameService = avalonGameService;
+    this.avalonNodeService = avalonNodeService;
+    this.nodeAuth = nodeAuth;
+    this.clusterClient = clusterClient;
+    this.eventLogRecovery = eventLogRecovery;
+    this.lifecycleSweeper = lifecycleSweeper;
+    this.eventStore = eventStore;
+    this.metricsInterceptor = metricsInterceptor;
+    this.adminServer = adminServer;
+  }
+
+  public static void main(String[] args) throws Exception {
+    long startNanos = System.nanoTime();
+    Server server = DaggerAppComponent.create().server();
+    server.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "shutdown"));
+
+    logger.info(
+        String.format(
+            "Serving on port %d, started in %d ms, %d ms after the JVM",
+            server.grpcServer.getPort(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
+            ManagementFactory.getRuntimeMXBean().getUptime()));
+    server.grpcServer.awaitTermination();
+  }
+
+  public void start() throws IOException {
+    eventLogRecovery.recover();
+
+    boolean epoll = Epoll.isAvailable();
+    Class<? extends ServerChannel> channelType =
+        epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    bossGroup = eventLoopGroup(epoll, options.bossThreads, "grpc-boss");
+    workerGroup = eventLoopGroup(epoll, options.workerThreads, "grpc-worker");
+    executor = newExecutor();
+
+    grpcServer =
+        NettyServerBuilder.forPort(options.port)
+            .channelType(channelType)
+            .bossEventLoopGroup(bossGroup)
+            .workerEventLoopGroup(workerGroup)
+            .executor(executor)
+            .maxInboundMessageSize(options.maxInboundMessageBytes)
+            .flowControlWindow(options.flowControlWindowBytes)
+            .keepAliveTime(options.keepAliveMillis, TimeUnit.MILLISECONDS)
+            .keepAliveTimeout(options.keepAliveTimeoutMillis, TimeUnit.MILLISECONDS)
+            .permitKeepAliveTime(options.keepAliveMillis / 2, TimeUnit.MILLISECONDS)
+            .permitKeepAliveWithoutCalls(true)
+            .maxConcurrentCallsPerConnection(options.maxConcurrentStreams)
+            .addService(
+                ServerInterceptors.intercept(
+                    avalonRoomService.bindEncodedService(), metricsInterceptor))
+            .addService(
+                ServerInterceptors.intercept(
+                    avalonGameService.bindEncodedService(), metricsInterceptor))
+            .addService(
+                ServerInterceptors.intercept(avalonNodeService, nodeAuth, metricsInterceptor))
+            .addService(healthStatusManager.getHealthService())
+            .build()
+            .start();
+    healthStatusManager.setStatus("", ServingStatus.SERVING);
+
+    if (options.adminPort >= 0) {
+      adminServer.start(options.adminPort);
+    }
+  }
+
+  /**
+   * Stops taking calls, gives the in-flight ones {@link Options#drainMillis} to finish, then
+   * cancels the rest and makes the event log durable.
+   */
+  public void stop() {
+    healthStatusManager.enterTerminalState();
+    grpcServer.shutdown();
+    try {
+      if (!grpcServer.awaitTermination(options.drainMillis, TimeUnit.MILLISECONDS)) {
+        grpcServer.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+      }
+    } catch (InterruptedException e) {
+      grpcServer.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+
+    adminServer.stop();
+    clusterClient.shutdown();
+    bossGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    workerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    executor.shutdown();
+    try {
+      eventStore.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to close the event store", e);
+    }
+  }
+
+  private static EventLoopGroup eventLoopGroup(boolean epoll, int threads, String name) {
+    DefaultThreadFactory threadFactory = new DefaultThreadFactory(name, true);
+    return epoll
+        ? new EpollEventLoopGroup(threads, threadFactory)
+        : new NioEventLoopGroup(threads, threadFactory);
+  }
+
+  private ExecutorService newExecutor() {
+    switch (options.executorType) {
+      case FIXED:
+        return Executors.newFixedThreadPool(
+            options.executorThreads, new DefaultThreadFactory("grpc-executor", true));
+      case VIRTUAL:
+        try {
+          return (ExecutorService)
+              Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+          logger.warning("Virtual threads are not available, using a ForkJoinPool");
+          return newForkJoinPool();
+        }
+      case FORK_JOIN:
+      default:
+        return newForkJoinPool();
+    }
+  }
+
+  private ForkJoinPool newForkJoinPool() {
+    return new ForkJoinPool(
+        options.executorThreads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+  }
 }
@@ -0,0 +1,160 @@
+package com.avalon.auth;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Issues and verifies auth tokens that need no server-side state.
+ *
+ * <p>A token is the url-safe base64 of a version byte, the signing key id, the expiry in epoch
+ * seconds and a truncated HMAC-SHA256 over the user id, key id and expiry. Signing keys are derived
+ * from a master secret and rotate every {@code keyPeriodMillis}; keys older than the token lifetime
+ * are no longer accepted, so there is nothing to persist or share between processes beyond the
+ * secret.
+ */
+@Singleton
+public class TokenSigner {
+  private static final byte VERSION = 1;
+  private static final int MAC_BYTES = 16;
+  private static final int TOKEN_BYTES = 1 + 4 + 8 + MAC_BYTES;
+  private static final String ALGORITHM = "HmacSHA256";
+
+  public static class Options {
+    final byte[] secret;
+    final long keyPeriodMillis;
+    final long tokenLifetimeMillis;
+
+    public Options(byte[] secret, long keyPeriodMillis, long tokenLifetimeMillis) {
+      this.secret = secret.clone();
+      this.keyPeriodMillis = keyPeriodMillis;
+      this.tokenLifetimeMillis = tokenLifetimeMillis;
+    }
+  }
+
+  private final Options options;
+  private final int retainedKeys;
+  private final Map<Integer, SigningKey> keys = new ConcurrentHashMap<>();
+
+  @Inject
+  public TokenSigner(Options options) {
+    this.options = options;
+    this.retainedKeys = (int) (options.tokenLifetimeMillis / options.keyPeriodMillis) + 1;
+  }
+
+  public String sign(int userId) {
+    long now = System.currentTimeMillis();
+    int keyId = keyId(now);
+    long expirySeconds = (now + options.tokenLifetimeMillis) / 1000;
+
+    ByteBuffer token = ByteBuffer.allocate(TOKEN_BYTES);
+    token.put(VERSION).putInt(keyId).putLong(expirySeconds);
+    token.put(key(keyId).mac(userId, keyId, expirySeconds), 0, MAC_BYTES);
+
+    keys.keySet().removeIf(id -> id < keyId - retainedKeys);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(token.array());
+  }
+
+  /**
+   * Returns when the token expires, in epoch milliseconds, if {@code token} was issued to {@code
+   * userId} by this signer and is still valid, or -1 otherwise.
+   */
+  public long verify(int userId, String token) {
+    if (token.length() != (TOKEN_BYTES * 4 + 2) / 3) {
+      return -1;
+    }
+
+    ByteBuffer buffer;
+    try {
+      buffer = ByteBuffer.wrap(Base64.getUrlDecoder().decode(token));
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
+    if (buffer.remaining() != TOKEN_BYTES || buffer.get() != VERSION) {
+      return -1;
+    }
+
+    long now = System.currentTimeMillis();
+    int keyId = buffer.getInt();
+    long expirySeconds = buffer.getLong();
+    int currentKeyId = keyId(now);
+    if (expirySeconds * 1000 <= now
+        || keyId > currentKeyId
+        || keyId < currentKeyId - retainedKeys) {
+      return -1;
+    }
+
+    byte[] expected = Arrays.copyOf(key(keyId).mac(userId, keyId, expirySeconds), MAC_BYTES);
+    byte[] actual = new byte[MAC_BYTES];
+    buffer.get(actual);
+    return MessageDigest.isEqual(expected, actual) ? expirySeconds * 1000 : -1;
+  }
+
+  /** Signs calls from cluster node {@code node}, under ids no user can have. */
+  public String signNode(int node) {
+    return sign(~node);
+  }
+
+  /** Returns whether {@code token} was issued to cluster node {@code node} and is still valid. */
+  public boolean verifyNode(int node, String token) {
+    return verify(~node, token) >= 0;
+  }
+
+  private int keyId(long nowMillis) {
+    return (int) (nowMillis / options.keyPeriodMillis);
+  }
+
+  private SigningKey key(int keyId) {
+    return keys.computeIfAbsent(keyId, id -> new SigningKey(options.secret, id));
+  }
+
+  /** A derived key, with a {@link Mac} per thread since initializing one is expensive. */
+  private static class SigningKey {
+    private final ThreadLocal<Mac> mac;
+    private final ThreadLocal<ByteBuffer> input =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocate(16));
+
+    SigningKey(byte[] secret, int keyId) {
+      byte[] derived = hmac(secret, ByteBuffer.allocate(4).putInt(keyId).array());
+      this.mac =
+          ThreadLocal.withInitial(
+              () -> {
+                try {
+                  Mac instance = Mac.getInstance(ALGORITHM);
+                  instance.init(new SecretKeySpec(derived, ALGORITHM));
+                  return instance;
+                } catch (GeneralSecurityException e) {
+                  throw new IllegalStateException(e);
+                }
+              });
+    }
+
+    byte[] mac(int userId, int keyId, long expirySeconds) {
+      ByteBuffer buffer = input.get();
+      buffer.clear();
+      buffer.putInt(userId).putInt(keyId).putLong(expirySeconds).flip();
+
+      Mac instance = mac.get();
+      instance.update(buffer);
+      return instance.doFinal();
+    }
+
+    private static byte[] hmac(byte[] secret, byte[] message) {
+      try {
+        Mac instance = Mac.getInstance(ALGORITHM);
+        instance.init(new SecretKeySpec(secret, ALGORITHM));
+        return instance.doFinal(message);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package com.avalon.cluster;
+
+import com.avalon.proto.cluster.AvalonNodeServiceGrpc;
+import com.avalon.proto.cluster.GetUserRequest;
+import com.avalon.proto.cluster.GetUserResponse;
+import com.avalon.proto.cluster.PutUserRequest;
+import com.avalon.proto.cluster.PutUserResponse;
+import com.avalon.proto.service.User;
+import io.grpc.ClientInterceptor;
+import io.grpc.ManagedChannel;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Channels to the nodes of the cluster, opened on first use and shared by all callers. Calls to a
+ * node go round robin over several connections, as a node caps the streams of each.
+ */
+@Singleton
+public class ClusterClient {
+  private static final Logger logger = Logger.getLogger(ClusterClient.class.getName());
+  private static final long USER_DEADLINE_MILLIS = 2_000;
+
+  public static class Options {
+    final int channelsPerNode;
+
+    public Options(int channelsPerNode) {
+      this.channelsPerNode = channelsPerNode;
+    }
+  }
+
+  private final Options options;
+  private final ShardMap shardMap;
+  private final ClientInterceptor nodeAuth;
+  private final Map<Integer, ManagedChannel[]> channels = new ConcurrentHashMap<>();
+  private final AtomicInteger nextChannel = new AtomicInteger();
+
+  @Inject
+  public ClusterClient(Options options, ShardMap shardMap, NodeAuth nodeAuth) {
+    this.options = options;
+    this.shardMap = shardMap;
+    this.nodeAuth = nodeAuth.clientInterceptor();
+  }
+
+  public ManagedChannel channel(int node) {
+    ManagedChannel[] nodeChannels =
+        channels.computeIfAbsent(
+            node,
+            ignored -> {
+              ManagedChannel[] created = new ManagedChannel[options.channelsPerNode];
+              for (int i = 0; i < created.length; i++) {
+                created[i] =
+                    NettyChannelBuilder.forTarget(shardMap.address(node)).usePlaintext().build();
+              }
+              return created;
+            });
+    return nodeChannels[(nextChannel.getAndIncrement() & Integer.MAX_VALUE) % nodeChannels.length];
+  }
+
+  /** Asks the node that created user {@code id} for it, returning null when it cannot tell. */
+  @Nullable
+  public User fetchUser(int id) {
+    int node = ShardMap.nodeOfId(id);
+    if (node >= shardMap.size()) {
+      return null;
+    }
+
+    try {
+      GetUserResponse response =
+          AvalonNodeServiceGrpc.newBlockingStub(channel(node))
+              .withInterceptors(nodeAuth)
+              .withDeadlineAfter(USER_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+              .getUser(GetUserRequest.newBuilder().setId(id).build());
+      return response.hasUser() ? response.getUser() : null;
+    } catch (StatusRuntimeException e) {
+      logger.log(Level.WARNING, "Failed to fetch user " + id + " from node " + node, e);
+      return null;
+    }
+  }
+
+  /**
+   * Stores user {@code id}, just created by this node, on every other node, then runs {@code done}
+   * on a transport thread. A node that fails to store it fetches the user when first needed.
+   */
+  public void putUser(int id, User user, Runnable done) {
+    if (shardMap.size() == 1) {
+      done.run();
+      return;
+    }
+
+    PutUserRequest request = PutUserRequest.newBuilder().setId(id).setUser(user).build();
+    AtomicInteger remaining = new AtomicInteger(shardMap.size() - 1);
+    for (int node = 0; node < shardMap.size(); node++) {
+      if (node == shardMap.self()) {
+        continue;
+      }
+
+      int index = node;
+      AvalonNodeServiceGrpc.newStub(channel(node))
+          .withInterceptors(nodeAuth)
+          .withDeadlineAfter(USER_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+          .putUser(
+              request,
+              new StreamObserver<PutUserResponse>() {
+                @Override
+                public void onNext(PutUserResponse response) {}
+
+                @Override
+                public void onError(Throwable t) {
+                  logger.log(Level.WARNING, "Failed to put user " + id + " on node " + index, t);
+                  onCompleted();
+                }
+
+                @Override
+                public void onCompleted() {
+                  if (remaining.decrementAndGet() == 0) {
+                    done.run();
+                  }
+                }
+              });
+    }
+  }
+
+  public void shutdown() {
+    for (ManagedChannel[] nodeChannels : channels.values()) {
+      for (ManagedChannel channel : nodeChannels) {
+        channel.shutdown();
+      }
+    }
+  }
+}
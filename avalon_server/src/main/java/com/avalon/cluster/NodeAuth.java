@@ -0,0 +1,90 @@
+package com.avalon.cluster;
+
+import com.avalon.auth.TokenSigner;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ForwardingClientCall;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Signs the calls between the nodes of the cluster with the shared token secret, and rejects the
+ * node calls that are not signed by one of the nodes.
+ */
+@Singleton
+public class NodeAuth implements ServerInterceptor {
+  private static final Metadata.Key<String> NODE_KEY =
+      Metadata.Key.of("avalon-node", Metadata.ASCII_STRING_MARSHALLER);
+  private static final Metadata.Key<String> TOKEN_KEY =
+      Metadata.Key.of("avalon-node-token", Metadata.ASCII_STRING_MARSHALLER);
+  private static final Context.Key<Integer> CALLER_NODE = Context.key("avalon-caller-node");
+
+  private final ShardMap shardMap;
+  private final TokenSigner tokenSigner;
+
+  @Inject
+  public NodeAuth(ShardMap shardMap, TokenSigner tokenSigner) {
+    this.shardMap = shardMap;
+    this.tokenSigner = tokenSigner;
+  }
+
+  /** Returns the node making the current call, once let through by this interceptor. */
+  public static int callerNode() {
+    return CALLER_NODE.get();
+  }
+
+  /** Returns an interceptor signing the calls this node makes to the others. */
+  public ClientInterceptor clientInterceptor() {
+    return new ClientInterceptor() {
+      @Override
+      public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+          MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+        return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(
+            next.newCall(method, callOptions)) {
+          @Override
+          public void start(Listener<RespT> responseListener, Metadata headers) {
+            headers.put(NODE_KEY, Integer.toString(shardMap.self()));
+            headers.put(TOKEN_KEY, tokenSigner.signNode(shardMap.self()));
+            super.start(responseListener, headers);
+          }
+        };
+      }
+    };
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+      ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+    int node = parseNode(headers.get(NODE_KEY));
+    String token = headers.get(TOKEN_KEY);
+    if (node < 0 || token == null || !tokenSigner.verifyNode(node, token)) {
+      call.close(Status.UNAUTHENTICATED.withDescription("Not a cluster node"), new Metadata());
+      return new ServerCall.Listener<ReqT>() {};
+    }
+
+    return Contexts.interceptCall(
+        Context.current().withValue(CALLER_NODE, node), call, headers, next);
+  }
+
+  private int parseNode(String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      int node = Integer.parseInt(value);
+      return node >= 0 && node < shardMap.size() ? node : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,588 @@
+package com.avalon.cluster;
+
+import com.avalon.domain.Matchmaker;
+import com.avalon.entry.DaggerAppComponent;
+import com.avalon.proto.game.AvalonGameServiceGrpc;
+import com.avalon.proto.service.AvalonRoomServiceGrpc;
+import com.avalon.proto.service.ListRoomRequest;
+import com.avalon.proto.service.ListRoomResponse;
+import com.avalon.proto.service.RoomDirectoryUpdate;
+import com.avalon.proto.service.RoomListing;
+import com.avalon.proto.service.WatchRoomsRequest;
+import com.avalon.util.StreamObservers;
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.HandlerRegistry;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.Status;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.inject.Inject;
+
+/**
+ * A front process forwarding the room and game calls to the nodes owning what they name.
+ *
+ * <p>Most calls concern a single room, game, user or matchmaking bucket, found from their first
+ * request: the proxy only parses it to pick the node, then relays the raw bytes both ways with flow
+ * control. ListRooms and WatchRooms span the cluster: pages are gathered from every node and merged
+ * by room name, which page tokens already are, and the watch streams of all nodes are merged.
+ */
+public class RoutingProxy {
+  private static final Logger logger = Logger.getLogger(RoutingProxy.class.getName());
+
+  private static final MethodDescriptor.Marshaller<byte[]> BYTES =
+      new MethodDescriptor.Marshaller<byte[]>() {
+        @Override
+        public InputStream stream(byte[] value) {
+          return new ByteArrayInputStream(value);
+        }
+
+        @Override
+        public byte[] parse(InputStream stream) {
+          try {
+            byte[] buffer = new byte[stream.available()];
+            int read = 0;
+            while (read < buffer.length) {
+              int count = stream.read(buffer, read, buffer.length - read);
+              if (count < 0) {
+                break;
+              }
+              read += count;
+            }
+            return buffer;
+          } catch (IOException e) {
+            throw Status.INTERNAL.withCause(e).asRuntimeException();
+          }
+        }
+      };
+
+  public static class Options {
+    final int port;
+    /** Deadline of the calls the proxy makes to every node to serve ListRooms. */
+    final long scatterDeadlineMillis;
+
+    public Options(int port, long scatterDeadlineMillis) {
+      this.port = port;
+      this.scatterDeadlineMillis = scatterDeadlineMillis;
+    }
+  }
+
+  private final Options options;
+  private final ShardMap shardMap;
+  private final ClusterClient clusterClient;
+  private final Map<String, ServerMethodDefinition<?, ?>> methods = new HashMap<>();
+
+  private io.grpc.Server server;
+
+  @Inject
+  RoutingProxy(Options options, ShardMap shardMap, ClusterClient clusterClient) {
+    this.options = options;
+    this.shardMap = shardMap;
+    this.clusterClient = clusterClient;
+
+    route(
+        AvalonRoomServiceGrpc.getCreateUserMethod(),
+        request -> shardMap.nodeOf(request.getUser().getUsername()));
+    route(
+        AvalonRoomServiceGrpc.getCreateRoomMethod(),
+        request -> shardMap.nodeOf(request.getRoom().getRoomName()));
+    route(
+        AvalonRoomServiceGrpc.getJoinRoomMethod(),
+        request -> shardMap.nodeOf(request.getRoomName()));
+    route(
+        AvalonRoomServiceGrpc.getChangeSeatMethod(),
+        request -> shardMap.nodeOf(request.getRoomName()));
+    route(
+        AvalonRoomServiceGrpc.getStartGameMethod(),
+        request -> shardMap.nodeOf(request.getRoomName()));
+    route(
+        AvalonRoomServiceGrpc.getJoinQueueMethod(),
+        request -> shardMap.nodeOf(Matchmaker.normalize(request.getRoom()).toByteArray()));
+    route(
+        AvalonGameServiceGrpc.getPollGameStatusMethod(),
+        request -> ShardMap.nodeOfId(request.getGameId()));
+    route(
+        AvalonGameServiceGrpc.getProposeMethod(),
+        request -> ShardMap.nodeOfId(request.getGameId()));
+    route(
+        AvalonGameServiceGrpc.getVoteForPlayerMethod(),
+        request -> ShardMap.nodeOfId(request.getGameId()));
+    route(
+        AvalonGameServiceGrpc.getVoteFoTaskMethod(),
+        request -> ShardMap.nodeOfId(request.getGameId()));
+    route(
+        AvalonGameServiceGrpc.getLadyTestMethod(),
+        request -> ShardMap.nodeOfId(request.getGameId()));
+    route(
+        AvalonGameServiceGrpc.getAssassinateMethod(),
+        request -> ShardMap.nodeOfId(request.getGameId()));
+    // A stream that does not start with a poll is refused by whichever node gets it.
+    route(
+        AvalonGameServiceGrpc.getPlayMethod(),
+        request -> ShardMap.nodeOfId(request.getPoll().getGameId()));
+
+    methods.put(
+        AvalonRoomServiceGrpc.getListRoomsMethod().getFullMethodName(),
+        ServerMethodDefinition.create(
+            AvalonRoomServiceGrpc.getListRoomsMethod(),
+            ServerCalls.asyncUnaryCall(this::listRooms)));
+    methods.put(
+        AvalonRoomServiceGrpc.getWatchRoomsMethod().getFullMethodName(),
+        ServerMethodDefinition.create(
+            AvalonRoomServiceGrpc.getWatchRoomsMethod(),
+            ServerCalls.asyncServerStreamingCall(
+                (WatchRoomsRequest request, StreamObserver<RoomDirectoryUpdate> observer) ->
+                    new DirectoryMerge(request, observer).start())));
+  }
+
+  public static void main(String[] args) throws Exception {
+    RoutingProxy routingProxy = DaggerAppComponent.create().routingProxy();
+    routingProxy.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(routingProxy::stop, "shutdown"));
+
+    logger.info(
+        String.format(
+            "Routing port %d to %d nodes",
+            routingProxy.server.getPort(), routingProxy.shardMap.size()));
+    routingProxy.server.awaitTermination();
+  }
+
+  public void start() throws IOException {
+    server =
+        NettyServerBuilder.forPort(options.port)
+            .fallbackHandlerRegistry(
+                new HandlerRegistry() {
+                  @Nullable
+                  @Override
+                  public ServerMethodDefinition<?, ?> lookupMethod(
+                      String methodName, @Nullable String authority) {
+                    return methods.get(methodName);
+                  }
+                })
+            .build()
+            .start();
+  }
+
+  public void stop() {
+    server.shutdown();
+    clusterClient.shutdown();
+  }
+
+  /** Forwards {@code method} to the node {@code nodeOf} picks from its first request. */
+  private <ReqT> void route(MethodDescriptor<ReqT, ?> method, ToIntFunction<ReqT> nodeOf) {
+    MethodDescriptor<byte[], byte[]> forwarded =
+        MethodDescriptor.<byte[], byte[]>newBuilder()
+            .setType(method.getType())
+            .setFullMethodName(method.getFullMethodName())
+            .setRequestMarshaller(BYTES)
+            .setResponseMarshaller(BYTES)
+            .build();
+    MethodDescriptor.Marshaller<ReqT> requestMarshaller = method.getRequestMarshaller();
+    methods.put(
+        method.getFullMethodName(),
+        ServerMethodDefinition.create(
+            forwarded,
+            (serverCall, headers) ->
+                new Relay(
+                    forwarded,
+                    serverCall,
+                    headers,
+                    request ->
+                        nodeOf.applyAsInt(
+                            requestMarshaller.parse(new ByteArrayInputStream(request))))));
+  }
+
+  private void listRooms(
+      ListRoomRequest request, StreamObserver<ListRoomResponse> responseObserver) {
+    ListRoomResponse[] pages = new ListRoomResponse[shardMap.size()];
+    AtomicInteger remaining = new AtomicInteger(pages.length);
+    for (int node = 0; node < pages.length; node++) {
+      int index = node;
+      AvalonRoomServiceGrpc.newStub(clusterClient.channel(node))
+          .withDeadlineAfter(options.scatterDeadlineMillis, TimeUnit.MILLISECONDS)
+          .listRooms(
+              request,
+              new StreamObserver<ListRoomResponse>() {
+                @Override
+                public void onNext(ListRoomResponse page) {
+                  pages[index] = page;
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                  logger.log(Level.WARNING, "Node " + index + " failed to list its rooms", t);
+                  done();
+                }
+
+                @Override
+                public void onCompleted() {
+                  done();
+                }
+
+                private void done() {
+                  if (remaining.decrementAndGet() == 0) {
+                    respond(request, pages, responseObserver);
+                  }
+                }
+              });
+    }
+  }
+
+  /** Answers with the rooms of the nodes that answered, as one page of the whole cluster. */
+  @SuppressWarnings("deprecation")
+  private static void respond(
+      ListRoomRequest request,
+      ListRoomResponse[] pages,
+      StreamObserver<ListRoomResponse> responseObserver) {
+    List<RoomListing> listings = new ArrayList<>();
+    boolean more = false;
+    boolean answered = false;
+    int version = 0;
+    for (ListRoomResponse page : pages) {
+      if (page != null) {
+        answered = true;
+        listings.addAll(page.getRoomListingList());
+        more |= !page.getNextPageToken().isEmpty();
+        version += page.getVersion();
+      }
+    }
+    if (!answered) {
+      responseObserver.onError(
+          Status.UNAVAILABLE.withDescription("No node listed its rooms").asRuntimeException());
+      return;
+    }
+
+    listings.sort(Comparator.comparing(listing -> listing.getRoom().getRoomName()));
+    // Every node returned its first rooms after the token, so the first ones overall are complete.
+    int pageSize = request.getPageSize() > 0 ? request.getPageSize() : listings.size();
+    if (listings.size() > pageSize) {
+      more = true;
+      listings = listings.subList(0, pageSize);
+    }
+    ListRoomResponse.Builder response =
+        ListRoomResponse.newBuilder().addAllRoomListing(listings).setVersion(version);
+    for (RoomListing listing : listings) {
+      response.addRoom(listing.getRoom());
+    }
+    if (more && !listings.isEmpty()) {
+      response.setNextPageToken(listings.get(listings.size() - 1).getRoom().getRoomName());
+    }
+
+    responseObserver.onNext(response.build());
+    responseObserver.onCompleted();
+  }
+
+  /** Relays one call to the node its first request names, and its responses back. */
+  private class Relay extends ServerCall.Listener<byte[]> {
+    private final MethodDescriptor<byte[], byte[]> method;
+    private final ServerCall<byte[], byte[]> serverCall;
+    private final Metadata headers;
+    private final ToIntFunction<byte[]> nodeOf;
+
+    @Nullable private volatile ClientCall<byte[], byte[]> clientCall;
+
+    /** The client has sent a request the node was not ready for, so no other is requested. */
+    @GuardedBy("this")
+    private boolean requestPending;
+
+    /** The node has sent a response the client was not ready for. */
+    @GuardedBy("this")
+    private boolean responsePending;
+
+    private volatile boolean closed;
+
+    Relay(
+        MethodDescriptor<byte[], byte[]> method,
+        ServerCall<byte[], byte[]> serverCall,
+        Metadata headers,
+        ToIntFunction<byte[]> nodeOf) {
+      this.method = method;
+      this.serverCall = serverCall;
+      this.headers = headers;
+      this.nodeOf = nodeOf;
+      serverCall.request(1);
+    }
+
+    @Override
+    public void onMessage(byte[] message) {
+      if (closed) {
+        return;
+      }
+
+      ClientCall<byte[], byte[]> call = clientCall;
+      if (call == null) {
+        call = connect(message);
+        if (call == null) {
+          return;
+        }
+      }
+
+      call.sendMessage(message);
+      synchronized (this) {
+        if (call.isReady()) {
+          serverCall.request(1);
+        } else {
+          requestPending = true;
+        }
+      }
+    }
+
+    @Nullable
+    private ClientCall<byte[], byte[]> connect(byte[] firstRequest) {
+      int node;
+      try {
+        node = nodeOf.applyAsInt(firstRequest);
+      } catch (RuntimeException e) {
+        close(Status.INVALID_ARGUMENT.withDescription("Unreadable request"));
+        return null;
+      }
+      if (node >= shardMap.size()) {
+        close(Status.NOT_FOUND.withDescription("No node " + node));
+        return null;
+      }
+
+      CallOptions callOptions = CallOptions.DEFAULT;
+      Deadline deadline = Context.current().getDeadline();
+      if (deadline != null) {
+        callOptions = callOptions.withDeadline(deadline);
+      }
+      ClientCall<byte[], byte[]> call = clusterClient.channel(node).newCall(method, callOptions);
+      clientCall = call;
+      call.start(new ResponseRelay(), headers);
+      call.request(1);
+      return call;
+    }
+
+    @Override
+    public void onHalfClose() {
+      ClientCall<byte[], byte[]> call = clientCall;
+      if (call != null) {
+        call.halfClose();
+      } else {
+        close(Status.INVALID_ARGUMENT.withDescription("No request"));
+      }
+    }
+
+    @Override
+    public void onCancel() {
+      ClientCall<byte[], byte[]> call = clientCall;
+      if (call != null) {
+        call.cancel("Cancelled by the client", null);
+      }
+    }
+
+    @Override
+    public void onReady() {
+      ClientCall<byte[], byte[]> call = clientCall;
+      synchronized (this) {
+        if (call != null && responsePending) {
+          responsePending = false;
+          call.request(1);
+        }
+      }
+    }
+
+    private void close(Status status) {
+      if (!closed) {
+        closed = true;
+        serverCall.close(status, new Metadata());
+      }
+    }
+
+    private class ResponseRelay extends ClientCall.Listener<byte[]> {
+      @Override
+      public void onHeaders(Metadata headers) {
+        serverCall.sendHeaders(headers);
+      }
+
+      @Override
+      public void onMessage(byte[] message) {
+        serverCall.sendMessage(message);
+        synchronized (Relay.this) {
+          if (serverCall.isReady()) {
+            clientCall.request(1);
+          } else {
+            responsePending = true;
+          }
+        }
+      }
+
+      @Override
+      public void onClose(Status status, Metadata trailers) {
+        if (!closed) {
+          closed = true;
+          serverCall.close(status, trailers);
+        }
+      }
+
+      @Override
+      public void onReady() {
+        synchronized (Relay.this) {
+          if (requestPending) {
+            requestPending = false;
+            serverCall.request(1);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Merges the WatchRooms streams of every node into one, with versions of its own. The client
+   * always starts from the empty reset sent first; a node's reset, sent when the proxy starts
+   * watching it or falls behind, becomes the updates and removals that bring the client to it.
+   */
+  private class DirectoryMerge {
+    private final WatchRoomsRequest request;
+    private final ServerCallStreamObserver<RoomDirectoryUpdate> observer;
+
+    @GuardedBy("this")
+    private final List<ClientCallStreamObserver<WatchRoomsRequest>> calls = new ArrayList<>();
+
+    /** Names of the rooms of each node the client knows of. */
+    @GuardedBy("this")
+    private final List<Set<String>> known = new ArrayList<>();
+
+    @GuardedBy("this")
+    private int version;
+
+    @GuardedBy("this")
+    private boolean closed;
+
+    DirectoryMerge(WatchRoomsRequest request, StreamObserver<RoomDirectoryUpdate> observer) {
+      this.request = request.toBuilder().setFromVersion(0).build();
+      this.observer = (ServerCallStreamObserver<RoomDirectoryUpdate>) observer;
+      for (int node = 0; node < shardMap.size(); node++) {
+        known.add(new HashSet<>());
+      }
+    }
+
+    void start() {
+      observer.setOnCancelHandler(() -> close(null));
+      synchronized (this) {
+        send(RoomDirectoryUpdate.newBuilder().setReset(RoomDirectoryUpdate.Reset.newBuilder()));
+      }
+
+      for (int node = 0; node < shardMap.size(); node++) {
+        int index = node;
+        AvalonRoomServiceGrpc.newStub(clusterClient.channel(node))
+            .watchRooms(
+                request,
+                new ClientResponseObserver<WatchRoomsRequest, RoomDirectoryUpdate>() {
+                  @Override
+                  public void beforeStart(ClientCallStreamObserver<WatchRoomsRequest> call) {
+                    synchronized (DirectoryMerge.this) {
+                      calls.add(call);
+                    }
+                  }
+
+                  @Override
+                  public void onNext(RoomDirectoryUpdate update) {
+                    merge(index, update);
+                  }
+
+                  @Override
+                  public void onError(Throwable t) {
+                    close(Status.fromThrowable(t));
+                  }
+
+                  @Override
+                  public void onCompleted() {
+                    close(Status.UNAVAILABLE.withDescription("Node " + index + " stopped"));
+                  }
+                });
+      }
+    }
+
+    private synchronized void merge(int node, RoomDirectoryUpdate update) {
+      Set<String> names = known.get(node);
+      switch (update.getUpdateCase()) {
+        case RESET:
+          Set<String> current = new HashSet<>();
+          for (RoomListing listing : update.getReset().getRoomListingList()) {
+            String name = listing.getRoom().getRoomName();
+            current.add(name);
+            send(
+                names.contains(name)
+                    ? RoomDirectoryUpdate.newBuilder().setUpdated(listing)
+                    : RoomDirectoryUpdate.newBuilder().setAdded(listing));
+          }
+          for (String name : names) {
+            if (!current.contains(name)) {
+              send(RoomDirectoryUpdate.newBuilder().setRemoved(name));
+            }
+          }
+          known.set(node, current);
+          break;
+        case ADDED:
+          names.add(update.getAdded().getRoom().getRoomName());
+          send(update.toBuilder());
+          break;
+        case UPDATED:
+          names.add(update.getUpdated().getRoom().getRoomName());
+          send(update.toBuilder());
+          break;
+        case REMOVED:
+          names.remove(update.getRemoved());
+          send(update.toBuilder());
+          break;
+        default:
+          break;
+      }
+    }
+
+    @GuardedBy("this")
+    private void send(RoomDirectoryUpdate.Builder update) {
+      if (closed) {
+        return;
+      }
+
+      try {
+        observer.onNext(update.setVersion(++version).build());
+      } catch (RuntimeException e) {
+        close(null);
+      }
+    }
+
+    /** Stops watching the nodes, and fails the client's stream with {@code status} if not null. */
+    private synchronized void close(@Nullable Status status) {
+      if (closed) {
+        return;
+      }
+
+      closed = true;
+      for (ClientCallStreamObserver<WatchRoomsRequest> call : calls) {
+        call.cancel("Stopped watching", null);
+      }
+      if (status != null) {
+        StreamObservers.failQuietly(observer, status);
+      }
+    }
+  }
+}
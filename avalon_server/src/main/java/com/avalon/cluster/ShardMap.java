@@ -0,0 +1,144 @@
+package com.avalon.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Tells which node of the cluster owns a room, a game or a user.
+ *
+ * <p>Rooms are placed by consistent hashing of their name onto a ring holding {@link
+ * #VIRTUAL_NODES} points per node, so a new node only takes over the rooms landing on its own
+ * points; a game lives on the node of its room. Game and user ids carry the index of the node that
+ * issued them in their high bits, so they are routed without a lookup. A node index is its position
+ * in {@link Options#nodes}, which therefore may only grow by appending.
+ */
+@Singleton
+public class ShardMap {
+  public static final int NODE_BITS = 7;
+  public static final int SEQUENCE_BITS = Integer.SIZE - 1 - NODE_BITS;
+  private static final int SEQUENCE_MASK = (1 << SEQUENCE_BITS) - 1;
+  private static final int VIRTUAL_NODES = 128;
+
+  public static class Options {
+    /** Addresses of the nodes, as host:port. */
+    final List<String> nodes;
+    /** Index of this process in {@link #nodes}. */
+    final int self;
+
+    public Options(List<String> nodes, int self) {
+      if (nodes.isEmpty() || nodes.size() > 1 << NODE_BITS) {
+        throw new IllegalArgumentException("Invalid number of nodes: " + nodes.size());
+      }
+      if (self < 0 || self >= nodes.size()) {
+        throw new IllegalArgumentException("Invalid node index: " + self);
+      }
+
+      this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+      this.self = self;
+    }
+  }
+
+  private final Options options;
+  /** Points of the ring in increasing order, and the node owning each. */
+  private final int[] points;
+
+  private final int[] owners;
+
+  @Inject
+  public ShardMap(Options options) {
+    this.options = options;
+
+    long[] ring = new long[options.nodes.size() * VIRTUAL_NODES];
+    for (int node = 0; node < options.nodes.size(); node++) {
+      for (int i = 0; i < VIRTUAL_NODES; i++) {
+        int point = hash(options.nodes.get(node) + "#" + i);
+        // Sorts by point, breaking ties by node index.
+        ring[node * VIRTUAL_NODES + i] = ((long) point << 32) | node;
+      }
+    }
+    Arrays.sort(ring);
+    this.points = new int[ring.length];
+    this.owners = new int[ring.length];
+    for (int i = 0; i < ring.length; i++) {
+      points[i] = (int) (ring[i] >> 32);
+      owners[i] = (int) ring[i];
+    }
+  }
+
+  public int self() {
+    return options.self;
+  }
+
+  public int size() {
+    return options.nodes.size();
+  }
+
+  public String address(int node) {
+    return options.nodes.get(node);
+  }
+
+  /** Returns the node owning {@code key}, such as a room name. */
+  public int nodeOf(String key) {
+    return nodeOf(key.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public int nodeOf(byte[] key) {
+    int hash = hash(key);
+    int low = 0;
+    int high = points.length;
+    // The first point at or after the hash, wrapping around to the first one.
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (points[middle] < hash) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return owners[low == points.length ? 0 : low];
+  }
+
+  public boolean owns(String key) {
+    return options.nodes.size() == 1 || nodeOf(key) == options.self;
+  }
+
+  /** Returns the {@code sequence}th id issued by this node. */
+  public int newId(int sequence) {
+    if (sequence > SEQUENCE_MASK) {
+      throw new IllegalStateException("Ids exhausted");
+    }
+    return options.self << SEQUENCE_BITS | sequence;
+  }
+
+  /** Returns the node that issued {@code id}. */
+  public static int nodeOfId(int id) {
+    return id >>> SEQUENCE_BITS;
+  }
+
+  public static int sequenceOf(int id) {
+    return id & SEQUENCE_MASK;
+  }
+
+  private static int hash(String key) {
+    return hash(key.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** FNV-1a followed by the murmur3 finalizer, identical in every process. */
+  private static int hash(byte[] key) {
+    int h = 0x811C9DC5;
+    for (byte b : key) {
+      h = (h ^ (b & 0xFF)) * 0x01000193;
+    }
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
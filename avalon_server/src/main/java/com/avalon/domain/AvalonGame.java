@@ -5,240 +5,694 @@ import com.avalon.proto.game.GameStatusUpdate;
 import com.avalon.proto.game.Proposal;
 import com.avalon.proto.game.Room;
 import com.avalon.proto.game.VoteForPlayerRequest;
+import com.avalon.proto.store.GameCreated;
+import com.avalon.proto.store.GameEvent;
+import com.avalon.proto.store.GameSnapshot;
+import com.avalon.proto.store.MissionVote;
+import com.avalon.proto.store.StoredEvent;
+import com.avalon.rules.GameRules;
+import com.avalon.rules.Rng;
+import com.avalon.rules.Role;
+import com.avalon.store.EventStore;
+import com.avalon.util.EncodedMessage;
 import com.avalon.util.ResponseException;
+import com.avalon.util.SerialExecutor;
+import com.avalon.util.TimerWheel;
+import io.grpc.stub.StreamObserver;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Random;
-import java.util.concurrent.atomic.AtomicInteger;
-
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A game played over the network, turning the events of its {@link GameRules} into logged and
+ * dispatched {@link GameStatusUpdate}s. Every method must be called from {@link #executor}.
+ */
 public class AvalonGame {
+  private static final Logger logger = Logger.getLogger(AvalonGame.class.getName());
+
+  static final int MAX_PLAYERS = GameRules.MAX_PLAYERS;
+
+  private static final int SNAPSHOT_INTERVAL = 64;
+
+  public static class Options {
+    final long voteWindowNanos;
+    final long turnTimeoutNanos;
+    final GameRules.Vote autoVote;
+    final boolean autoTaskSuccess;
+
+    /**
+     * @param voteWindowMillis how long a vote is held back to merge the votes cast meanwhile; 0
+     *     only merges the ones already queued, and a negative value never merges
+     * @param turnTimeoutMillis how long a turn waits before the game moves for the players, or 0 to
+     *     wait forever
+     * @param autoVote the vote cast on a team for a player who timed out, AGREE or DISAGREE
+     * @param autoTaskSuccess the vote cast on a mission for a team member who timed out
+     */
+    public Options(
+        long voteWindowMillis,
+        long turnTimeoutMillis,
+        VoteForPlayerRequest.Voting autoVote,
+        boolean autoTaskSuccess) {
+      if (autoVote != VoteForPlayerRequest.Voting.AGREE
+          && autoVote != VoteForPlayerRequest.Voting.DISAGREE) {
+        throw new IllegalArgumentException("Invalid automatic vote " + autoVote);
+      }
+      this.voteWindowNanos =
+          voteWindowMillis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(voteWindowMillis);
+      this.turnTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(turnTimeoutMillis, 0));
+      this.autoVote = vote(autoVote);
+      this.autoTaskSuccess = autoTaskSuccess;
+    }
+  }
+
+  private final int gameId;
   private final Room room;
-  private final AtomicInteger index = new AtomicInteger();
-  final MessageDispatcher<GameStatusUpdate> messageDispatcher = new MessageDispatcher<>();
-  private final List<com.avalon.proto.game.Character> characters = new ArrayList<>();
-
-  final List<GameStatusUpdate> gameStatusUpdateList = new ArrayList<>();
-  private final List<VoteForPlayerRequest.Voting> currentVote;
-  private final List<Boolean> taskVote;
-  private int leader;
-  private int ladyByTheLake;
-  private int mission = 0;
-  private int round = 0;
-  private boolean allowProposal = true;
-  private List<Integer> lastChoice;
-
-  AvalonGame(Room room) {
+  private final Options options;
+  private final TimerWheel timerWheel;
+  private final EventStore eventStore;
+  final SerialExecutor executor;
+  private int index = 0;
+  final MessageDispatcher<GameStatusUpdate> messageDispatcher;
+  /** Streams of the users not seated in the game, however many watch it. */
+  final BroadcastRing<GameStatusUpdate> spectatorRing;
+
+  volatile long lastActivityNanos = System.nanoTime();
+  volatile boolean finished;
+  private final List<Character> characters = new ArrayList<>();
+  private final GameRules rules;
+  final GameStartUpdates startUpdates;
+
+  /** Updates after {@link #historyBase}; the ones before it are covered by the snapshot. */
+  private final List<EncodedMessage<GameStatusUpdate>> gameStatusUpdateList = new ArrayList<>();
+
+  private int historyBase = 0;
+  private EncodedMessage<GameStatusUpdate> snapshotUpdate;
+  private boolean missionEnded;
+
+  /** Votes held back to be dispatched as one update, and their hidden choices. */
+  @Nullable private GameStatusUpdate.Votes.Builder pendingVotes;
+
+  private GameEvent.Builder pendingBallots;
+
+  @Nullable private TimerWheel.Timeout flushTimeout;
+
+  /** The proposal being applied, dispatched as sent rather than rebuilt from its team. */
+  @Nullable private Proposal proposal;
+
+  /** Counts the turns, so that the timeout of a turn that ended in the meantime does nothing. */
+  private int turn;
+
+  @Nullable private TimerWheel.Timeout turnTimeout;
+
+  private AvalonGame(
+      int gameId,
+      Room room,
+      List<Character> characters,
+      int leader,
+      Options options,
+      Executor executor,
+      TimerWheel timerWheel,
+      DispatcherFactory dispatcherFactory,
+      EventStore eventStore) {
+    this.gameId = gameId;
     this.room = room;
+    this.options = options;
+    this.timerWheel = timerWheel;
+    this.eventStore = eventStore;
+    this.executor = new SerialExecutor(executor);
+    this.messageDispatcher =
+        dispatcherFactory.create(
+            this.executor,
+            (viewer, lastDelivered) ->
+                catchUpAfter(lastDelivered == null ? 0 : lastDelivered.message().getIndex()));
+    this.spectatorRing =
+        dispatcherFactory.createRing(this.executor, GameStatusUpdate::getIndex, this::catchUpAfter);
+
+    this.characters.addAll(characters);
+    Role[] roles = roles(characters);
+    this.rules =
+        new GameRules(
+            roles, leader, room.getMaximumRound(), room.getHasLadyByTheLake(), new Emitter());
+    this.startUpdates = new GameStartUpdates(gameId, roles);
+  }
 
-    characters.addAll(room.getCharacterList());
-    Collections.shuffle(characters);
-    currentVote = new ArrayList<>(room.getCharacterCount());
-    taskVote = new ArrayList<>(room.getCharacterCount());
+  static AvalonGame create(
+      int gameId,
+      Room room,
+      Options options,
+      Executor executor,
+      TimerWheel timerWheel,
+      DispatcherFactory dispatcherFactory,
+      EventStore eventStore,
+      Rng rng) {
+    List<Character> characters = new ArrayList<>(room.getCharacterList());
+    rng.shuffle(characters);
+    int leader = rng.nextInt(characters.size());
+
+    eventStore.append(
+        StoredEvent.newBuilder()
+            .setGameCreated(
+                GameCreated.newBuilder()
+                    .setGameId(gameId)
+                    .setRoomName(room.getRoomName())
+                    .addAllCharacter(characters)
+                    .setLeader(leader))
+            .build());
+
+    AvalonGame avalonGame =
+        new AvalonGame(
+            gameId,
+            room,
+            characters,
+            leader,
+            options,
+            executor,
+            timerWheel,
+            dispatcherFactory,
+            eventStore);
+    avalonGame.rules.start();
+    return avalonGame;
+  }
 
-    leader = new Random().nextInt(characters.size());
-    ladyByTheLake = leader;
-    newRound();
+  /** Recreates a game from its {@link GameCreated} record, before its events are restored. */
+  static AvalonGame restore(
+      GameCreated gameCreated,
+      Room room,
+      Options options,
+      Executor executor,
+      TimerWheel timerWheel,
+      DispatcherFactory dispatcherFactory,
+      EventStore eventStore) {
+    return new AvalonGame(
+        gameCreated.getGameId(),
+        room,
+        gameCreated.getCharacterList(),
+        gameCreated.getLeader(),
+        options,
+        executor,
+        timerWheel,
+        dispatcherFactory,
+        eventStore);
   }
 
   public void propose(Proposal proposal) throws ResponseException {
-    if (!allowProposal) {
-      throw new ResponseException("Currently not supported to propose");
+    this.proposal = proposal;
+    try {
+      rules.propose(proposal.getFromWhom(), rules.team(proposal.getPlayersList()));
+    } finally {
+      this.proposal = null;
     }
+  }
+
+  public void voteForPlayer(int who, VoteForPlayerRequest.Voting voting) throws ResponseException {
+    rules.voteForPlayer(who, vote(voting));
+  }
 
-    if (proposal.getFromWhom() == leader) {
-      lastChoice = proposal.getPlayersList();
+  public void voteForTask(int who, boolean success) throws ResponseException {
+    rules.voteForTask(who, success);
+  }
+
+  public boolean ladyTest(int who, int whom) throws ResponseException {
+    return rules.ladyTest(who, whom);
+  }
+
+  public void assassinate(int who, int whom) {
+    // TODO: impl later.
+  }
+
+  /**
+   * Subscribes {@code observer} to this game, first replaying the updates after {@code fromIndex}.
+   *
+   * @param spectator whether to read from the spectator ring rather than the dispatcher
+   * @param bulkHistory whether to replay the updates as one {@link HistoryBlock}
+   */
+  void subscribe(
+      StreamObserver<EncodedMessage<GameStatusUpdate>> observer,
+      int fromIndex,
+      boolean spectator,
+      boolean bulkHistory)
+      throws ResponseException {
+    if (fromIndex < 0 || fromIndex > index) {
+      throw new ResponseException("Invalid from_index");
+    }
+    if (spectator) {
+      if (bulkHistory && index - fromIndex > 1) {
+        spectatorRing.add(observer, fromIndex, packed(catchUpAfter(fromIndex)));
+      } else {
+        spectatorRing.add(observer, fromIndex);
+      }
+      return;
     }
 
-    GameStatusUpdate gameStatusUpdate =
-        GameStatusUpdate.newBuilder()
-            .setIndex(index.incrementAndGet())
-            .setProposal(proposal)
-            .build();
-    dispatchAndLog(gameStatusUpdate);
+    EncodedMessage<GameStatusUpdate> resumedFrom;
+    if (fromIndex == 0 || fromIndex < historyBase) {
+      resumedFrom = null;
+    } else if (fromIndex == historyBase) {
+      resumedFrom = snapshotUpdate;
+    } else {
+      resumedFrom = gameStatusUpdateList.get(fromIndex - historyBase - 1);
+    }
+    List<EncodedMessage<GameStatusUpdate>> catchUp = catchUpAfter(fromIndex);
+    messageDispatcher.add(
+        observer, bulkHistory && catchUp.size() > 1 ? packed(catchUp) : catchUp, resumedFrom);
+  }
 
-    maybeTriggerRoundEnd();
+  private static List<EncodedMessage<GameStatusUpdate>> packed(
+      List<EncodedMessage<GameStatusUpdate>> catchUp) {
+    List<GameStatusUpdate> updates = new ArrayList<>(catchUp.size());
+    for (EncodedMessage<GameStatusUpdate> update : catchUp) {
+      updates.add(update.message());
+    }
+    return Collections.singletonList(EncodedMessage.of(HistoryBlock.pack(updates)));
   }
 
-  public void voteForPlayer(int who, VoteForPlayerRequest.Voting voting) {
-    currentVote.set(who, voting);
+  /**
+   * Returns the updates after {@code fromIndex}, starting with the latest snapshot if some of them
+   * are no longer kept in memory.
+   */
+  private List<EncodedMessage<GameStatusUpdate>> catchUpAfter(int fromIndex) {
+    if (fromIndex >= historyBase) {
+      return new ArrayList<>(
+          gameStatusUpdateList.subList(fromIndex - historyBase, gameStatusUpdateList.size()));
+    }
 
-    GameStatusUpdate gameStatusUpdate =
-        GameStatusUpdate.newBuilder()
-            .setIndex(index.incrementAndGet())
-            .setVotedForPlayer(
-                GameStatusUpdate.VotedForPlayer.newBuilder()
-                    .setFromWhom(who)
-                    .setVoted(voting != VoteForPlayerRequest.Voting.UNKNOWN)
-                    .build())
-            .build();
-    dispatchAndLog(gameStatusUpdate);
+    List<EncodedMessage<GameStatusUpdate>> catchUp =
+        new ArrayList<>(gameStatusUpdateList.size() + 1);
+    catchUp.add(snapshotUpdate);
+    catchUp.addAll(gameStatusUpdateList);
+    return catchUp;
   }
 
-  public void voteForTask(int who, boolean success) throws ResponseException {
-    if (!lastChoice.contains(who)) {
-      throw new ResponseException("Not in the task team");
+  /**
+   * Snapshots the game at the end of a mission or every so many updates, dropping the updates it
+   * covers. Must be called between actions.
+   */
+  void maybeSnapshot() {
+    if (!missionEnded && index - historyBase < SNAPSHOT_INTERVAL) {
+      return;
     }
 
-    taskVote.set(who, success);
+    missionEnded = false;
+    flushVotes();
+    GameStatusUpdate.Snapshot.Builder state =
+        GameStatusUpdate.Snapshot.newBuilder()
+            .setMission(rules.mission())
+            .setRound(rules.round())
+            .setLeader(rules.leader())
+            .setLadyByTheLake(rules.ladyByTheLake())
+            .addAllMissionResult(rules.missionResults())
+            .setAllowProposal(rules.allowProposal());
+
+    GameSnapshot.Builder gameSnapshot =
+        GameSnapshot.newBuilder().setGameId(gameId).setIndex(index).addAllCharacter(characters);
+    for (int i = 0; i < rules.playerCount(); i++) {
+      long bit = 1L << i;
+      if ((rules.teamMask() & bit) != 0) {
+        state.addTeam(i);
+      }
 
-    GameStatusUpdate gameStatusUpdate =
-        GameStatusUpdate.newBuilder()
-            .setIndex(index.incrementAndGet())
-            .setVotedForMission(GameStatusUpdate.VotedForMission.newBuilder().setFromWhom(who).build())
-            .build();
-    dispatchAndLog(gameStatusUpdate);
+      if ((rules.votedMask() & bit) == 0) {
+        gameSnapshot.addCurrentVote(VoteForPlayerRequest.Voting.UNKNOWN);
+      } else {
+        gameSnapshot.addCurrentVote(
+            (rules.agreedMask() & bit) != 0
+                ? VoteForPlayerRequest.Voting.AGREE
+                : VoteForPlayerRequest.Voting.DISAGREE);
+        state.addVotedForPlayer(i);
+      }
 
-    boolean allVoted = true;
-    boolean isAllSuccess = true;
-    for (Integer integer : lastChoice) {
-      Boolean vote = taskVote.get(integer);
-      if (vote == null) {
-        allVoted = false;
+      if ((rules.taskVotedMask() & bit) == 0) {
+        gameSnapshot.addTaskVote(MissionVote.MISSION_VOTE_NONE);
       } else {
-        isAllSuccess &= vote;
+        gameSnapshot.addTaskVote(
+            (rules.taskFailedMask() & bit) != 0
+                ? MissionVote.MISSION_VOTE_FAIL
+                : MissionVote.MISSION_VOTE_SUCCESS);
+        state.addVotedForMission(i);
       }
     }
+    gameSnapshot.setState(state);
 
-    if (!allVoted) {
-      return;
+    if (eventStore.isPersistent()) {
+      eventStore.append(StoredEvent.newBuilder().setGameSnapshot(gameSnapshot).build());
+    }
+    applySnapshot(gameSnapshot.build());
+  }
+
+  /** Replaces the whole state of the game with {@code gameSnapshot}. */
+  void restore(GameSnapshot gameSnapshot) {
+    GameStatusUpdate.Snapshot state = gameSnapshot.getState();
+    index = gameSnapshot.getIndex();
+    characters.clear();
+    characters.addAll(gameSnapshot.getCharacterList());
+    rules.restore(
+        roles(characters),
+        state.getMission(),
+        state.getRound(),
+        state.getLeader(),
+        state.getLadyByTheLake(),
+        state.getAllowProposal(),
+        rules.team(state.getTeamList()),
+        state.getMissionResultList());
+    finished = rules.finished();
+
+    for (int i = 0; i < gameSnapshot.getCurrentVoteCount(); i++) {
+      rules.applyVote(i, vote(gameSnapshot.getCurrentVote(i)));
+    }
+    for (int i = 0; i < gameSnapshot.getTaskVoteCount(); i++) {
+      MissionVote missionVote = gameSnapshot.getTaskVote(i);
+      if (missionVote != MissionVote.MISSION_VOTE_NONE) {
+        rules.applyTaskVote(i, missionVote == MissionVote.MISSION_VOTE_SUCCESS);
+      }
     }
 
-    triggerMissionResult(isAllSuccess);
+    applySnapshot(gameSnapshot);
   }
 
-  public boolean ladyTest(int who, int whom) {
-    ladyByTheLake = whom;
+  /** Completes every stream of the game and returns what is left of its history. */
+  List<GameStatusUpdate> close() {
+    cancelTurnTimeout();
+    flushVotes();
+    messageDispatcher.close(null);
+    spectatorRing.close();
 
-    GameStatusUpdate gameStatusUpdate =
-        GameStatusUpdate.newBuilder()
-            .setIndex(index.incrementAndGet())
-            .setLadyTestDone(
-                GameStatusUpdate.LadyTestDone.newBuilder().setFromWhom(who).setToWhom(whom).build())
-            .build();
-    dispatchAndLog(gameStatusUpdate);
+    List<GameStatusUpdate> history = new ArrayList<>();
+    for (EncodedMessage<GameStatusUpdate> encodedMessage : catchUpAfter(0)) {
+      history.add(encodedMessage.message());
+    }
+    return history;
+  }
 
-    return isBlue(characters.get(whom));
+  private void applySnapshot(GameSnapshot gameSnapshot) {
+    snapshotUpdate =
+        EncodedMessage.of(
+            GameStatusUpdate.newBuilder()
+                .setIndex(gameSnapshot.getIndex())
+                .setSnapshot(gameSnapshot.getState())
+                .build());
+    historyBase = gameSnapshot.getIndex();
+    gameStatusUpdateList.clear();
   }
 
-  public void assassinate(int who, int whom) {
-    // TODO: impl later.
+  /** Replays a logged event without dispatching or logging it again. */
+  void restore(GameEvent gameEvent) {
+    GameStatusUpdate gameStatusUpdate = gameEvent.getUpdate();
+    index = gameStatusUpdate.getIndex();
+    switch (gameStatusUpdate.getUpdateCase()) {
+      case ROUND_START:
+        rules.applyRoundStart(
+            gameStatusUpdate.getRoundStart().getRound(),
+            gameStatusUpdate.getRoundStart().getLeader());
+        break;
+      case PROPOSAL:
+        Proposal proposal = gameStatusUpdate.getProposal();
+        rules.applyProposal(proposal.getFromWhom(), rules.team(proposal.getPlayersList()));
+        break;
+      case VOTED_FOR_PLAYER:
+        rules.applyVote(
+            gameStatusUpdate.getVotedForPlayer().getFromWhom(), vote(gameEvent.getBallot()));
+        break;
+      case VOTED_RESULT:
+        rules.applyVotedResult(gameStatusUpdate.getVotedResult().getTotallyAgreed());
+        break;
+      case VOTED_FOR_MISSION:
+        rules.applyTaskVote(
+            gameStatusUpdate.getVotedForMission().getFromWhom(), gameEvent.getTaskSuccess());
+        break;
+      case VOTES:
+        GameStatusUpdate.Votes votes = gameStatusUpdate.getVotes();
+        for (int i = 0; i < votes.getVotedForPlayerCount(); i++) {
+          rules.applyVote(votes.getVotedForPlayer(i).getFromWhom(), vote(gameEvent.getBallots(i)));
+        }
+        for (int i = 0; i < votes.getVotedForMissionCount(); i++) {
+          rules.applyTaskVote(
+              votes.getVotedForMission(i).getFromWhom(), gameEvent.getTaskSuccesses(i));
+        }
+        break;
+      case MISSION_RESULT:
+        rules.applyMissionResult(gameStatusUpdate.getMissionResult());
+        finished = rules.finished();
+        break;
+      case LADY_TEST_DONE:
+        rules.applyLadyTest(gameStatusUpdate.getLadyTestDone().getToWhom());
+        break;
+      default:
+        break;
+    }
+
+    gameStatusUpdateList.add(EncodedMessage.of(gameStatusUpdate));
   }
 
-  private void maybeTriggerRoundEnd() {
-    if (lastChoice == null || !hasAllVoted()) {
-      return;
+  /** Returns the votes held back, first dispatching the ones on the other question. */
+  private GameStatusUpdate.Votes.Builder pendingVotes(boolean forMission) {
+    if (pendingVotes != null
+        && (forMission
+                ? pendingVotes.getVotedForPlayerCount()
+                : pendingVotes.getVotedForMissionCount())
+            > 0) {
+      flushVotes();
+    }
+    if (pendingVotes == null) {
+      pendingVotes = GameStatusUpdate.Votes.newBuilder();
+      pendingBallots = GameEvent.newBuilder();
     }
 
-    allowProposal = false;
+    return pendingVotes;
+  }
 
-    List<Integer> agreedPlayers = agreedPlayers();
-    boolean totallyAgreed = agreedPlayers.size() > currentVote.size() / 2;
+  /** Schedules the dispatch of the votes held back once the first of them has been added. */
+  private void scheduleFlush() {
+    if (pendingVotes.getVotedForPlayerCount() + pendingVotes.getVotedForMissionCount() > 1) {
+      return;
+    }
 
-    GameStatusUpdate gameStatusUpdate =
-        GameStatusUpdate.newBuilder()
-            .setIndex(index.incrementAndGet())
-            .setVotedResult(
-                GameStatusUpdate.VotedResult.newBuilder()
-                    .setTotallyAgreed(totallyAgreed)
-                    .addAllAgreed(agreedPlayers)
-                    .build())
-            .build();
-    dispatchAndLog(gameStatusUpdate);
+    if (options.voteWindowNanos == 0) {
+      // Runs after the actions already queued, whose votes then join this update.
+      executor.execute(this::flushVotes);
+    } else {
+      flushTimeout =
+          timerWheel.schedule(
+              options.voteWindowNanos, TimeUnit.NANOSECONDS, executor, this::flushVotes);
+    }
+  }
 
-    if (totallyAgreed) {
-      allowProposal = false;
-      for (int i = 0; i < taskVote.size(); i++) {
-        taskVote.set(i, null);
-      }
+  /** Restarts the turn timeout for the move the game now waits for. */
+  void startTurn() {
+    cancelTurnTimeout();
+    if (finished || options.turnTimeoutNanos == 0) {
       return;
     }
 
-    round++;
-    if (round == room.getMaximumRound()) {
-      triggerMissionResult(false);
+    int timedOutTurn = ++turn;
+    turnTimeout =
+        timerWheel.schedule(
+            options.turnTimeoutNanos,
+            TimeUnit.NANOSECONDS,
+            executor,
+            () -> turnTimedOut(timedOutTurn));
+  }
+
+  private void cancelTurnTimeout() {
+    if (turnTimeout != null) {
+      turnTimeout.cancel();
+      turnTimeout = null;
+    }
+  }
+
+  /** Makes the moves the turn still waits for, with the configured choices. */
+  private void turnTimedOut(int timedOutTurn) {
+    if (timedOutTurn != turn || finished) {
       return;
     }
 
-    newRound();
+    turnTimeout = null;
+    try {
+      if (rules.teamMask() == 0) {
+        int leader = rules.leader();
+        Proposal.Builder autoProposal = Proposal.newBuilder().setFromWhom(leader);
+        int teamSize = GameRules.teamSize(rules.playerCount(), rules.mission());
+        for (int i = 0; i < teamSize; i++) {
+          autoProposal.addPlayers((leader + i) % rules.playerCount());
+        }
+        propose(autoProposal.build());
+      } else if (rules.allowProposal()) {
+        long missing = ~rules.votedMask() & ((1L << rules.playerCount()) - 1);
+        for (; missing != 0; missing &= missing - 1) {
+          rules.voteForPlayer(Long.numberOfTrailingZeros(missing), options.autoVote);
+        }
+      } else {
+        long missing = rules.teamMask() & ~rules.taskVotedMask();
+        for (; missing != 0; missing &= missing - 1) {
+          rules.voteForTask(Long.numberOfTrailingZeros(missing), options.autoTaskSuccess);
+        }
+      }
+    } catch (ResponseException e) {
+      logger.log(Level.WARNING, "Automatic move rejected in game " + gameId, e);
+    }
+    maybeSnapshot();
   }
 
-  private void newRound() {
-    leader = leader + 1;
-    if (leader == currentVote.size()) {
-      leader = 0;
+  /** Dispatches the votes held back, if any, as a single update. */
+  private void flushVotes() {
+    if (flushTimeout != null) {
+      flushTimeout.cancel();
+      flushTimeout = null;
     }
 
-    lastChoice = null;
-    for (int i = 0; i < currentVote.size(); i++) {
-      currentVote.set(i, VoteForPlayerRequest.Voting.UNKNOWN);
+    GameStatusUpdate.Votes.Builder votes = pendingVotes;
+    if (votes == null) {
+      return;
     }
 
-    GameStatusUpdate gameStatusUpdate =
-        GameStatusUpdate.newBuilder()
-            .setIndex(index.incrementAndGet())
-            .setRoundStart(
-                GameStatusUpdate.RoundStart.newBuilder().setRound(round).setLeader(leader).build())
-            .build();
-    dispatchAndLog(gameStatusUpdate);
+    pendingVotes = null;
+    dispatchAndLog(GameStatusUpdate.newBuilder().setVotes(votes), pendingBallots);
+  }
 
-    allowProposal = true;
+  private void dispatchAndLog(GameStatusUpdate.Builder gameStatusUpdate) {
+    dispatchAndLog(gameStatusUpdate, GameEvent.newBuilder());
   }
 
-  private void triggerMissionResult(boolean success) {
-    GameStatusUpdate gameStatusUpdate =
-        GameStatusUpdate.newBuilder()
-            .setIndex(index.incrementAndGet())
-            .setMissionResult(success)
-            .build();
-    dispatchAndLog(gameStatusUpdate);
+  /**
+   * Assigns the next index to the update and dispatches it, after any votes held back so that the
+   * indexes stay in dispatch order.
+   *
+   * @param gameEvent hidden details of the update, written to the event store only
+   */
+  private void dispatchAndLog(
+      GameStatusUpdate.Builder gameStatusUpdateBuilder, GameEvent.Builder gameEvent) {
+    flushVotes();
+
+    GameStatusUpdate gameStatusUpdate = gameStatusUpdateBuilder.setIndex(++index).build();
+    EncodedMessage<GameStatusUpdate> encodedMessage = EncodedMessage.of(gameStatusUpdate);
+    if (eventStore.isPersistent()) {
+      eventStore.append(
+          StoredEvent.newBuilder()
+              .setGameEvent(gameEvent.setGameId(gameId).setUpdate(gameStatusUpdate))
+              .build());
+    }
 
-    lastChoice = null;
-    allowProposal = true;
-    mission++;
-    round = 0;
+    messageDispatcher.dispatch(encodedMessage);
+    spectatorRing.publish(encodedMessage);
+    gameStatusUpdateList.add(encodedMessage);
+  }
 
+  private static Role[] roles(List<Character> characters) {
+    Role[] roles = new Role[characters.size()];
+    for (int i = 0; i < roles.length; i++) {
+      Character character = characters.get(i);
+      roles[i] =
+          character == Character.UNRECOGNIZED
+              ? Role.UNKNOWN
+              : Role.forNumber(character.getNumber());
+    }
+    return roles;
+  }
 
-    if (false) {
-      GameStatusUpdate gameStatusUpdate3 =
-          GameStatusUpdate.newBuilder()
-              .setIndex(index.incrementAndGet())
-              .setLadyTestStarted(GameStatusUpdate.LadyTestStarted.newBuilder().build())
-              .build();
-      dispatchAndLog(gameStatusUpdate3);
-    } else {
-      newRound();
+  private static GameRules.Vote vote(VoteForPlayerRequest.Voting voting) {
+    switch (voting) {
+      case AGREE:
+        return GameRules.Vote.AGREE;
+      case DISAGREE:
+        return GameRules.Vote.DISAGREE;
+      default:
+        return GameRules.Vote.NONE;
     }
   }
 
-  private boolean hasAllVoted() {
-    return currentVote.stream().allMatch(voting -> voting != VoteForPlayerRequest.Voting.UNKNOWN);
+  private static VoteForPlayerRequest.Voting voting(GameRules.Vote vote) {
+    switch (vote) {
+      case AGREE:
+        return VoteForPlayerRequest.Voting.AGREE;
+      case DISAGREE:
+        return VoteForPlayerRequest.Voting.DISAGREE;
+      default:
+        return VoteForPlayerRequest.Voting.UNKNOWN;
+    }
   }
 
-  private List<Integer> agreedPlayers() {
-    List<Integer> agreePlayers = new ArrayList<>();
-    for (int i = 0; i < currentVote.size(); i++) {
-      if (currentVote.get(i).equals(VoteForPlayerRequest.Voting.AGREE)) {
-        agreePlayers.add(i);
+  /** Logs and dispatches the events of the rules as they happen. */
+  private class Emitter implements GameRules.Listener {
+    @Override
+    public void roundStarted(int round, int leader) {
+      dispatchAndLog(
+          GameStatusUpdate.newBuilder()
+              .setRoundStart(
+                  GameStatusUpdate.RoundStart.newBuilder().setRound(round).setLeader(leader)));
+      startTurn();
+    }
+
+    @Override
+    public void proposed(int fromWhom, long team) {
+      dispatchAndLog(GameStatusUpdate.newBuilder().setProposal(proposal));
+      if (fromWhom == rules.leader()) {
+        startTurn();
       }
     }
 
-    return agreePlayers;
-  }
+    @Override
+    public void votedForPlayer(int who, GameRules.Vote vote) {
+      GameStatusUpdate.VotedForPlayer votedForPlayer =
+          GameStatusUpdate.VotedForPlayer.newBuilder()
+              .setFromWhom(who)
+              .setVoted(vote != GameRules.Vote.NONE)
+              .build();
+      if (options.voteWindowNanos < 0) {
+        dispatchAndLog(
+            GameStatusUpdate.newBuilder().setVotedForPlayer(votedForPlayer),
+            GameEvent.newBuilder().setBallot(voting(vote)));
+      } else {
+        pendingVotes(false).addVotedForPlayer(votedForPlayer);
+        pendingBallots.addBallots(voting(vote));
+        scheduleFlush();
+      }
+    }
 
-  private void dispatchAndLog(GameStatusUpdate gameStatusUpdate) {
-    messageDispatcher.dispatch(gameStatusUpdate);
-    gameStatusUpdateList.add(gameStatusUpdate);
-  }
+    @Override
+    public void votedResult(boolean approved, long agreed) {
+      GameStatusUpdate.VotedResult.Builder votedResult =
+          GameStatusUpdate.VotedResult.newBuilder().setTotallyAgreed(approved);
+      for (; agreed != 0; agreed &= agreed - 1) {
+        votedResult.addAgreed(Long.numberOfTrailingZeros(agreed));
+      }
+      dispatchAndLog(GameStatusUpdate.newBuilder().setVotedResult(votedResult));
+      if (approved) {
+        startTurn();
+      }
+    }
 
-  private static boolean isBlue(Character character) {
-    switch (character) {
-      case MERLIN:
-      case PERCIVAL:
-      case ARTHUR_SERVANT:
-        return true;
+    @Override
+    public void votedForTask(int who, boolean success) {
+      GameStatusUpdate.VotedForMission votedForMission =
+          GameStatusUpdate.VotedForMission.newBuilder().setFromWhom(who).build();
+      if (options.voteWindowNanos < 0) {
+        dispatchAndLog(
+            GameStatusUpdate.newBuilder().setVotedForMission(votedForMission),
+            GameEvent.newBuilder().setTaskSuccess(success));
+      } else {
+        pendingVotes(true).addVotedForMission(votedForMission);
+        pendingBallots.addTaskSuccesses(success);
+        scheduleFlush();
+      }
+    }
+
+    @Override
+    public void missionEnded(boolean success) {
+      dispatchAndLog(GameStatusUpdate.newBuilder().setMissionResult(success));
+      finished = rules.finished();
+      missionEnded = true;
     }
 
-    return false;
+    @Override
+    public void ladyTested(int who, int whom) {
+      dispatchAndLog(
+          GameStatusUpdate.newBuilder()
+              .setLadyTestDone(
+                  GameStatusUpdate.LadyTestDone.newBuilder().setFromWhom(who).setToWhom(whom)));
+    }
   }
 }
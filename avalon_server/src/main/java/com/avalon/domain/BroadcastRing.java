@@ -0,0 +1,293 @@
+package com.avalon.domain;
+
+import com.avalon.util.EncodedMessage;
+import com.avalon.util.LatencyHistogram;
+import com.avalon.util.StreamObservers;
+import com.google.protobuf.GeneratedMessageV3;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Fans indexed messages out to many readers from one ring, so publishing costs the same whatever
+ * their number. Readers that fall off the ring are resynced from the owner's history. {@link
+ * #publish}, {@link #add} and {@link #close} must run on {@code owner}.
+ */
+public class BroadcastRing<T extends GeneratedMessageV3> {
+  private final AtomicReferenceArray<EncodedMessage<T>> slots;
+  private final int mask;
+  private final Executor executor;
+  private final Executor owner;
+  private final ToIntFunction<T> indexOf;
+  private final IntFunction<List<EncodedMessage<T>>> catchUpAfter;
+  private final LatencyHistogram dispatchLag;
+  private final long stallTimeoutNanos;
+  private final Set<Reader> readers = ConcurrentHashMap.newKeySet();
+  private final AtomicBoolean pumpScheduled = new AtomicBoolean();
+
+  /** Index of the last published message. */
+  private volatile int published;
+
+  private volatile boolean closed;
+
+  /**
+   * @param capacity the number of messages a reader may fall behind, rounded up to a power of two
+   * @param indexOf the index of a message, which grows by one with each published message
+   * @param catchUpAfter returns the messages after an index, the first one possibly a snapshot
+   *     covering the ones that are no longer kept
+   */
+  BroadcastRing(
+      int capacity,
+      Executor executor,
+      Executor owner,
+      ToIntFunction<T> indexOf,
+      IntFunction<List<EncodedMessage<T>>> catchUpAfter,
+      LatencyHistogram dispatchLag,
+      long stallTimeoutNanos) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    this.slots = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.executor = executor;
+    this.owner = owner;
+    this.indexOf = indexOf;
+    this.catchUpAfter = catchUpAfter;
+    this.dispatchLag = dispatchLag;
+    this.stallTimeoutNanos = stallTimeoutNanos;
+  }
+
+  /** Makes {@code message} visible to every reader. */
+  void publish(EncodedMessage<T> message) {
+    int index = indexOf.applyAsInt(message.message());
+    slots.set(index & mask, message);
+    published = index;
+    schedulePump();
+  }
+
+  /**
+   * Adds a reader that receives the messages after {@code fromIndex}, from the ring when it still
+   * holds them and otherwise from the owner's history.
+   */
+  void add(StreamObserver<EncodedMessage<T>> streamObserver, int fromIndex) {
+    Reader reader = new Reader((ServerCallStreamObserver<EncodedMessage<T>>) streamObserver);
+    if (holds(fromIndex + 1)) {
+      reader.cursor = fromIndex;
+    } else {
+      reader.load(catchUpAfter.apply(fromIndex), fromIndex);
+    }
+    readers.add(reader);
+    reader.tryDrain();
+  }
+
+  /**
+   * Adds a reader that receives {@code initialMessages}, which stand for the messages after {@code
+   * fromIndex}, and then the ring's messages after the last of them.
+   */
+  void add(
+      StreamObserver<EncodedMessage<T>> streamObserver,
+      int fromIndex,
+      List<EncodedMessage<T>> initialMessages) {
+    Reader reader = new Reader((ServerCallStreamObserver<EncodedMessage<T>>) streamObserver);
+    reader.load(initialMessages, fromIndex);
+    readers.add(reader);
+    reader.tryDrain();
+  }
+
+  /** Completes the readers once they have received everything published so far. */
+  void close() {
+    closed = true;
+    schedulePump();
+  }
+
+  int size() {
+    return readers.size();
+  }
+
+  /** Evicts cancelled readers and fails the ones that made no progress for too long. */
+  void watchDog() {
+    long now = System.nanoTime();
+    for (Reader reader : readers) {
+      if (reader.observer.isCancelled()) {
+        readers.remove(reader);
+      } else if (reader.isStalled(now)) {
+        reader.fail(Status.DEADLINE_EXCEEDED.withDescription("Stream stalled"));
+      }
+    }
+  }
+
+  private boolean holds(int index) {
+    EncodedMessage<T> message = slots.get(index & mask);
+    return message != null && indexOf.applyAsInt(message.message()) == index;
+  }
+
+  private void schedulePump() {
+    if (!readers.isEmpty() && pumpScheduled.compareAndSet(false, true)) {
+      executor.execute(this::pump);
+    }
+  }
+
+  private void pump() {
+    // Cleared first, so that a message published during the walk schedules another one.
+    pumpScheduled.set(false);
+    for (Reader reader : readers) {
+      reader.tryDrain();
+    }
+  }
+
+  private class Reader {
+    private final ServerCallStreamObserver<EncodedMessage<T>> observer;
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /** Index of the last message handed to the observer, or loaded for it. */
+    private volatile int cursor;
+
+    /** History replayed before the ring is read again, after joining late or falling behind. */
+    @GuardedBy("this")
+    private final Queue<EncodedMessage<T>> loaded = new ArrayDeque<>();
+
+    private volatile boolean resyncing;
+    @Nullable private volatile Status closeStatus;
+    private volatile boolean done;
+    private volatile long lastProgressNanos = System.nanoTime();
+
+    Reader(ServerCallStreamObserver<EncodedMessage<T>> observer) {
+      this.observer = observer;
+      observer.setOnReadyHandler(this::tryDrain);
+      observer.setOnCancelHandler(() -> readers.remove(this));
+    }
+
+    /** Queues {@code messages}, the ones after {@code fromIndex}, before the rest of the ring. */
+    synchronized void load(List<EncodedMessage<T>> messages, int fromIndex) {
+      loaded.addAll(messages);
+      cursor =
+          messages.isEmpty()
+              ? fromIndex
+              : indexOf.applyAsInt(messages.get(messages.size() - 1).message());
+    }
+
+    /** Drains unless another thread already does, in which case that one sees the new work. */
+    void tryDrain() {
+      while (!done && draining.compareAndSet(false, true)) {
+        try {
+          drain();
+        } finally {
+          draining.set(false);
+        }
+
+        if (!hasWork()) {
+          return;
+        }
+      }
+    }
+
+    private boolean hasWork() {
+      if (done) {
+        return false;
+      }
+      if (closeStatus != null) {
+        return true;
+      }
+
+      boolean pending;
+      synchronized (this) {
+        pending = !loaded.isEmpty() || cursor < published || closed;
+      }
+      return pending && !resyncing && observer.isReady();
+    }
+
+    private void drain() {
+      while (true) {
+        Status status = closeStatus;
+        if (status != null) {
+          terminate(status);
+          return;
+        }
+        if (resyncing || !observer.isReady()) {
+          return;
+        }
+
+        EncodedMessage<T> next;
+        boolean dispatched = false;
+        synchronized (this) {
+          next = loaded.poll();
+        }
+        if (next == null) {
+          int index = cursor + 1;
+          if (index > published) {
+            if (closed) {
+              finish();
+            }
+            return;
+          }
+
+          next = slots.get(index & mask);
+          if (next == null || indexOf.applyAsInt(next.message()) != index) {
+            resync();
+            return;
+          }
+          cursor = index;
+          dispatched = true;
+        }
+
+        try {
+          observer.onNext(next);
+        } catch (RuntimeException e) {
+          readers.remove(this);
+          done = true;
+          return;
+        }
+        if (dispatched) {
+          dispatchLag.record(System.nanoTime() - next.createdNanos());
+        }
+        lastProgressNanos = System.nanoTime();
+      }
+    }
+
+    /** Replaces what the reader missed with the owner's history, then resumes from the ring. */
+    private void resync() {
+      resyncing = true;
+      int from = cursor;
+      owner.execute(
+          () -> {
+            load(catchUpAfter.apply(from), from);
+            resyncing = false;
+            tryDrain();
+          });
+    }
+
+    boolean isStalled(long now) {
+      boolean pending = cursor < published || resyncing;
+      return pending && now - lastProgressNanos > stallTimeoutNanos;
+    }
+
+    void fail(Status status) {
+      readers.remove(this);
+      closeStatus = status;
+      tryDrain();
+    }
+
+    private void finish() {
+      readers.remove(this);
+      done = true;
+      StreamObservers.completeQuietly(observer);
+    }
+
+    private void terminate(Status status) {
+      done = true;
+      if (!observer.isCancelled()) {
+        StreamObservers.failQuietly(observer, status);
+      }
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package com.avalon.domain;
+
+import com.avalon.metrics.Metrics;
+import com.avalon.util.EncodedMessage;
+import com.avalon.util.LatencyHistogram;
+import com.avalon.util.TimerWheel;
+import com.google.protobuf.GeneratedMessageV3;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Creates {@link MessageDispatcher}s and {@link BroadcastRing}s, and runs the watchdog over all of
+ * them in the background.
+ */
+@Singleton
+public class DispatcherFactory {
+  private final MessageDispatcher.Options options;
+  private final Executor executor;
+  private final LatencyHistogram dispatchLag;
+  private final Set<MessageDispatcher<?>> dispatchers = ConcurrentHashMap.newKeySet();
+  private final Set<BroadcastRing<?>> rings = ConcurrentHashMap.newKeySet();
+
+  @Inject
+  DispatcherFactory(
+      MessageDispatcher.Options options,
+      @Named("dispatchExecutor") Executor executor,
+      TimerWheel timerWheel,
+      @Named("watchdogPeriodMillis") long watchdogPeriodMillis,
+      Metrics metrics) {
+    this.options = options;
+    this.executor = executor;
+    this.dispatchLag =
+        metrics.histogram(
+            "avalon_dispatch_lag_seconds",
+            "Time from dispatching an update to handing it to a subscriber's stream.",
+            "");
+    metrics.gauge("avalon_dispatchers", "Live message dispatchers.", "", dispatchers::size);
+    metrics.gauge(
+        "avalon_dispatcher_subscribers",
+        "Subscribers across all message dispatchers.",
+        "",
+        this::subscribers);
+    metrics.gauge(
+        "avalon_ring_readers", "Readers across all broadcast rings.", "", this::ringReaders);
+    timerWheel.scheduleWithFixedDelay(
+        watchdogPeriodMillis, TimeUnit.MILLISECONDS, executor, this::watchDog);
+  }
+
+  <T extends GeneratedMessageV3> MessageDispatcher<T> create(
+      Executor owner, BiFunction<Integer, EncodedMessage<T>, List<EncodedMessage<T>>> resync) {
+    MessageDispatcher<T> messageDispatcher =
+        new MessageDispatcher<>(options, executor, owner, resync, dispatchLag);
+    dispatchers.add(messageDispatcher);
+    return messageDispatcher;
+  }
+
+  /** Creates a ring holding as many messages as a dispatcher queues for each subscriber. */
+  <T extends GeneratedMessageV3> BroadcastRing<T> createRing(
+      Executor owner, ToIntFunction<T> indexOf, IntFunction<List<EncodedMessage<T>>> catchUpAfter) {
+    BroadcastRing<T> broadcastRing =
+        new BroadcastRing<>(
+            options.queueCapacity,
+            executor,
+            owner,
+            indexOf,
+            catchUpAfter,
+            dispatchLag,
+            options.stallTimeoutNanos);
+    rings.add(broadcastRing);
+    return broadcastRing;
+  }
+
+  void release(MessageDispatcher<?> messageDispatcher) {
+    dispatchers.remove(messageDispatcher);
+  }
+
+  void release(BroadcastRing<?> broadcastRing) {
+    rings.remove(broadcastRing);
+  }
+
+  private long subscribers() {
+    long subscribers = 0;
+    for (MessageDispatcher<?> messageDispatcher : dispatchers) {
+      subscribers += messageDispatcher.size();
+    }
+    return subscribers;
+  }
+
+  private long ringReaders() {
+    long readers = 0;
+    for (BroadcastRing<?> broadcastRing : rings) {
+      readers += broadcastRing.size();
+    }
+    return readers;
+  }
+
+  private void watchDog() {
+    dispatchers.forEach(MessageDispatcher::watchDog);
+    rings.forEach(BroadcastRing::watchDog);
+  }
+}
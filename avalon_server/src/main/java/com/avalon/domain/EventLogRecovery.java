@@ -0,0 +1,101 @@
+package com.avalon.domain;
+
+import com.avalon.proto.store.StoredEvent;
+import com.avalon.store.EventStore;
+import com.avalon.util.ResponseException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.inject.Inject;
+
+/**
+ * Rebuilds users, rooms and games from the {@link EventStore} at startup.
+ *
+ * <p>Users, rooms and game creations are applied on the calling thread in log order; game events
+ * are handed to each game's own executor, so games replay in parallel while each stays ordered.
+ */
+public class EventLogRecovery {
+  private static final Logger logger = Logger.getLogger(EventLogRecovery.class.getName());
+
+  private final EventStore eventStore;
+  private final UserManager userManager;
+  private final RoomManager roomManager;
+  private final GameManager gameManager;
+
+  @Inject
+  EventLogRecovery(
+      EventStore eventStore,
+      UserManager userManager,
+      RoomManager roomManager,
+      GameManager gameManager) {
+    this.eventStore = eventStore;
+    this.userManager = userManager;
+    this.roomManager = roomManager;
+    this.gameManager = gameManager;
+  }
+
+  /** Replays the whole log and returns how long it took, in milliseconds. */
+  public long recover() throws IOException {
+    long start = System.nanoTime();
+    long[] events = new long[2];
+
+    eventStore.replay(
+        storedEvent -> {
+          events[0]++;
+          if (!apply(storedEvent)) {
+            events[1]++;
+          }
+        });
+
+    int games;
+    try {
+      games = gameManager.awaitRestored();
+    } catch (ResponseException e) {
+      throw new IOException("Failed to restore games", e);
+    }
+
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    logger.info(
+        String.format(
+            "Recovered %d rooms and %d games from %d events (%d skipped) in %d ms",
+            roomManager.size(), games, events[0], events[1], elapsedMillis));
+    return elapsedMillis;
+  }
+
+  private boolean apply(StoredEvent storedEvent) {
+    try {
+      switch (storedEvent.getEventCase()) {
+        case USER_CREATED:
+          userManager.restore(storedEvent.getUserCreated());
+          return true;
+        case ROOM_CREATED:
+          roomManager.restoreRoom(storedEvent.getRoomCreated());
+          return true;
+        case SEAT_ASSIGNED:
+          roomManager.restoreSeat(storedEvent.getSeatAssigned());
+          return true;
+        case GAME_CREATED:
+          roomManager.restoreGame(storedEvent.getGameCreated());
+          return true;
+        case GAME_EVENT:
+          return gameManager.restoreEvent(storedEvent.getGameEvent());
+        case GAME_SNAPSHOT:
+          return gameManager.restoreSnapshot(storedEvent.getGameSnapshot());
+        case ROOM_CLOSED:
+          roomManager.restoreRoomClosed(storedEvent.getRoomClosed());
+          return true;
+        case USER_REMOVED:
+          userManager.restore(storedEvent.getUserRemoved());
+          return true;
+        case IDS_RESERVED:
+          userManager.restore(storedEvent.getIdsReserved());
+          gameManager.restore(storedEvent.getIdsReserved());
+          return true;
+        default:
+          return false;
+      }
+    } catch (ResponseException e) {
+      return false;
+    }
+  }
+}
@@ -1,89 +1,351 @@
 package com.avalon.domain;
 
+import com.avalon.cluster.ShardMap;
+import com.avalon.metrics.Metrics;
 import com.avalon.proto.base.Auth;
 import com.avalon.proto.game.GameStatusUpdate;
+import com.avalon.proto.game.PlayRequest;
 import com.avalon.proto.game.Proposal;
 import com.avalon.proto.game.VoteForPlayerRequest;
+import com.avalon.proto.store.GameCreated;
+import com.avalon.proto.store.GameEvent;
+import com.avalon.proto.store.GameSnapshot;
+import com.avalon.proto.store.IdsReserved;
+import com.avalon.rules.Rng;
+import com.avalon.store.EventStore;
+import com.avalon.store.GameArchive;
+import com.avalon.util.EncodedMessage;
+import com.avalon.util.FunctionThatThrows;
 import com.avalon.util.ResponseException;
+import com.avalon.util.StatusOr;
+import com.avalon.util.TimerWheel;
 import io.grpc.stub.StreamObserver;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
-import javax.annotation.concurrent.GuardedBy;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
 
+@Singleton
 public class GameManager {
+  private static final Logger logger = Logger.getLogger(GameManager.class.getName());
+
   private final UserManager userManager;
+  private final AvalonGame.Options gameOptions;
+  private final Executor gameExecutor;
+  private final TimerWheel timerWheel;
+  private final DispatcherFactory dispatcherFactory;
+  private final EventStore eventStore;
+  private final ShardMap shardMap;
 
-  @GuardedBy("this")
-  private final Map<Integer, GameInfo> gameInfoMap = new HashMap<>();
+  private final Map<Integer, GameInfo> gameInfoMap = new ConcurrentHashMap<>();
 
   private final AtomicInteger atomicInteger = new AtomicInteger();
 
   @Inject
-  public GameManager(UserManager userManager) {
+  public GameManager(
+      UserManager userManager,
+      AvalonGame.Options gameOptions,
+      @Named("gameExecutor") Executor gameExecutor,
+      TimerWheel timerWheel,
+      DispatcherFactory dispatcherFactory,
+      EventStore eventStore,
+      ShardMap shardMap,
+      Metrics metrics) {
     this.userManager = userManager;
+    this.gameOptions = gameOptions;
+    this.gameExecutor = gameExecutor;
+    this.timerWheel = timerWheel;
+    this.dispatcherFactory = dispatcherFactory;
+    this.eventStore = eventStore;
+    this.shardMap = shardMap;
+    metrics.gauge("avalon_games", "Games in memory.", "", gameInfoMap::size);
+  }
+
+  public GameInfo createGame(RoomManager.RoomInfo roomInfo) {
+    int gameId = shardMap.newId(atomicInteger.incrementAndGet());
+    AvalonGame avalonGame =
+        AvalonGame.create(
+            gameId,
+            roomInfo.room,
+            gameOptions,
+            gameExecutor,
+            timerWheel,
+            dispatcherFactory,
+            eventStore,
+            Rng.threadLocal());
+    GameInfo gameInfo = new GameInfo(gameId, roomInfo, avalonGame);
+    gameInfoMap.put(gameId, gameInfo);
+
+    return gameInfo;
   }
 
-  public synchronized GameInfo createGame(RoomManager.RoomInfo roomInfo) {
-    int gameId = atomicInteger.incrementAndGet();
-    GameInfo gameInfo = new GameInfo(gameId, roomInfo);
+  GameInfo restoreGame(RoomManager.RoomInfo roomInfo, GameCreated gameCreated) {
+    int gameId = gameCreated.getGameId();
+    atomicInteger.accumulateAndGet(ShardMap.sequenceOf(gameId), Math::max);
+    AvalonGame avalonGame =
+        AvalonGame.restore(
+            gameCreated,
+            roomInfo.room,
+            gameOptions,
+            gameExecutor,
+            timerWheel,
+            dispatcherFactory,
+            eventStore);
+    GameInfo gameInfo = new GameInfo(gameId, roomInfo, avalonGame);
     gameInfoMap.put(gameId, gameInfo);
 
     return gameInfo;
   }
 
+  /** Never issues again the ids of the games that compaction dropped from the log. */
+  void restore(IdsReserved idsReserved) {
+    for (int id : idsReserved.getGameIdList()) {
+      atomicInteger.accumulateAndGet(ShardMap.sequenceOf(id), Math::max);
+    }
+  }
+
+  /** Replays {@code gameEvent} on its game's executor, so that games are restored in parallel. */
+  boolean restoreEvent(GameEvent gameEvent) {
+    GameInfo gameInfo = gameInfoMap.get(gameEvent.getGameId());
+    if (gameInfo == null) {
+      return false;
+    }
+
+    AvalonGame avalonGame = gameInfo.avalonGame;
+    avalonGame.executor.execute(() -> avalonGame.restore(gameEvent));
+    return true;
+  }
+
+  /**
+   * Removes the game and completes its streams, archiving what is left of its history if {@code
+   * gameArchive} is set.
+   */
+  void closeGame(GameInfo gameInfo, @Nullable GameArchive gameArchive)
+      throws ResponseException, IOException {
+    gameInfoMap.remove(gameInfo.gameId, gameInfo);
+    AvalonGame avalonGame = gameInfo.avalonGame;
+    List<GameStatusUpdate> history = avalonGame.executor.call(avalonGame::close);
+    dispatcherFactory.release(avalonGame.messageDispatcher);
+    dispatcherFactory.release(avalonGame.spectatorRing);
+
+    if (gameArchive != null) {
+      gameArchive.write(gameInfo.gameId, history);
+    }
+  }
+
+  void restoreGameClosed(int gameId) {
+    gameInfoMap.remove(gameId);
+  }
+
+  boolean restoreSnapshot(GameSnapshot gameSnapshot) {
+    GameInfo gameInfo = gameInfoMap.get(gameSnapshot.getGameId());
+    if (gameInfo == null) {
+      return false;
+    }
+
+    AvalonGame avalonGame = gameInfo.avalonGame;
+    avalonGame.executor.execute(() -> avalonGame.restore(gameSnapshot));
+    return true;
+  }
+
+  /**
+   * Waits until every event handed to {@link #restoreEvent} and the like has been replayed, then
+   * gives the players of each game a whole turn timeout again, since the restart took their time.
+   */
+  int awaitRestored() throws ResponseException {
+    for (GameInfo gameInfo : gameInfoMap.values()) {
+      AvalonGame avalonGame = gameInfo.avalonGame;
+      avalonGame.executor.call(
+          () -> {
+            avalonGame.startTurn();
+            return null;
+          });
+    }
+
+    return gameInfoMap.size();
+  }
+
   public void pollGameStatus(
-      Auth auth, int gameId, StreamObserver<GameStatusUpdate> responseObserver)
+      Auth auth,
+      int gameId,
+      int fromIndex,
+      boolean bulkHistory,
+      StreamObserver<EncodedMessage<GameStatusUpdate>> responseObserver)
       throws ResponseException {
-    userManager.validate(auth);
+    UserManager.UserInfo userInfo = userManager.validate(auth);
     GameInfo gameInfo = getGameInfo(gameId);
-    gameInfo.avalonGame.gameStatusUpdateList.forEach(responseObserver::onNext);
-    gameInfo.avalonGame.messageDispatcher.add(responseObserver);
+    boolean spectator = gameInfo.roomInfo.seatIndex.seatOf(userInfo.auth.getId()) < 0;
+    inGame(
+        gameInfo,
+        avalonGame -> {
+          avalonGame.subscribe(responseObserver, fromIndex, spectator, bulkHistory);
+          return null;
+        });
   }
 
   public void propose(Auth auth, int gameId, Proposal proposal) throws ResponseException {
-    userManager.validate(auth);
+    UserManager.UserInfo userInfo = userManager.validate(auth);
     GameInfo gameInfo = getGameInfo(gameId);
+    int who = seatOf(gameInfo, userInfo);
 
-    gameInfo.avalonGame.propose(proposal);
+    inGame(
+        gameInfo,
+        avalonGame -> {
+          avalonGame.propose(proposal.toBuilder().setFromWhom(who).build());
+          return null;
+        });
   }
 
   public void voteForPlayer(Auth auth, int gameId, VoteForPlayerRequest.Voting voting)
       throws ResponseException {
     UserManager.UserInfo userInfo = userManager.validate(auth);
     GameInfo gameInfo = getGameInfo(gameId);
-    int who = gameInfo.roomInfo.seats.get(userInfo.user);
+    int who = seatOf(gameInfo, userInfo);
 
-    gameInfo.avalonGame.voteForPlayer(who, voting);
+    inGame(
+        gameInfo,
+        avalonGame -> {
+          avalonGame.voteForPlayer(who, voting);
+          return null;
+        });
   }
 
   public boolean ladyTest(Auth auth, int gameId, int whom) throws ResponseException {
     UserManager.UserInfo userInfo = userManager.validate(auth);
     GameInfo gameInfo = getGameInfo(gameId);
-    int who = gameInfo.roomInfo.seats.get(userInfo.user);
+    int who = seatOf(gameInfo, userInfo);
 
-    return gameInfo.avalonGame.ladyTest(who, whom);
+    return inGame(gameInfo, avalonGame -> avalonGame.ladyTest(who, whom));
   }
 
   public void assassinate(Auth auth, int gameId, int whom) throws ResponseException {
     UserManager.UserInfo userInfo = userManager.validate(auth);
     GameInfo gameInfo = getGameInfo(gameId);
-    int who = gameInfo.roomInfo.seats.get(userInfo.user);
+    int who = seatOf(gameInfo, userInfo);
 
-    gameInfo.avalonGame.assassinate(who, whom);
+    inGame(
+        gameInfo,
+        avalonGame -> {
+          avalonGame.assassinate(who, whom);
+          return null;
+        });
   }
 
   public void voteFoTask(Auth auth, int gameId, boolean success) throws ResponseException {
     UserManager.UserInfo userInfo = userManager.validate(auth);
     GameInfo gameInfo = getGameInfo(gameId);
-    int who = gameInfo.roomInfo.seats.get(userInfo.user);
+    int who = seatOf(gameInfo, userInfo);
+
+    inGame(
+        gameInfo,
+        avalonGame -> {
+          avalonGame.voteForTask(who, success);
+          return null;
+        });
+  }
+
+  /**
+   * Validates {@code auth} and subscribes {@code responseObserver} like {@link #pollGameStatus},
+   * returning the binding that the actions of a Play stream then run under without validating
+   * again.
+   */
+  public Player bindPlayer(
+      Auth auth,
+      int gameId,
+      int fromIndex,
+      boolean bulkHistory,
+      StreamObserver<EncodedMessage<GameStatusUpdate>> responseObserver)
+      throws ResponseException {
+    UserManager.UserInfo userInfo = userManager.validate(auth);
+    GameInfo gameInfo = getGameInfo(gameId);
+    int seat = gameInfo.roomInfo.seatIndex.seatOf(userInfo.auth.getId());
+    inGame(
+        gameInfo,
+        avalonGame -> {
+          avalonGame.subscribe(responseObserver, fromIndex, seat < 0, bulkHistory);
+          return null;
+        });
+
+    return new Player(gameInfo, seat);
+  }
+
+  /**
+   * Queues the action of {@code request} on the game without waiting for it. {@code done} is called
+   * from the game's executor with the result, which is only set for a lady test.
+   */
+  public void play(Player player, PlayRequest request, Consumer<StatusOr<Boolean>> done) {
+    FunctionThatThrows<AvalonGame, Boolean, ResponseException> action;
+    switch (request.getActionCase()) {
+      case PROPOSAL:
+        action =
+            avalonGame -> {
+              avalonGame.propose(
+                  request.getProposal().toBuilder().setFromWhom(player.seat()).build());
+              return null;
+            };
+        break;
+      case VOTE_FOR_PLAYER:
+        action =
+            avalonGame -> {
+              avalonGame.voteForPlayer(player.seat(), request.getVoteForPlayer());
+              return null;
+            };
+        break;
+      case VOTE_FOR_TASK:
+        action =
+            avalonGame -> {
+              avalonGame.voteForTask(player.seat(), request.getVoteForTask());
+              return null;
+            };
+        break;
+      case LADY_TEST:
+        action = avalonGame -> avalonGame.ladyTest(player.seat(), request.getLadyTest());
+        break;
+      case ASSASSINATE:
+        action =
+            avalonGame -> {
+              avalonGame.assassinate(player.seat(), request.getAssassinate());
+              return null;
+            };
+        break;
+      default:
+        done.accept(StatusOr.failure("Unsupported action"));
+        return;
+    }
+
+    AvalonGame avalonGame = player.gameInfo.avalonGame;
+    avalonGame.executor.execute(
+        () -> {
+          avalonGame.lastActivityNanos = System.nanoTime();
+          StatusOr<Boolean> result;
+          try {
+            result = StatusOr.success(avalonGame).transform(action::apply);
+            avalonGame.maybeSnapshot();
+          } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Play action failed in game " + player.gameInfo.gameId, e);
+            result = StatusOr.failure("Internal error");
+          }
+          done.accept(result);
+        });
+  }
 
-    gameInfo.avalonGame.voteForTask(who, success);
+  private static int seatOf(GameInfo gameInfo, UserManager.UserInfo userInfo)
+      throws ResponseException {
+    int seat = gameInfo.roomInfo.seatIndex.seatOf(userInfo.auth.getId());
+    if (seat < 0) {
+      throw new ResponseException("Not seated in this game");
+    }
+
+    return seat;
   }
 
   private GameInfo getGameInfo(int gameId) throws ResponseException {
@@ -95,16 +357,47 @@ public class GameManager {
     return gameInfo;
   }
 
+  private static <T> T inGame(
+      GameInfo gameInfo, FunctionThatThrows<AvalonGame, T, ResponseException> action)
+      throws ResponseException {
+    AvalonGame avalonGame = gameInfo.avalonGame;
+    return avalonGame.executor.call(
+        () -> {
+          avalonGame.lastActivityNanos = System.nanoTime();
+          T result = action.apply(avalonGame);
+          avalonGame.maybeSnapshot();
+          return result;
+        });
+  }
+
+  /** A user bound to a game for the lifetime of a Play stream. */
+  public static class Player {
+    private final GameInfo gameInfo;
+    private final int seat;
+
+    private Player(GameInfo gameInfo, int seat) {
+      this.gameInfo = gameInfo;
+      this.seat = seat;
+    }
+
+    private int seat() throws ResponseException {
+      if (seat < 0) {
+        throw new ResponseException("Not seated in this game");
+      }
+
+      return seat;
+    }
+  }
+
   static class GameInfo {
     final int gameId;
     final RoomManager.RoomInfo roomInfo;
     final AvalonGame avalonGame;
 
-    private GameInfo(int gameId, RoomManager.RoomInfo roomInfo) {
+    private GameInfo(int gameId, RoomManager.RoomInfo roomInfo, AvalonGame avalonGame) {
       this.gameId = gameId;
       this.roomInfo = roomInfo;
-
-      avalonGame = new AvalonGame(roomInfo.room);
+      this.avalonGame = avalonGame;
     }
   }
 }
@@ -0,0 +1,58 @@
+package com.avalon.domain;
+
+import com.avalon.proto.game.Character;
+import com.avalon.proto.service.RoomUpdate;
+import com.avalon.rules.Role;
+import com.avalon.rules.Visibility;
+import com.avalon.util.EncodedMessage;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The {@link RoomUpdate.GameStartUpdate} each member of a room is sent when a game starts or when
+ * it rejoins, telling a seated player its character and what that character knows. The update of a
+ * role is built and serialized once per game, so sending it to every player costs as much as the
+ * roles in the game rather than the players squared. Immutable.
+ */
+class GameStartUpdates {
+  private final int gameId;
+  private final Role[] seats;
+  /** Updates of the roles in the game. */
+  private final Map<Role, EncodedMessage<RoomUpdate>> updates = new EnumMap<>(Role.class);
+
+  private final EncodedMessage<RoomUpdate> standingUpdate;
+
+  GameStartUpdates(int gameId, Role[] seats) {
+    this.gameId = gameId;
+    this.seats = seats.clone();
+    Visibility visibility = new Visibility(seats);
+    for (Role role : seats) {
+      updates.computeIfAbsent(role, key -> build(key, visibility));
+    }
+    standingUpdate = wrap(RoomUpdate.GameStartUpdate.newBuilder().setGame(gameId));
+  }
+
+  /** Returns the update of {@code seat}, or the bare one for a member without a seat. */
+  EncodedMessage<RoomUpdate> forSeat(int seat) {
+    return seat >= 0 && seat < seats.length ? updates.get(seats[seat]) : standingUpdate;
+  }
+
+  private EncodedMessage<RoomUpdate> build(Role role, Visibility visibility) {
+    Visibility.Sight sight = Visibility.Sight.of(role);
+    RoomUpdate.GameStartUpdate.Builder gameStartUpdate =
+        RoomUpdate.GameStartUpdate.newBuilder()
+            .setGame(gameId)
+            .setCharacter(Character.forNumber(role.ordinal()));
+    for (long red = visibility.knownRed(sight); red != 0; red &= red - 1) {
+      gameStartUpdate.addKnownRed(Long.numberOfTrailingZeros(red));
+    }
+    for (long merlin = visibility.knownPercival(sight); merlin != 0; merlin &= merlin - 1) {
+      gameStartUpdate.addKnownPercival(Long.numberOfTrailingZeros(merlin));
+    }
+    return wrap(gameStartUpdate);
+  }
+
+  private static EncodedMessage<RoomUpdate> wrap(RoomUpdate.GameStartUpdate.Builder update) {
+    return EncodedMessage.of(RoomUpdate.newBuilder().setGameStartUpdate(update).build());
+  }
+}
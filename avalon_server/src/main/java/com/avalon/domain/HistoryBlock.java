@@ -0,0 +1,209 @@
+package com.avalon.domain;
+
+import com.avalon.proto.game.GameStatusUpdate;
+import com.avalon.proto.game.Proposal;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs a run of updates into one {@link GameStatusUpdate.History}, for a client catching up on a
+ * long game. Each update takes the varint delta of its index and the number of its update field,
+ * then its fields in a fixed order without tags: seats as varints, and a vote's seat and choice in
+ * one varint. Updates too rare to be worth a layout, such as snapshots, are kept as serialized
+ * protos.
+ */
+public final class HistoryBlock {
+  private HistoryBlock() {}
+
+  /** Returns {@code updates}, in index order, packed into an update at the index of the last. */
+  public static GameStatusUpdate pack(List<GameStatusUpdate> updates) {
+    ByteString.Output block = ByteString.newOutput();
+    CodedOutputStream output = CodedOutputStream.newInstance(block);
+    int previous = 0;
+    try {
+      for (GameStatusUpdate update : updates) {
+        output.writeUInt32NoTag(update.getIndex() - previous);
+        previous = update.getIndex();
+        output.writeUInt32NoTag(update.getUpdateCase().getNumber());
+        write(output, update);
+      }
+      output.flush();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    return GameStatusUpdate.newBuilder()
+        .setIndex(previous)
+        .setHistory(
+            GameStatusUpdate.History.newBuilder()
+                .setCount(updates.size())
+                .setBlock(block.toByteString()))
+        .build();
+  }
+
+  /** Returns the updates packed in {@code history}. */
+  public static List<GameStatusUpdate> unpack(GameStatusUpdate.History history) throws IOException {
+    CodedInputStream input = history.getBlock().newCodedInput();
+    List<GameStatusUpdate> updates = new ArrayList<>(history.getCount());
+    int index = 0;
+    for (int i = 0; i < history.getCount(); i++) {
+      index += input.readUInt32();
+      GameStatusUpdate.UpdateCase updateCase =
+          GameStatusUpdate.UpdateCase.forNumber(input.readUInt32());
+      if (updateCase == null) {
+        throw new IOException("Unknown update in history");
+      }
+      updates.add(read(input, updateCase).setIndex(index).build());
+    }
+
+    return updates;
+  }
+
+  private static void write(CodedOutputStream output, GameStatusUpdate update) throws IOException {
+    switch (update.getUpdateCase()) {
+      case MISSION_START:
+        output.writeInt32NoTag(update.getMissionStart().getMission());
+        output.writeInt32NoTag(update.getMissionStart().getLadyByTheLake());
+        break;
+      case ROUND_START:
+        output.writeInt32NoTag(update.getRoundStart().getRound());
+        output.writeInt32NoTag(update.getRoundStart().getLeader());
+        break;
+      case PROPOSAL:
+        Proposal proposal = update.getProposal();
+        output.writeInt32NoTag(proposal.getFromWhom());
+        output.writeInt32NoTag(proposal.getForWhom());
+        writeSeats(output, proposal.getPlayersList());
+        break;
+      case VOTED_FOR_PLAYER:
+        writeVote(
+            output,
+            update.getVotedForPlayer().getFromWhom(),
+            update.getVotedForPlayer().getVoted());
+        break;
+      case VOTED_RESULT:
+        output.writeBoolNoTag(update.getVotedResult().getTotallyAgreed());
+        writeSeats(output, update.getVotedResult().getAgreedList());
+        break;
+      case VOTED_FOR_MISSION:
+        writeVote(
+            output,
+            update.getVotedForMission().getFromWhom(),
+            update.getVotedForMission().getVoted());
+        break;
+      case MISSION_RESULT:
+        output.writeBoolNoTag(update.getMissionResult());
+        break;
+      case LADY_TEST_DONE:
+        output.writeInt32NoTag(update.getLadyTestDone().getFromWhom());
+        output.writeInt32NoTag(update.getLadyTestDone().getToWhom());
+        break;
+      case VOTES:
+        GameStatusUpdate.Votes votes = update.getVotes();
+        output.writeUInt32NoTag(votes.getVotedForPlayerCount());
+        for (GameStatusUpdate.VotedForPlayer vote : votes.getVotedForPlayerList()) {
+          writeVote(output, vote.getFromWhom(), vote.getVoted());
+        }
+        output.writeUInt32NoTag(votes.getVotedForMissionCount());
+        for (GameStatusUpdate.VotedForMission vote : votes.getVotedForMissionList()) {
+          writeVote(output, vote.getFromWhom(), vote.getVoted());
+        }
+        break;
+      default:
+        output.writeMessageNoTag(update.toBuilder().clearIndex().build());
+    }
+  }
+
+  private static GameStatusUpdate.Builder read(
+      CodedInputStream input, GameStatusUpdate.UpdateCase updateCase) throws IOException {
+    GameStatusUpdate.Builder update = GameStatusUpdate.newBuilder();
+    switch (updateCase) {
+      case MISSION_START:
+        return update.setMissionStart(
+            GameStatusUpdate.MissionStart.newBuilder()
+                .setMission(input.readInt32())
+                .setLadyByTheLake(input.readInt32()));
+      case ROUND_START:
+        return update.setRoundStart(
+            GameStatusUpdate.RoundStart.newBuilder()
+                .setRound(input.readInt32())
+                .setLeader(input.readInt32()));
+      case PROPOSAL:
+        return update.setProposal(
+            Proposal.newBuilder()
+                .setFromWhom(input.readInt32())
+                .setForWhom(input.readInt32())
+                .addAllPlayers(readSeats(input)));
+      case VOTED_FOR_PLAYER:
+        long playerVote = input.readUInt64();
+        return update.setVotedForPlayer(
+            GameStatusUpdate.VotedForPlayer.newBuilder()
+                .setFromWhom((int) (playerVote >> 1))
+                .setVoted((playerVote & 1) != 0));
+      case VOTED_RESULT:
+        return update.setVotedResult(
+            GameStatusUpdate.VotedResult.newBuilder()
+                .setTotallyAgreed(input.readBool())
+                .addAllAgreed(readSeats(input)));
+      case VOTED_FOR_MISSION:
+        long missionVote = input.readUInt64();
+        return update.setVotedForMission(
+            GameStatusUpdate.VotedForMission.newBuilder()
+                .setFromWhom((int) (missionVote >> 1))
+                .setVoted((missionVote & 1) != 0));
+      case MISSION_RESULT:
+        return update.setMissionResult(input.readBool());
+      case LADY_TEST_DONE:
+        return update.setLadyTestDone(
+            GameStatusUpdate.LadyTestDone.newBuilder()
+                .setFromWhom(input.readInt32())
+                .setToWhom(input.readInt32()));
+      case VOTES:
+        GameStatusUpdate.Votes.Builder votes = GameStatusUpdate.Votes.newBuilder();
+        for (int i = input.readUInt32(); i > 0; i--) {
+          long vote = input.readUInt64();
+          votes.addVotedForPlayer(
+              GameStatusUpdate.VotedForPlayer.newBuilder()
+                  .setFromWhom((int) (vote >> 1))
+                  .setVoted((vote & 1) != 0));
+        }
+        for (int i = input.readUInt32(); i > 0; i--) {
+          long vote = input.readUInt64();
+          votes.addVotedForMission(
+              GameStatusUpdate.VotedForMission.newBuilder()
+                  .setFromWhom((int) (vote >> 1))
+                  .setVoted((vote & 1) != 0));
+        }
+        return update.setVotes(votes);
+      default:
+        input.readMessage(update, ExtensionRegistryLite.getEmptyRegistry());
+        return update;
+    }
+  }
+
+  private static void writeVote(CodedOutputStream output, int fromWhom, boolean voted)
+      throws IOException {
+    output.writeUInt64NoTag((long) fromWhom << 1 | (voted ? 1 : 0));
+  }
+
+  private static void writeSeats(CodedOutputStream output, List<Integer> seats) throws IOException {
+    output.writeUInt32NoTag(seats.size());
+    for (int i = 0; i < seats.size(); i++) {
+      output.writeInt32NoTag(seats.get(i));
+    }
+  }
+
+  private static List<Integer> readSeats(CodedInputStream input) throws IOException {
+    int count = input.readUInt32();
+    List<Integer> seats = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      seats.add(input.readInt32());
+    }
+    return seats;
+  }
+}
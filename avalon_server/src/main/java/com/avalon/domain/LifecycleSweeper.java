@@ -0,0 +1,120 @@
+package com.avalon.domain;
+
+import com.avalon.store.GameArchive;
+import com.avalon.util.ResponseException;
+import com.avalon.util.TimerWheel;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/** Periodically closes idle or finished rooms and idle users. */
+@Singleton
+public class LifecycleSweeper {
+  private static final Logger logger = Logger.getLogger(LifecycleSweeper.class.getName());
+
+  public static class Options {
+    final long idleTtlNanos;
+    final long finishedTtlNanos;
+    final long userTtlNanos;
+    @Nullable final Path archiveDirectory;
+
+    /** @param archiveDirectory where to archive closed games, or null to drop them */
+    public Options(
+        long idleTtlMillis,
+        long finishedTtlMillis,
+        long userTtlMillis,
+        @Nullable Path archiveDirectory) {
+      this.idleTtlNanos = TimeUnit.MILLISECONDS.toNanos(idleTtlMillis);
+      this.finishedTtlNanos = TimeUnit.MILLISECONDS.toNanos(finishedTtlMillis);
+      this.userTtlNanos = TimeUnit.MILLISECONDS.toNanos(userTtlMillis);
+      this.archiveDirectory = archiveDirectory;
+    }
+  }
+
+  private final Options options;
+  private final UserManager userManager;
+  private final RoomManager roomManager;
+  private final GameManager gameManager;
+  @Nullable private final GameArchive gameArchive;
+
+  @Inject
+  LifecycleSweeper(
+      Options options,
+      UserManager userManager,
+      RoomManager roomManager,
+      GameManager gameManager,
+      TimerWheel timerWheel,
+      @Named("lifecycleExecutor") Executor executor,
+      @Named("sweepPeriodMillis") long sweepPeriodMillis) {
+    this.options = options;
+    this.userManager = userManager;
+    this.roomManager = roomManager;
+    this.gameManager = gameManager;
+
+    GameArchive archive = null;
+    if (options.archiveDirectory != null) {
+      try {
+        archive = new GameArchive(options.archiveDirectory);
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Game archival disabled", e);
+      }
+    }
+    this.gameArchive = archive;
+
+    timerWheel.scheduleWithFixedDelay(
+        sweepPeriodMillis, TimeUnit.MILLISECONDS, executor, this::sweep);
+  }
+
+  void sweep() {
+    try {
+      long now = System.nanoTime();
+      int rooms = 0;
+      for (RoomManager.RoomInfo roomInfo : roomManager.rooms()) {
+        String reason = expiry(roomInfo, now);
+        if (reason == null) {
+          continue;
+        }
+
+        GameManager.GameInfo gameInfo = roomManager.closeRoom(roomInfo, reason);
+        if (gameInfo != null) {
+          gameManager.closeGame(gameInfo, gameArchive);
+        }
+        rooms++;
+      }
+
+      int users = userManager.evictIdle(now, options.userTtlNanos);
+      if (rooms > 0 || users > 0) {
+        logger.info(String.format("Closed %d rooms and %d users", rooms, users));
+      }
+    } catch (ResponseException | IOException | RuntimeException e) {
+      logger.log(Level.WARNING, "Lifecycle sweep failed", e);
+    }
+  }
+
+  /** Returns why {@code roomInfo} should be closed, or null to keep it. */
+  @Nullable
+  private String expiry(RoomManager.RoomInfo roomInfo, long now) {
+    GameManager.GameInfo gameInfo;
+    synchronized (roomInfo) {
+      gameInfo = roomInfo.gameInfo;
+    }
+
+    if (gameInfo == null) {
+      return now - roomInfo.lastActivityNanos > options.idleTtlNanos ? "Room idle" : null;
+    }
+
+    AvalonGame avalonGame = gameInfo.avalonGame;
+    long idleNanos = now - avalonGame.lastActivityNanos;
+    if (avalonGame.finished) {
+      return idleNanos > options.finishedTtlNanos ? "Game finished" : null;
+    }
+    return idleNanos > options.idleTtlNanos ? "Game idle" : null;
+  }
+}
@@ -0,0 +1,248 @@
+package com.avalon.domain;
+
+import com.avalon.cluster.ShardMap;
+import com.avalon.metrics.Metrics;
+import com.avalon.proto.base.Auth;
+import com.avalon.proto.base.ResponseError;
+import com.avalon.proto.game.Character;
+import com.avalon.proto.game.Room;
+import com.avalon.proto.service.QueueUpdate;
+import com.avalon.util.LatencyHistogram;
+import com.avalon.util.ResponseException;
+import com.avalon.util.StreamObservers;
+import com.avalon.util.TimerWheel;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Groups queued players wanting the same game and seats each full group in a new room, in batches
+ * on the matchmaker thread. A ticket is live while {@code waiting} maps its user to it.
+ */
+@Singleton
+public class Matchmaker {
+  private static final Logger logger = Logger.getLogger(Matchmaker.class.getName());
+
+  public static class Options {
+    final long batchPeriodMillis;
+
+    public Options(long batchPeriodMillis) {
+      this.batchPeriodMillis = batchPeriodMillis;
+    }
+  }
+
+  private final UserManager userManager;
+  private final RoomManager roomManager;
+  private final ShardMap shardMap;
+  private final Executor notifyExecutor;
+  private final LatencyHistogram timeToMatch;
+  private final Map<Integer, Ticket> waiting = new ConcurrentHashMap<>();
+  private final Queue<Ticket> arrivals = new ConcurrentLinkedQueue<>();
+  private final AtomicLong roomCount = new AtomicLong();
+
+  /** Waiting tickets by the game they want, only touched by the matchmaker thread. */
+  private final Map<Room, ArrayDeque<Ticket>> buckets = new HashMap<>();
+
+  @Inject
+  Matchmaker(
+      Options options,
+      UserManager userManager,
+      RoomManager roomManager,
+      ShardMap shardMap,
+      TimerWheel timerWheel,
+      @Named("matchmakerExecutor") Executor executor,
+      @Named("dispatchExecutor") Executor notifyExecutor,
+      Metrics metrics) {
+    this.userManager = userManager;
+    this.roomManager = roomManager;
+    this.shardMap = shardMap;
+    this.notifyExecutor = notifyExecutor;
+    this.timeToMatch =
+        metrics.histogram(
+            "avalon_time_to_match_seconds", "Time from joining the queue to being seated.", "");
+    metrics.gauge("avalon_queued_players", "Players waiting in the queue.", "", waiting::size);
+    timerWheel.scheduleWithFixedDelay(
+        options.batchPeriodMillis, TimeUnit.MILLISECONDS, executor, this::match);
+  }
+
+  /**
+   * Queues the user for {@code room}, replacing any earlier ticket of theirs. {@code observer}
+   * receives a {@link QueueUpdate.Queued} now and a {@link QueueUpdate.Matched} once seated.
+   */
+  public void joinQueue(Auth auth, Room room, StreamObserver<QueueUpdate> observer)
+      throws ResponseException {
+    UserManager.UserInfo userInfo = userManager.validate(auth);
+    RoomManager.validateRoom(room);
+
+    Ticket ticket = new Ticket(userInfo, normalize(room), observer);
+    Ticket previous = waiting.put(userInfo.auth.getId(), ticket);
+    if (previous != null) {
+      previous.finish(error("Queued again"));
+    }
+    ((ServerCallStreamObserver<QueueUpdate>) observer)
+        .setOnCancelHandler(() -> waiting.remove(userInfo.auth.getId(), ticket));
+    ticket.send(
+        QueueUpdate.newBuilder()
+            .setQueued(QueueUpdate.Queued.newBuilder().setWaiting(waiting.size()))
+            .build());
+    arrivals.add(ticket);
+  }
+
+  /** Runs one batch on the matchmaker thread. */
+  void match() {
+    try {
+      for (Ticket ticket; (ticket = arrivals.poll()) != null; ) {
+        buckets.computeIfAbsent(ticket.room, ignored -> new ArrayDeque<>()).add(ticket);
+      }
+
+      Iterator<Map.Entry<Room, ArrayDeque<Ticket>>> iterator = buckets.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<Room, ArrayDeque<Ticket>> bucket = iterator.next();
+        ArrayDeque<Ticket> tickets = bucket.getValue();
+        tickets.removeIf(ticket -> waiting.get(ticket.userId()) != ticket);
+        if (tickets.isEmpty()) {
+          iterator.remove();
+          continue;
+        }
+
+        int players = bucket.getKey().getCharacterCount();
+        while (tickets.size() >= players) {
+          List<Ticket> group = new ArrayList<>(players);
+          while (group.size() < players && !tickets.isEmpty()) {
+            Ticket ticket = tickets.poll();
+            if (waiting.remove(ticket.userId(), ticket)) {
+              group.add(ticket);
+            }
+          }
+          if (group.size() < players) {
+            // Some left since the bucket was pruned; the others keep their place.
+            for (int i = group.size() - 1; i >= 0; i--) {
+              Ticket ticket = group.get(i);
+              if (waiting.putIfAbsent(ticket.userId(), ticket) == null) {
+                tickets.addFirst(ticket);
+              }
+            }
+            break;
+          }
+          seat(bucket.getKey(), group);
+        }
+      }
+    } catch (RuntimeException e) {
+      logger.log(Level.SEVERE, "Matchmaking batch failed", e);
+    }
+  }
+
+  private void seat(Room room, List<Ticket> group) {
+    List<UserManager.UserInfo> players = new ArrayList<>(group.size());
+    for (Ticket ticket : group) {
+      players.add(ticket.userInfo);
+    }
+
+    Room named;
+    while (true) {
+      String roomName = "match-" + roomCount.incrementAndGet();
+      if (!shardMap.owns(roomName)) {
+        // Rooms live on the node their name hashes to, which has to be this one.
+        continue;
+      }
+      named = room.toBuilder().setRoomName(roomName).build();
+      try {
+        roomManager.createMatchedRoom(named, players);
+        break;
+      } catch (ResponseException e) {
+        // The name was taken by a room created by hand, try the next one.
+      }
+    }
+
+    long now = System.nanoTime();
+    String roomName = named.getRoomName();
+    for (Ticket ticket : group) {
+      timeToMatch.record(now - ticket.queuedNanos);
+    }
+    notifyExecutor.execute(
+        () -> {
+          for (int seat = 0; seat < group.size(); seat++) {
+            group
+                .get(seat)
+                .finish(
+                    QueueUpdate.newBuilder()
+                        .setMatched(
+                            QueueUpdate.Matched.newBuilder()
+                                .setRoomName(roomName)
+                                .setSeat(seat)
+                                .setOwner(seat == 0))
+                        .build());
+          }
+        });
+  }
+
+  /**
+   * Returns the game players wanting {@code room} are matched on, which lists the characters in
+   * order and has no name, so that all of them share a bucket.
+   */
+  public static Room normalize(Room room) {
+    List<Character> characters = new ArrayList<>(room.getCharacterList());
+    characters.sort(Comparator.comparingInt(Character::getNumber));
+    return room.toBuilder().clearRoomName().clearCharacter().addAllCharacter(characters).build();
+  }
+
+  private static QueueUpdate error(String message) {
+    return QueueUpdate.newBuilder()
+        .setResponseError(ResponseError.newBuilder().setError(message))
+        .build();
+  }
+
+  private static class Ticket {
+    final UserManager.UserInfo userInfo;
+    final Room room;
+    final long queuedNanos = System.nanoTime();
+    private final StreamObserver<QueueUpdate> observer;
+    private boolean done;
+
+    Ticket(UserManager.UserInfo userInfo, Room room, StreamObserver<QueueUpdate> observer) {
+      this.userInfo = userInfo;
+      this.room = room;
+      this.observer = observer;
+    }
+
+    int userId() {
+      return userInfo.auth.getId();
+    }
+
+    synchronized void send(QueueUpdate update) {
+      if (done) {
+        return;
+      }
+
+      StreamObservers.sendQuietly(observer, update);
+    }
+
+    /** Sends {@code update} as the last message of the stream. */
+    synchronized void finish(QueueUpdate update) {
+      if (done) {
+        return;
+      }
+
+      send(update);
+      done = true;
+      StreamObservers.completeQuietly(observer);
+    }
+  }
+}
@@ -1,31 +1,360 @@
 package com.avalon.domain;
 
+import com.avalon.util.EncodedMessage;
+import com.avalon.util.LatencyHistogram;
+import com.avalon.util.StreamObservers;
 import com.google.protobuf.GeneratedMessageV3;
+import io.grpc.Status;
 import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
-import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.IntFunction;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+/**
+ * Fans messages out to streaming subscribers through a bounded queue each, drained on {@code
+ * executor} while the call is ready. {@link #dispatch} and {@link #add} must run on {@code owner}.
+ */
 public class MessageDispatcher<T extends GeneratedMessageV3> {
-  @GuardedBy("this")
-  private final Set<StreamObserver<T>> streamObservers = new HashSet<>();
+  public enum OverflowPolicy {
+    /** Fails the stream of a subscriber that cannot keep up. */
+    DROP_SUBSCRIBER,
+    /** Discards the backlog of a subscriber that cannot keep up and resyncs it once it is ready. */
+    COALESCE_AND_RESYNC,
+  }
+
+  public static class Options {
+    final int queueCapacity;
+    final OverflowPolicy overflowPolicy;
+    final long stallTimeoutNanos;
 
-  void add(StreamObserver<T> streamObserver) {
-    streamObservers.add(streamObserver);
+    public Options(int queueCapacity, OverflowPolicy overflowPolicy, long stallTimeoutMillis) {
+      this.queueCapacity = queueCapacity;
+      this.overflowPolicy = overflowPolicy;
+      this.stallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(stallTimeoutMillis);
+    }
   }
 
-  void dispatch(T roomUpdate) {
-    clear();
-    streamObservers.forEach(streamObserver -> streamObserver.onNext(roomUpdate));
+  private final Options options;
+  private final Executor executor;
+  private final Executor owner;
+  private final BiFunction<Integer, EncodedMessage<T>, List<EncodedMessage<T>>> resync;
+  private final LatencyHistogram dispatchLag;
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param resync returns the messages that bring a subscriber whose backlog was discarded back in
+   *     sync, given its viewer and the last message it received, or null if it has received none
+   */
+  MessageDispatcher(
+      Options options,
+      Executor executor,
+      Executor owner,
+      BiFunction<Integer, EncodedMessage<T>, List<EncodedMessage<T>>> resync,
+      LatencyHistogram dispatchLag) {
+    this.options = options;
+    this.executor = executor;
+    this.owner = owner;
+    this.resync = resync;
+    this.dispatchLag = dispatchLag;
+  }
+
+  /**
+   * Subscribes {@code streamObserver}, sending {@code initialMessages} before any dispatch.
+   *
+   * @param resumedFrom the last message the subscriber already has, if it is resuming a stream
+   */
+  void add(
+      StreamObserver<EncodedMessage<T>> streamObserver,
+      List<EncodedMessage<T>> initialMessages,
+      @Nullable EncodedMessage<T> resumedFrom) {
+    add(streamObserver, initialMessages, resumedFrom, 0);
+  }
+
+  /**
+   * Subscribes {@code streamObserver} on behalf of the user {@code viewer}, whose messages {@link
+   * #dispatch(IntFunction)} may differ from everyone else's.
+   */
+  void add(
+      StreamObserver<EncodedMessage<T>> streamObserver,
+      List<EncodedMessage<T>> initialMessages,
+      @Nullable EncodedMessage<T> resumedFrom,
+      int viewer) {
+    Subscriber subscriber =
+        new Subscriber((ServerCallStreamObserver<EncodedMessage<T>>) streamObserver, viewer);
+    subscriber.load(initialMessages);
+    subscriber.lastDelivered = resumedFrom;
+    subscribers.add(subscriber);
+    subscriber.scheduleDrain();
+  }
+
+  /** Sends {@code message} to every subscriber, serializing it at most once for all of them. */
+  void dispatch(EncodedMessage<T> message) {
+    for (Subscriber subscriber : subscribers) {
+      subscriber.enqueue(message);
+    }
+  }
+
+  /** Sends each subscriber the message for its viewer, 0 for a subscriber added without one. */
+  void dispatch(IntFunction<EncodedMessage<T>> messageFor) {
+    for (Subscriber subscriber : subscribers) {
+      subscriber.enqueue(messageFor.apply(subscriber.viewer));
+    }
+  }
+
+  /**
+   * Sends {@code lastMessage}, if any, to every subscriber after its backlog and then completes the
+   * streams. Messages dispatched afterwards are dropped.
+   */
+  void close(@Nullable EncodedMessage<T> lastMessage) {
+    for (Subscriber subscriber : subscribers) {
+      subscriber.complete(lastMessage);
+    }
+    subscribers.clear();
+  }
+
+  int size() {
+    return subscribers.size();
   }
 
   void clear() {
-    streamObservers.removeIf(
-        streamObserver -> ((ServerCallStreamObserver<?>) streamObserver).isCancelled());
+    subscribers.removeIf(subscriber -> subscriber.observer.isCancelled());
   }
 
+  /** Evicts cancelled subscribers and fails the ones that made no progress for too long. */
   void watchDog() {
+    clear();
+    long now = System.nanoTime();
+    for (Subscriber subscriber : subscribers) {
+      if (subscriber.isStalled(now)) {
+        subscriber.close(Status.DEADLINE_EXCEEDED.withDescription("Stream stalled"));
+      }
+    }
+  }
+
+  private class Subscriber {
+    private final ServerCallStreamObserver<EncodedMessage<T>> observer;
+    private final int viewer;
+
+    @GuardedBy("this")
+    private final Queue<EncodedMessage<T>> queue = new ArrayDeque<>();
+
+    @GuardedBy("this")
+    private int loadedRemaining;
+
+    @GuardedBy("this")
+    private boolean draining;
+
+    @GuardedBy("this")
+    private boolean needsResync;
+
+    @GuardedBy("this")
+    @Nullable
+    private EncodedMessage<T> lastDelivered;
+
+    @GuardedBy("this")
+    private long lastProgressNanos = System.nanoTime();
+
+    @GuardedBy("this")
+    @Nullable
+    private Status closeStatus;
+
+    @GuardedBy("this")
+    private boolean completing;
+
+    Subscriber(ServerCallStreamObserver<EncodedMessage<T>> observer, int viewer) {
+      this.observer = observer;
+      this.viewer = viewer;
+      observer.setOnReadyHandler(this::scheduleDrain);
+      observer.setOnCancelHandler(
+          () -> {
+            subscribers.remove(this);
+            synchronized (this) {
+              queue.clear();
+            }
+          });
+    }
+
+    /** Bulk messages such as history replays are not counted against the queue capacity. */
+    synchronized void load(List<EncodedMessage<T>> messages) {
+      queue.addAll(messages);
+      loadedRemaining += messages.size();
+      lastProgressNanos = System.nanoTime();
+    }
+
+    void enqueue(EncodedMessage<T> message) {
+      synchronized (this) {
+        if (needsResync || closeStatus != null || completing) {
+          return;
+        }
+
+        if (queue.size() - loadedRemaining >= options.queueCapacity) {
+          overflow();
+        } else {
+          if (queue.isEmpty()) {
+            lastProgressNanos = System.nanoTime();
+          }
+          queue.add(message);
+        }
+      }
+
+      scheduleDrain();
+    }
+
+    @GuardedBy("this")
+    private void overflow() {
+      queue.clear();
+      loadedRemaining = 0;
+      switch (options.overflowPolicy) {
+        case DROP_SUBSCRIBER:
+          subscribers.remove(this);
+          closeStatus = Status.RESOURCE_EXHAUSTED.withDescription("Subscriber too slow");
+          break;
+        case COALESCE_AND_RESYNC:
+          needsResync = true;
+          break;
+      }
+    }
+
+    void close(Status status) {
+      subscribers.remove(this);
+      synchronized (this) {
+        queue.clear();
+        loadedRemaining = 0;
+        closeStatus = status;
+      }
+
+      scheduleDrain();
+    }
+
+    void complete(@Nullable EncodedMessage<T> lastMessage) {
+      synchronized (this) {
+        if (closeStatus != null || completing) {
+          return;
+        }
+
+        if (needsResync) {
+          queue.clear();
+          needsResync = false;
+        }
+        if (lastMessage != null) {
+          queue.add(lastMessage);
+        }
+        completing = true;
+      }
+
+      scheduleDrain();
+    }
+
+    synchronized boolean isStalled(long now) {
+      boolean pending = !queue.isEmpty() || needsResync;
+      return pending && now - lastProgressNanos > options.stallTimeoutNanos;
+    }
+
+    void scheduleDrain() {
+      synchronized (this) {
+        if (draining) {
+          return;
+        }
+        draining = true;
+      }
+
+      executor.execute(this::drain);
+    }
+
+    private void drain() {
+      while (true) {
+        EncodedMessage<T> next;
+        boolean dispatched = false;
+        Status status;
+        boolean completeNow = false;
+        boolean resyncNow;
+        EncodedMessage<T> resyncFrom;
+        synchronized (this) {
+          status = closeStatus;
+          resyncNow = needsResync;
+          resyncFrom = lastDelivered;
+          next = null;
+          if (status == null && !resyncNow) {
+            if (queue.isEmpty() && completing) {
+              completeNow = true;
+            } else if (queue.isEmpty() || !observer.isReady()) {
+              draining = false;
+              return;
+            } else {
+              next = queue.poll();
+              if (loadedRemaining > 0) {
+                loadedRemaining--;
+              } else {
+                dispatched = true;
+              }
+            }
+          }
+        }
+
+        if (completeNow) {
+          finish();
+          return;
+        }
+        if (status != null) {
+          terminate(status);
+          return;
+        }
+        if (resyncNow) {
+          resync(resyncFrom);
+          return;
+        }
+
+        try {
+          observer.onNext(next);
+        } catch (RuntimeException e) {
+          subscribers.remove(this);
+          return;
+        }
+        if (dispatched) {
+          dispatchLag.record(System.nanoTime() - next.createdNanos());
+        }
+
+        synchronized (this) {
+          lastDelivered = next;
+          lastProgressNanos = System.nanoTime();
+        }
+      }
+    }
+
+    /** Leaves the subscriber marked as draining until the resync has been loaded. */
+    private void resync(@Nullable EncodedMessage<T> resyncFrom) {
+      owner.execute(
+          () -> {
+            List<EncodedMessage<T>> messages = resync.apply(viewer, resyncFrom);
+            synchronized (this) {
+              draining = false;
+              if (needsResync) {
+                needsResync = false;
+                load(messages);
+              }
+            }
+            scheduleDrain();
+          });
+    }
+
+    private void finish() {
+      subscribers.remove(this);
+      StreamObservers.completeQuietly(observer);
+    }
 
+    private void terminate(Status status) {
+      if (!observer.isCancelled()) {
+        StreamObservers.failQuietly(observer, status);
+      }
+    }
   }
 }
@@ -0,0 +1,287 @@
+package com.avalon.domain;
+
+import com.avalon.proto.game.Character;
+import com.avalon.proto.game.Room;
+import com.avalon.proto.service.ListRoomRequest;
+import com.avalon.proto.service.ListRoomResponse;
+import com.avalon.proto.service.RoomDirectoryUpdate;
+import com.avalon.proto.service.RoomFilter;
+import com.avalon.proto.service.RoomListing;
+import com.avalon.util.EncodedMessage;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * The lobby's view of the rooms, which ListRooms pages through and WatchRooms follows.
+ *
+ * <p>Rooms report their changes while holding their own monitor. Readers share an immutable {@link
+ * Snapshot} that is rebuilt at most once per version, so they only take the directory's monitor
+ * when it changed since the last read. Pages are sent as the concatenated bytes of their listings,
+ * each serialized once per change, and the first page is kept whole. Each change is also published
+ * to a {@link BroadcastRing} as a delta for the watchers.
+ */
+@Singleton
+public class RoomDirectory {
+  private static final int CHARACTER_COUNT = Character.values().length - 1;
+
+  private final BroadcastRing<RoomDirectoryUpdate> broadcastRing;
+
+  @GuardedBy("this")
+  private final NavigableMap<String, Entry> entries = new TreeMap<>();
+
+  /** Grows by one with each change, written while holding the monitor. */
+  private volatile int version;
+
+  private volatile Snapshot snapshot = new Snapshot(0, new Entry[0]);
+
+  @Inject
+  RoomDirectory(DispatcherFactory dispatcherFactory) {
+    this.broadcastRing =
+        dispatcherFactory.createRing(
+            runnable -> {
+              synchronized (this) {
+                runnable.run();
+              }
+            },
+            RoomDirectoryUpdate::getVersion,
+            ignored -> Collections.singletonList(snapshot().reset()));
+  }
+
+  /** Returns the page of rooms {@code request} asks for, from the latest snapshot. */
+  public EncodedMessage<ListRoomResponse> page(ListRoomRequest request) {
+    Snapshot current = snapshot();
+    boolean firstPage = !request.hasFilter() && request.getPageToken().isEmpty();
+    if (firstPage) {
+      Page cached = current.firstPage;
+      if (cached != null && cached.pageSize == request.getPageSize()) {
+        return cached.response;
+      }
+    }
+
+    EncodedMessage<ListRoomResponse> response = current.page(request);
+    if (firstPage) {
+      current.firstPage = new Page(request.getPageSize(), response);
+    }
+    return response;
+  }
+
+  /**
+   * Sends the changes after {@code fromVersion} to {@code observer}, or the whole directory first
+   * when they are no longer kept.
+   */
+  synchronized void watch(
+      StreamObserver<EncodedMessage<RoomDirectoryUpdate>> observer, int fromVersion) {
+    broadcastRing.add(observer, fromVersion);
+  }
+
+  /** Lists {@code roomInfo}, whose monitor the caller holds. */
+  synchronized void add(RoomManager.RoomInfo roomInfo) {
+    RoomListing listing = roomInfo.listing();
+    entries.put(roomInfo.room.getRoomName(), new Entry(roomInfo, listing));
+    publish(RoomDirectoryUpdate.newBuilder().setAdded(listing));
+  }
+
+  /**
+   * Refreshes the listing of {@code roomInfo}, whose monitor the caller holds, unless the room was
+   * removed meanwhile.
+   */
+  synchronized void update(RoomManager.RoomInfo roomInfo) {
+    Entry entry = entries.get(roomInfo.room.getRoomName());
+    if (entry == null || entry.roomInfo != roomInfo) {
+      return;
+    }
+
+    RoomListing listing = roomInfo.listing();
+    if (listing.equals(entry.listing.message())) {
+      return;
+    }
+    entries.put(roomInfo.room.getRoomName(), new Entry(roomInfo, listing));
+    publish(RoomDirectoryUpdate.newBuilder().setUpdated(listing));
+  }
+
+  synchronized void remove(RoomManager.RoomInfo roomInfo) {
+    String roomName = roomInfo.room.getRoomName();
+    Entry entry = entries.get(roomName);
+    if (entry == null || entry.roomInfo != roomInfo) {
+      return;
+    }
+
+    entries.remove(roomName);
+    publish(RoomDirectoryUpdate.newBuilder().setRemoved(roomName));
+  }
+
+  @GuardedBy("this")
+  private void publish(RoomDirectoryUpdate.Builder update) {
+    version++;
+    broadcastRing.publish(EncodedMessage.of(update.setVersion(version).build()));
+  }
+
+  private Snapshot snapshot() {
+    Snapshot current = snapshot;
+    if (current.version == version) {
+      return current;
+    }
+
+    synchronized (this) {
+      if (snapshot.version != version) {
+        snapshot = new Snapshot(version, entries.values().toArray(new Entry[0]));
+      }
+      return snapshot;
+    }
+  }
+
+  /** Counts of each character in {@code characters}, indexed by their number. */
+  private static int[] characterCounts(List<Character> characters) {
+    int[] counts = new int[CHARACTER_COUNT];
+    for (Character character : characters) {
+      if (character != Character.UNRECOGNIZED) {
+        counts[character.getNumber()]++;
+      }
+    }
+    return counts;
+  }
+
+  private static class Entry {
+    final RoomManager.RoomInfo roomInfo;
+    final EncodedMessage<RoomListing> listing;
+    /** The room alone, for the clients still reading the deprecated {@code room} field. */
+    final EncodedMessage<Room> room;
+
+    final int[] characterCounts;
+
+    Entry(RoomManager.RoomInfo roomInfo, RoomListing listing) {
+      this.roomInfo = roomInfo;
+      this.listing = EncodedMessage.of(listing);
+      this.room = EncodedMessage.of(listing.getRoom());
+      this.characterCounts = characterCounts(listing.getRoom().getCharacterList());
+    }
+
+    boolean matches(RoomFilter filter, int[] required) {
+      RoomListing listing = this.listing.message();
+      if (listing.getOpenSeats() < filter.getMinOpenSeats()) {
+        return false;
+      }
+      if (filter.getNotStarted() && listing.getStarted()) {
+        return false;
+      }
+      switch (filter.getLadyOfTheLake()) {
+        case WITH_LADY:
+          if (!listing.getRoom().getHasLadyByTheLake()) {
+            return false;
+          }
+          break;
+        case WITHOUT_LADY:
+          if (listing.getRoom().getHasLadyByTheLake()) {
+            return false;
+          }
+          break;
+        default:
+          break;
+      }
+      for (int i = 0; i < required.length; i++) {
+        if (characterCounts[i] < required[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static class Page {
+    final int pageSize;
+    final EncodedMessage<ListRoomResponse> response;
+
+    Page(int pageSize, EncodedMessage<ListRoomResponse> response) {
+      this.pageSize = pageSize;
+      this.response = response;
+    }
+  }
+
+  /** The directory at one version, sorted by room name. */
+  private static class Snapshot {
+    final int version;
+    final Entry[] entries;
+    final String[] names;
+
+    /** The first unfiltered page, for the page size lobby clients last asked for. */
+    @Nullable volatile Page firstPage;
+
+    @Nullable private volatile EncodedMessage<RoomDirectoryUpdate> reset;
+
+    Snapshot(int version, Entry[] entries) {
+      this.version = version;
+      this.entries = entries;
+      this.names = new String[entries.length];
+      for (int i = 0; i < entries.length; i++) {
+        names[i] = entries[i].roomInfo.room.getRoomName();
+      }
+    }
+
+    @SuppressWarnings("deprecation")
+    EncodedMessage<ListRoomResponse> page(ListRoomRequest request) {
+      int start = 0;
+      if (!request.getPageToken().isEmpty()) {
+        int position = Arrays.binarySearch(names, request.getPageToken());
+        start = position >= 0 ? position + 1 : -position - 1;
+      }
+      RoomFilter filter = request.getFilter();
+      int[] required = characterCounts(filter.getCharacterList());
+      int pageSize = request.getPageSize() > 0 ? request.getPageSize() : Integer.MAX_VALUE;
+
+      ListRoomResponse.Builder response = ListRoomResponse.newBuilder();
+      List<EncodedMessage<ListRoomResponse>> parts = new ArrayList<>();
+      int last = -1;
+      for (int i = start; i < entries.length; i++) {
+        if (!entries[i].matches(filter, required)) {
+          continue;
+        }
+        if (response.getRoomListingCount() == pageSize) {
+          response.setNextPageToken(names[last]);
+          break;
+        }
+        EncodedMessage<RoomListing> listing = entries[i].listing;
+        EncodedMessage<Room> room = entries[i].room;
+        response.addRoomListing(listing.message()).addRoom(room.message());
+        parts.add(
+            listing.embedIn(
+                ListRoomResponse.getDefaultInstance(), ListRoomResponse.ROOM_LISTING_FIELD_NUMBER));
+        parts.add(
+            room.embedIn(
+                ListRoomResponse.getDefaultInstance(), ListRoomResponse.ROOM_FIELD_NUMBER));
+        last = i;
+      }
+      response.setVersion(version);
+      parts.add(
+          EncodedMessage.of(
+              ListRoomResponse.newBuilder()
+                  .setNextPageToken(response.getNextPageToken())
+                  .setVersion(version)
+                  .build()));
+      return EncodedMessage.merge(response.build(), parts);
+    }
+
+    EncodedMessage<RoomDirectoryUpdate> reset() {
+      EncodedMessage<RoomDirectoryUpdate> result = reset;
+      if (result == null) {
+        RoomDirectoryUpdate.Reset.Builder builder = RoomDirectoryUpdate.Reset.newBuilder();
+        for (Entry entry : entries) {
+          builder.addRoomListing(entry.listing.message());
+        }
+        result =
+            EncodedMessage.of(
+                RoomDirectoryUpdate.newBuilder().setVersion(version).setReset(builder).build());
+        reset = result;
+      }
+      return result;
+    }
+  }
+}
@@ -1,100 +1,252 @@
 package com.avalon.domain;
 
+import com.avalon.cluster.ShardMap;
+import com.avalon.metrics.Metrics;
 import com.avalon.proto.base.Auth;
+import com.avalon.proto.base.ResponseError;
 import com.avalon.proto.game.Room;
+import com.avalon.proto.service.ListRoomRequest;
+import com.avalon.proto.service.ListRoomResponse;
+import com.avalon.proto.service.RoomDirectoryUpdate;
+import com.avalon.proto.service.RoomListing;
 import com.avalon.proto.service.RoomUpdate;
 import com.avalon.proto.service.User;
+import com.avalon.proto.store.GameCreated;
+import com.avalon.proto.store.RoomClosed;
+import com.avalon.proto.store.RoomCreated;
+import com.avalon.proto.store.SeatAssigned;
+import com.avalon.proto.store.StoredEvent;
+import com.avalon.store.EventStore;
+import com.avalon.util.EncodedMessage;
 import com.avalon.util.ResponseException;
 import io.grpc.stub.StreamObserver;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import javax.annotation.concurrent.GuardedBy;
 import javax.inject.Inject;
+import javax.inject.Singleton;
 
+/**
+ * Registry of rooms. The registry itself is lock free; each operation on a room only holds that
+ * room's monitor, so unrelated rooms and games never contend with each other. Changes that show in
+ * the lobby are also reported to the {@link RoomDirectory}, which serves ListRooms and WatchRooms.
+ */
+@Singleton
 public class RoomManager {
   private final UserManager userManager;
   private final GameManager gameManager;
+  private final DispatcherFactory dispatcherFactory;
+  private final EventStore eventStore;
+  private final RoomDirectory roomDirectory;
+  private final ShardMap shardMap;
 
-  @GuardedBy("this")
-  private final Map<String, RoomInfo> map = new TreeMap<>();
+  private final ConcurrentMap<String, RoomInfo> map = new ConcurrentSkipListMap<>();
 
   @Inject
-  RoomManager(UserManager userManager, GameManager gameManager) {
+  RoomManager(
+      UserManager userManager,
+      GameManager gameManager,
+      DispatcherFactory dispatcherFactory,
+      EventStore eventStore,
+      RoomDirectory roomDirectory,
+      ShardMap shardMap,
+      Metrics metrics) {
     this.userManager = userManager;
     this.gameManager = gameManager;
+    this.dispatcherFactory = dispatcherFactory;
+    this.eventStore = eventStore;
+    this.roomDirectory = roomDirectory;
+    this.shardMap = shardMap;
+    metrics.gauge("avalon_rooms", "Open rooms.", "", map::size);
   }
 
-  public synchronized Room createRoom(Auth auth, Room room) throws ResponseException {
+  public Room createRoom(Auth auth, Room room) throws ResponseException {
     userManager.validate(auth);
+    validateRoom(room);
+    if (!shardMap.owns(room.getRoomName())) {
+      throw new ResponseException("Room belongs to another node");
+    }
+    RoomInfo roomInfo = register(auth.getId(), room);
+    synchronized (roomInfo) {
+      roomDirectory.add(roomInfo);
+    }
+
+    return room;
+  }
+
+  /**
+   * Creates {@code room} on behalf of {@code players}, owned by the first of them, and seats them
+   * in order as if each had joined and taken a seat. The room is listed once they are all seated.
+   */
+  void createMatchedRoom(Room room, List<UserManager.UserInfo> players) throws ResponseException {
+    RoomInfo roomInfo = register(players.get(0).auth.getId(), room);
+    synchronized (roomInfo) {
+      for (int seat = 0; seat < players.size(); seat++) {
+        UserManager.UserInfo player = players.get(seat);
+        roomInfo.assignSeat(player.auth.getId(), player.user, seat);
+      }
+      roomDirectory.add(roomInfo);
+    }
+  }
 
-    if (map.containsKey(room.getRoomName())) {
+  static void validateRoom(Room room) throws ResponseException {
+    if (room.getCharacterCount() == 0 || room.getCharacterCount() > AvalonGame.MAX_PLAYERS) {
+      throw new ResponseException("Invalid number of characters");
+    }
+  }
+
+  /** Adds a room, which the caller still has to list in the directory. */
+  private RoomInfo register(int owner, Room room) throws ResponseException {
+    RoomInfo roomInfo = new RoomInfo(owner, room, dispatcherFactory, eventStore, roomDirectory);
+    if (map.putIfAbsent(room.getRoomName(), roomInfo) != null) {
       throw new ResponseException("Name already token");
     }
+    eventStore.append(
+        StoredEvent.newBuilder()
+            .setRoomCreated(RoomCreated.newBuilder().setOwner(owner).setRoom(room))
+            .build());
 
-    RoomInfo roomInfo = new RoomInfo(auth.getId(), room);
-    map.put(room.getRoomName(), roomInfo);
+    return roomInfo;
+  }
 
-    return room;
+  public EncodedMessage<ListRoomResponse> listRooms(ListRoomRequest request) {
+    return roomDirectory.page(request);
   }
 
-  public synchronized List<Room> listRoom() {
-    return map.values().stream().map(value -> value.room).collect(Collectors.toList());
+  public void watchRooms(
+      Auth auth, int fromVersion, StreamObserver<EncodedMessage<RoomDirectoryUpdate>> observer)
+      throws ResponseException {
+    userManager.validate(auth);
+    roomDirectory.watch(observer, fromVersion);
   }
 
-  public synchronized void joinRoom(Auth auth, String roomName, StreamObserver<RoomUpdate> observer)
+  public void joinRoom(
+      Auth auth, String roomName, StreamObserver<EncodedMessage<RoomUpdate>> observer)
       throws ResponseException {
     UserManager.UserInfo userInfo = userManager.validate(auth);
     RoomInfo roomInfo = getRoomInfo(roomName);
 
-    for (Map.Entry<User, Integer> seat : roomInfo.seats.entrySet()) {
-      RoomUpdate.UserJoinedUpdate userJoinedUpdate =
-          RoomUpdate.UserJoinedUpdate.newBuilder()
-              .setUser(seat.getKey())
-              .setPosition(seat.getValue())
-              .build();
-      observer.onNext(RoomUpdate.newBuilder().setUserJoinedUpdate(userJoinedUpdate).build());
-    }
-
-    roomInfo.messageDispatcher.add(observer);
-    roomInfo.assignSeat(userInfo.user, -1);
-    if (roomInfo.gameInfo != null) {
-      RoomUpdate.GameStartUpdate gameStartUpdate =
-          RoomUpdate.GameStartUpdate.newBuilder().setGame(roomInfo.gameInfo.gameId).build();
-      observer.onNext(RoomUpdate.newBuilder().setGameStartUpdate(gameStartUpdate).build());
+    synchronized (roomInfo) {
+      roomInfo.lastActivityNanos = System.nanoTime();
+      roomInfo.messageDispatcher.add(
+          observer, roomInfo.snapshotUpdates(userInfo.auth.getId()), null, userInfo.auth.getId());
+      // Rejoining, e.g. after a dropped stream, keeps the seat.
+      if (roomInfo.seatIndex.seatOf(userInfo.auth.getId()) == SeatIndex.ABSENT) {
+        roomInfo.assignSeat(userInfo.auth.getId(), userInfo.user, SeatIndex.STANDING);
+      }
     }
   }
 
-  public synchronized void assignSeat(Auth auth, String roomName, int position)
-      throws ResponseException {
+  public void assignSeat(Auth auth, String roomName, int position) throws ResponseException {
     UserManager.UserInfo userInfo = userManager.validate(auth);
     RoomInfo roomInfo = getRoomInfo(roomName);
 
-    roomInfo.assignSeat(userInfo.user, position);
+    roomInfo.assignSeat(userInfo.auth.getId(), userInfo.user, position);
   }
 
-  public synchronized void startGame(Auth auth, String roomName) throws ResponseException {
+  public void startGame(Auth auth, String roomName) throws ResponseException {
     UserManager.UserInfo userInfo = userManager.validate(auth);
     RoomInfo roomInfo = getRoomInfo(roomName);
     if (roomInfo.owner != userInfo.auth.getId()) {
       throw new ResponseException("Only owner can start game");
     }
-    if (roomInfo.gameInfo != null) {
-      throw new ResponseException("Game already started");
+
+    synchronized (roomInfo) {
+      if (roomInfo.gameInfo != null) {
+        throw new ResponseException("Game already started");
+      }
+
+      roomInfo.lastActivityNanos = System.nanoTime();
+      roomInfo.gameInfo = gameManager.createGame(roomInfo);
+      roomDirectory.update(roomInfo);
+      GameStartUpdates startUpdates = roomInfo.gameInfo.avalonGame.startUpdates;
+      roomInfo.messageDispatcher.dispatch(
+          viewer -> startUpdates.forSeat(roomInfo.seatIndex.seatOf(viewer)));
+    }
+  }
+
+  void restoreRoom(RoomCreated roomCreated) {
+    Room room = roomCreated.getRoom();
+    RoomInfo roomInfo =
+        new RoomInfo(roomCreated.getOwner(), room, dispatcherFactory, eventStore, roomDirectory);
+    map.put(room.getRoomName(), roomInfo);
+    synchronized (roomInfo) {
+      roomDirectory.add(roomInfo);
+    }
+  }
+
+  void restoreSeat(SeatAssigned seatAssigned) throws ResponseException {
+    RoomInfo roomInfo = getRoomInfo(seatAssigned.getRoomName());
+    synchronized (roomInfo) {
+      roomInfo.seat(seatAssigned.getUserId(), seatAssigned.getUser(), seatAssigned.getPosition());
+    }
+  }
+
+  void restoreGame(GameCreated gameCreated) throws ResponseException {
+    RoomInfo roomInfo = getRoomInfo(gameCreated.getRoomName());
+    synchronized (roomInfo) {
+      roomInfo.gameInfo = gameManager.restoreGame(roomInfo, gameCreated);
+      roomDirectory.update(roomInfo);
+    }
+  }
+
+  void restoreRoomClosed(RoomClosed roomClosed) {
+    RoomInfo roomInfo = map.remove(roomClosed.getRoomName());
+    if (roomInfo == null) {
+      return;
     }
 
-    roomInfo.gameInfo = gameManager.createGame(roomInfo);
-    roomInfo.messageDispatcher.dispatch(
-        RoomUpdate.newBuilder()
-            .setGameStartUpdate(
-                RoomUpdate.GameStartUpdate.newBuilder().setGame(roomInfo.gameInfo.gameId).build())
+    synchronized (roomInfo) {
+      roomDirectory.remove(roomInfo);
+      if (roomInfo.gameInfo != null) {
+        gameManager.restoreGameClosed(roomInfo.gameInfo.gameId);
+      }
+    }
+  }
+
+  /**
+   * Removes the room, sending a {@link RoomUpdate.RoomClosedUpdate} with {@code reason} to its
+   * remaining subscribers before completing their streams.
+   *
+   * @return the game played in the room, which the caller has to close, or null
+   */
+  GameManager.GameInfo closeRoom(RoomInfo roomInfo, String reason) {
+    if (!map.remove(roomInfo.room.getRoomName(), roomInfo)) {
+      return null;
+    }
+    eventStore.append(
+        StoredEvent.newBuilder()
+            .setRoomClosed(RoomClosed.newBuilder().setRoomName(roomInfo.room.getRoomName()))
             .build());
+
+    synchronized (roomInfo) {
+      roomDirectory.remove(roomInfo);
+      roomInfo.messageDispatcher.close(
+          EncodedMessage.of(
+              RoomUpdate.newBuilder()
+                  .setRoomClosedUpdate(
+                      RoomUpdate.RoomClosedUpdate.newBuilder()
+                          .setResponseError(ResponseError.newBuilder().setError(reason)))
+                  .build()));
+      dispatcherFactory.release(roomInfo.messageDispatcher);
+      return roomInfo.gameInfo;
+    }
+  }
+
+  Collection<RoomInfo> rooms() {
+    return map.values();
   }
 
-  private synchronized RoomInfo getRoomInfo(String roomName) throws ResponseException {
+  int size() {
+    return map.size();
+  }
+
+  private RoomInfo getRoomInfo(String roomName) throws ResponseException {
     RoomInfo roomInfo = map.get(roomName);
     if (roomInfo == null) {
       throw new ResponseException("No such room");
@@ -106,36 +258,116 @@ public class RoomManager {
   public static class RoomInfo {
     public final int owner;
     public final Room room;
-    public final Map<User, Integer> seats = new HashMap<>();
-    public final List<User> sitPlayers;
-    public final MessageDispatcher<RoomUpdate> messageDispatcher = new MessageDispatcher<>();
+    final SeatIndex seatIndex;
+
+    @GuardedBy("this")
+    private final Map<Integer, User> members = new LinkedHashMap<>();
+
+    @GuardedBy("this")
+    public final MessageDispatcher<RoomUpdate> messageDispatcher;
+
+    private final EventStore eventStore;
+    private final RoomDirectory roomDirectory;
+
+    @GuardedBy("this")
     public GameManager.GameInfo gameInfo;
 
-    private RoomInfo(int owner, Room room) {
+    volatile long lastActivityNanos = System.nanoTime();
+
+    private RoomInfo(
+        int owner,
+        Room room,
+        DispatcherFactory dispatcherFactory,
+        EventStore eventStore,
+        RoomDirectory roomDirectory) {
       this.owner = owner;
       this.room = room;
-      this.sitPlayers = new ArrayList<>(room.getCharacterCount() + 1);
+      this.eventStore = eventStore;
+      this.roomDirectory = roomDirectory;
+      this.seatIndex = new SeatIndex(room.getCharacterCount());
+      this.messageDispatcher =
+          dispatcherFactory.create(
+              runnable -> {
+                synchronized (this) {
+                  runnable.run();
+                }
+              },
+              (viewer, ignored) -> snapshotUpdates(viewer));
     }
 
-    public void assignSeat(User user, int position) throws ResponseException {
-      if (position < -1 || position >= room.getCharacterCount()) {
+    /** Updates that bring a new or resyncing subscriber to the current state of the room. */
+    @GuardedBy("this")
+    List<EncodedMessage<RoomUpdate>> snapshotUpdates(int viewer) {
+      List<EncodedMessage<RoomUpdate>> roomUpdates = new ArrayList<>();
+      for (Map.Entry<Integer, User> member : members.entrySet()) {
+        RoomUpdate.UserJoinedUpdate userJoinedUpdate =
+            RoomUpdate.UserJoinedUpdate.newBuilder()
+                .setUser(member.getValue())
+                .setPosition(seatIndex.seatOf(member.getKey()))
+                .build();
+        roomUpdates.add(
+            EncodedMessage.of(
+                RoomUpdate.newBuilder().setUserJoinedUpdate(userJoinedUpdate).build()));
+      }
+      if (gameInfo != null) {
+        roomUpdates.add(gameInfo.avalonGame.startUpdates.forSeat(seatIndex.seatOf(viewer)));
+      }
+
+      return roomUpdates;
+    }
+
+    /** How the room appears in the directory. */
+    @GuardedBy("this")
+    RoomListing listing() {
+      int openSeats = 0;
+      for (int seat = 0; seat < seatIndex.seatCount(); seat++) {
+        if (seatIndex.userAt(seat) == 0) {
+          openSeats++;
+        }
+      }
+
+      return RoomListing.newBuilder()
+          .setRoom(room)
+          .setOpenSeats(openSeats)
+          .setStarted(gameInfo != null)
+          .build();
+    }
+
+    public synchronized void assignSeat(int userId, User user, int position)
+        throws ResponseException {
+      if (position < SeatIndex.STANDING || position >= seatIndex.seatCount()) {
         throw new ResponseException("Invalid position");
       }
-      if (position != -1 && sitPlayers.get(position) != null) {
+      if (position != SeatIndex.STANDING
+          && seatIndex.userAt(position) != 0
+          && seatIndex.userAt(position) != userId) {
         throw new ResponseException("Position already token");
       }
-      int currentPosition = seats.getOrDefault(user, -1);
-      if (currentPosition > -1) {
-        sitPlayers.set(currentPosition, null);
-      }
 
-      seats.put(user, position);
-      sitPlayers.set(position, user);
-      messageDispatcher.dispatch(
-          RoomUpdate.newBuilder()
-              .setUserJoinedUpdate(
-                  RoomUpdate.UserJoinedUpdate.newBuilder().setUser(user).setPosition(position))
+      lastActivityNanos = System.nanoTime();
+      seat(userId, user, position);
+      eventStore.append(
+          StoredEvent.newBuilder()
+              .setSeatAssigned(
+                  SeatAssigned.newBuilder()
+                      .setRoomName(room.getRoomName())
+                      .setUser(user)
+                      .setPosition(position)
+                      .setUserId(userId))
               .build());
+      messageDispatcher.dispatch(
+          EncodedMessage.of(
+              RoomUpdate.newBuilder()
+                  .setUserJoinedUpdate(
+                      RoomUpdate.UserJoinedUpdate.newBuilder().setUser(user).setPosition(position))
+                  .build()));
+    }
+
+    @GuardedBy("this")
+    private void seat(int userId, User user, int position) {
+      members.put(userId, user);
+      seatIndex.put(userId, position);
+      roomDirectory.update(this);
     }
   }
 }
@@ -0,0 +1,119 @@
+package com.avalon.domain;
+
+/**
+ * Maps user ids to seats and seats back to user ids without boxing or hashing protos.
+ *
+ * <p>Writers hold the room monitor and publish a fresh copy of the arrays; seat changes are rare
+ * and rooms are small, so copying is cheap. Readers, such as game actions running on the game
+ * executor, take no lock and allocate nothing.
+ */
+final class SeatIndex {
+  /** The user is in the room but has not taken a seat. */
+  static final int STANDING = -1;
+  /** The user is not in the room. */
+  static final int ABSENT = -2;
+
+  private static final int EMPTY = 0;
+
+  private volatile Table table;
+
+  SeatIndex(int seatCount) {
+    this.table = new Table(new int[seatCount], new int[8], new int[8], 0);
+  }
+
+  int seatOf(int userId) {
+    return table.seatOf(userId);
+  }
+
+  /** Returns the id of the user in {@code seat}, or 0 when the seat is free. */
+  int userAt(int seat) {
+    return table.seatToUser[seat];
+  }
+
+  int seatCount() {
+    return table.seatToUser.length;
+  }
+
+  int size() {
+    return table.size;
+  }
+
+  /** Moves {@code userId} to {@code seat}, which may be {@link #STANDING}, freeing its old seat. */
+  void put(int userId, int seat) {
+    Table current = table;
+    int[] seatToUser = current.seatToUser.clone();
+    int previous = current.seatOf(userId);
+    if (previous >= 0) {
+      seatToUser[previous] = EMPTY;
+    }
+    if (seat >= 0) {
+      seatToUser[seat] = userId;
+    }
+
+    int size = previous == ABSENT ? current.size + 1 : current.size;
+    int capacity = current.keys.length;
+    while (size * 2 > capacity) {
+      capacity *= 2;
+    }
+
+    int[] keys;
+    int[] values;
+    if (capacity == current.keys.length) {
+      keys = current.keys.clone();
+      values = current.values.clone();
+    } else {
+      keys = new int[capacity];
+      values = new int[capacity];
+      for (int i = 0; i < current.keys.length; i++) {
+        if (current.keys[i] != EMPTY) {
+          insert(keys, values, current.keys[i], current.values[i]);
+        }
+      }
+    }
+    insert(keys, values, userId, seat);
+
+    table = new Table(seatToUser, keys, values, size);
+  }
+
+  private static void insert(int[] keys, int[] values, int key, int value) {
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (keys[slot] != EMPTY && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+  }
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private static final class Table {
+    final int[] seatToUser;
+    final int[] keys;
+    final int[] values;
+    final int size;
+
+    Table(int[] seatToUser, int[] keys, int[] values, int size) {
+      this.seatToUser = seatToUser;
+      this.keys = keys;
+      this.values = values;
+      this.size = size;
+    }
+
+    int seatOf(int userId) {
+      int mask = keys.length - 1;
+      int slot = hash(userId) & mask;
+      while (keys[slot] != EMPTY) {
+        if (keys[slot] == userId) {
+          return values[slot];
+        }
+        slot = (slot + 1) & mask;
+      }
+
+      return ABSENT;
+    }
+  }
+}
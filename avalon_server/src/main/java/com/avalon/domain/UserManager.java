@@ -1,69 +1,222 @@
 package com.avalon.domain;
 
+import com.avalon.auth.TokenSigner;
+import com.avalon.cluster.ClusterClient;
+import com.avalon.cluster.ShardMap;
 import com.avalon.proto.base.Auth;
 import com.avalon.proto.service.User;
+import com.avalon.proto.store.IdsReserved;
+import com.avalon.proto.store.StoredEvent;
+import com.avalon.proto.store.UserCreated;
+import com.avalon.proto.store.UserRemoved;
+import com.avalon.store.EventStore;
 import com.avalon.util.ResponseException;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
+import javax.inject.Singleton;
 
+@Singleton
 public class UserManager {
+  private static final long TOUCH_GRANULARITY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
   private final AtomicInteger atomicInteger = new AtomicInteger();
 
-  @GuardedBy("this")
-  private final Map<Integer, UserInfo> map = new HashMap<>();
+  private final Map<Integer, UserInfo> map = new ConcurrentHashMap<>();
+  private final Set<String> nameSet = ConcurrentHashMap.newKeySet();
 
-  private final Set<String> nameSet = new HashSet<>();
+  private final EventStore eventStore;
+  private final TokenSigner tokenSigner;
+  private final ShardMap shardMap;
+  private final ClusterClient clusterClient;
 
   @Inject
-  UserManager() {}
+  UserManager(
+      EventStore eventStore,
+      TokenSigner tokenSigner,
+      ShardMap shardMap,
+      ClusterClient clusterClient) {
+    this.eventStore = eventStore;
+    this.tokenSigner = tokenSigner;
+    this.shardMap = shardMap;
+    this.clusterClient = clusterClient;
+  }
 
-  public synchronized Auth createUser(User user) throws ResponseException {
+  public Auth createUser(User user) throws ResponseException {
     if (user.getUsername().isEmpty()) {
       throw new ResponseException("User name could not be empty");
     }
+    // Names are unique because each one can only be taken on the node owning it.
+    if (!shardMap.owns(user.getUsername())) {
+      throw new ResponseException("User name belongs to another node");
+    }
 
-    if (nameSet.contains(user.getUsername())) {
+    if (!nameSet.add(user.getUsername())) {
       throw new ResponseException("User name already token");
     }
 
-    int id = atomicInteger.incrementAndGet();
-    Auth auth =
-        Auth.newBuilder()
-            .setId(id)
-            .setToken(UUID.randomUUID().toString() + user.getUsername())
-            .build();
+    int id = shardMap.newId(atomicInteger.incrementAndGet());
+    Auth auth = Auth.newBuilder().setId(id).build();
     map.put(id, new UserInfo(auth, user));
-    nameSet.add(user.getUsername());
+    // The token is derived from the id, so the log never holds a credential.
+    eventStore.append(
+        StoredEvent.newBuilder()
+            .setUserCreated(UserCreated.newBuilder().setAuth(auth).setUser(user))
+            .build());
 
-    return auth;
+    return auth.toBuilder().setToken(tokenSigner.sign(id)).build();
   }
 
-  public synchronized UserInfo validate(Auth auth) throws ResponseException {
-    if (auth.getId() <= 0 && !map.containsKey(auth.getId())) {
-      throw new ResponseException("Failed to auth");
+  void restore(UserCreated userCreated) {
+    Auth auth = Auth.newBuilder().setId(userCreated.getAuth().getId()).build();
+    map.put(auth.getId(), new UserInfo(auth, userCreated.getUser()));
+    if (ShardMap.nodeOfId(auth.getId()) == shardMap.self()) {
+      atomicInteger.accumulateAndGet(ShardMap.sequenceOf(auth.getId()), Math::max);
+      nameSet.add(userCreated.getUser().getUsername());
+    }
+  }
+
+  /** Never issues again the ids of the users that compaction dropped from the log. */
+  void restore(IdsReserved idsReserved) {
+    for (int id : idsReserved.getUserIdList()) {
+      if (ShardMap.nodeOfId(id) == shardMap.self()) {
+        atomicInteger.accumulateAndGet(ShardMap.sequenceOf(id), Math::max);
+      }
     }
+  }
 
-    UserInfo userInfo = map.get(auth.getId());
-    if (!userInfo.auth.getToken().equals(auth.getToken())) {
+  void restore(UserRemoved userRemoved) {
+    UserInfo userInfo = map.remove(userRemoved.getId());
+    if (userInfo != null) {
+      nameSet.remove(userInfo.user.getUsername());
+    }
+  }
+
+  /** Removes the users that have not made a call for {@code idleNanos}, freeing their names. */
+  int evictIdle(long now, long idleNanos) {
+    int evicted = 0;
+    for (UserInfo userInfo : map.values()) {
+      if (now - userInfo.lastSeenNanos <= idleNanos
+          || !map.remove(userInfo.auth.getId(), userInfo)) {
+        continue;
+      }
+
+      nameSet.remove(userInfo.user.getUsername());
+      eventStore.append(
+          StoredEvent.newBuilder()
+              .setUserRemoved(UserRemoved.newBuilder().setId(userInfo.auth.getId()))
+              .build());
+      evicted++;
+    }
+
+    return evicted;
+  }
+
+  /**
+   * Checks the token signature rather than a stored secret. The last verified token is cached per
+   * user, so repeated calls with the same token cost a string comparison instead of an HMAC.
+   */
+  public UserInfo validate(Auth auth) throws ResponseException {
+    UserInfo userInfo = auth.getId() > 0 ? map.get(auth.getId()) : null;
+    if (userInfo == null) {
+      userInfo = adopt(auth);
+    }
+    if (userInfo == null) {
       throw new ResponseException("Failed to auth");
     }
 
+    VerifiedToken verified = userInfo.verifiedToken;
+    if (verified == null
+        || !verified.token.equals(auth.getToken())
+        || verified.expiryMillis <= System.currentTimeMillis()) {
+      long expiryMillis = tokenSigner.verify(auth.getId(), auth.getToken());
+      if (expiryMillis < 0) {
+        throw new ResponseException("Failed to auth");
+      }
+      userInfo.verifiedToken = new VerifiedToken(auth.getToken(), expiryMillis);
+    }
+
+    userInfo.touch();
     return userInfo;
   }
 
+  /** Returns the user with {@code id} if this node created it, for the other nodes. */
+  @Nullable
+  public User localUser(int id) {
+    UserInfo userInfo = ShardMap.nodeOfId(id) == shardMap.self() ? map.get(id) : null;
+    return userInfo == null ? null : userInfo.user;
+  }
+
+  /** Stores user {@code id}, created by another node, unless this node already has it. */
+  public void putUser(int id, User user) {
+    if (id > 0 && ShardMap.nodeOfId(id) != shardMap.self()) {
+      putRemote(id, user);
+    }
+  }
+
+  /**
+   * Fetches a user created on another node that did not put it here, such as a node added since or
+   * one that was down. This blocks the calling thread, so it is kept off the usual path.
+   */
+  @Nullable
+  private UserInfo adopt(Auth auth) {
+    if (auth.getId() <= 0
+        || ShardMap.nodeOfId(auth.getId()) == shardMap.self()
+        || tokenSigner.verify(auth.getId(), auth.getToken()) < 0) {
+      return null;
+    }
+
+    User user = clusterClient.fetchUser(auth.getId());
+    return user == null ? null : putRemote(auth.getId(), user);
+  }
+
+  private UserInfo putRemote(int id, User user) {
+    Auth auth = Auth.newBuilder().setId(id).build();
+    UserInfo userInfo = new UserInfo(auth, user);
+    UserInfo previous = map.putIfAbsent(id, userInfo);
+    if (previous != null) {
+      return previous;
+    }
+    // Logged like the users created here so they survive a restart; their names stay with the
+    // node that created them.
+    eventStore.append(
+        StoredEvent.newBuilder()
+            .setUserCreated(UserCreated.newBuilder().setAuth(auth).setUser(user))
+            .build());
+    return userInfo;
+  }
+
+  private static class VerifiedToken {
+    final String token;
+    final long expiryMillis;
+
+    VerifiedToken(String token, long expiryMillis) {
+      this.token = token;
+      this.expiryMillis = expiryMillis;
+    }
+  }
+
   public static class UserInfo {
     public final Auth auth;
     public final User user;
+    private volatile long lastSeenNanos = System.nanoTime();
+    private volatile VerifiedToken verifiedToken;
 
     UserInfo(Auth auth, User user) {
       this.auth = auth;
       this.user = user;
     }
+
+    /** Skips the write when recently touched, to keep the hot path from bouncing the cache line. */
+    private void touch() {
+      long now = System.nanoTime();
+      if (now - lastSeenNanos > TOUCH_GRANULARITY_NANOS) {
+        lastSeenNanos = now;
+      }
+    }
   }
 }
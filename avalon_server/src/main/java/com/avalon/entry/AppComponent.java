@@ -1,10 +1,26 @@
 package com.avalon.entry;
 
+import com.avalon.Server;
+import com.avalon.cluster.RoutingProxy;
+import com.avalon.domain.EventLogRecovery;
+import com.avalon.domain.LifecycleSweeper;
+import com.avalon.service.AvalonGameService;
+import com.avalon.service.AvalonRoomService;
 import dagger.Component;
 import javax.inject.Singleton;
 
 @Singleton
-@Component
-public class AppComponent {
+@Component(modules = AppModule.class)
+public interface AppComponent {
+  Server server();
 
+  AvalonRoomService avalonRoomService();
+
+  AvalonGameService avalonGameService();
+
+  EventLogRecovery eventLogRecovery();
+
+  LifecycleSweeper lifecycleSweeper();
+
+  RoutingProxy routingProxy();
 }
@@ -0,0 +1,222 @@
+package com.avalon.entry;
+
+import com.avalon.Server;
+import com.avalon.auth.TokenSigner;
+import com.avalon.cluster.ClusterClient;
+import com.avalon.cluster.RoutingProxy;
+import com.avalon.cluster.ShardMap;
+import com.avalon.domain.AvalonGame;
+import com.avalon.domain.LifecycleSweeper;
+import com.avalon.domain.Matchmaker;
+import com.avalon.domain.MessageDispatcher;
+import com.avalon.metrics.Metrics;
+import com.avalon.proto.game.VoteForPlayerRequest;
+import com.avalon.service.AvalonGameService;
+import com.avalon.store.DiscardingEventStore;
+import com.avalon.store.EventStore;
+import com.avalon.store.FileEventStore;
+import com.avalon.util.TimerWheel;
+import dagger.Module;
+import dagger.Provides;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+@Module
+public class AppModule {
+  private static final Logger logger = Logger.getLogger(AppModule.class.getName());
+
+  @Provides
+  @Singleton
+  @Named("gameExecutor")
+  static Executor provideGameExecutor() {
+    return new ForkJoinPool(
+        Runtime.getRuntime().availableProcessors(),
+        ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+        null,
+        true);
+  }
+
+  @Provides
+  @Singleton
+  @Named("dispatchExecutor")
+  static Executor provideDispatchExecutor() {
+    return new ForkJoinPool(
+        Runtime.getRuntime().availableProcessors(),
+        ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+        null,
+        true);
+  }
+
+  @Provides
+  @Singleton
+  static TimerWheel provideTimerWheel(Metrics metrics) {
+    TimerWheel timerWheel =
+        new TimerWheel("timer-wheel", Long.getLong("avalon.timerTickMillis", 10), 512);
+    metrics.gauge("avalon_timers", "Timers pending on the timer wheel.", "", timerWheel::size);
+    return timerWheel;
+  }
+
+  @Provides
+  static AvalonGame.Options provideGameOptions() {
+    return new AvalonGame.Options(
+        Long.getLong("avalon.voteWindowMillis", -1),
+        Long.getLong("avalon.turnTimeoutMillis", 0),
+        VoteForPlayerRequest.Voting.valueOf(System.getProperty("avalon.autoVote", "AGREE")),
+        Boolean.parseBoolean(System.getProperty("avalon.autoTaskSuccess", "true")));
+  }
+
+  @Provides
+  static AvalonGameService.Options provideGameServiceOptions() {
+    return new AvalonGameService.Options(System.getProperty("avalon.historyCompression", "gzip"));
+  }
+
+  @Provides
+  @Singleton
+  @Named("matchmakerExecutor")
+  static Executor provideMatchmakerExecutor() {
+    return Executors.newSingleThreadExecutor(
+        runnable -> {
+          Thread thread = new Thread(runnable, "matchmaker");
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  @Provides
+  static Matchmaker.Options provideMatchmakerOptions() {
+    return new Matchmaker.Options(Long.getLong("avalon.matchBatchMillis", 100));
+  }
+
+  @Provides
+  @Named("watchdogPeriodMillis")
+  static long provideWatchdogPeriodMillis() {
+    return 5_000;
+  }
+
+  @Provides
+  static MessageDispatcher.Options provideDispatcherOptions() {
+    return new MessageDispatcher.Options(
+        256, MessageDispatcher.OverflowPolicy.COALESCE_AND_RESYNC, 30_000);
+  }
+
+  @Provides
+  @Singleton
+  static EventStore provideEventStore() {
+    String directory = System.getProperty("avalon.eventLogDir");
+    if (directory == null) {
+      return new DiscardingEventStore();
+    }
+
+    try {
+      return new FileEventStore(Paths.get(directory), 64L << 20, 20);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Provides
+  @Singleton
+  @Named("lifecycleExecutor")
+  static Executor provideLifecycleExecutor() {
+    return Executors.newSingleThreadExecutor(
+        runnable -> {
+          Thread thread = new Thread(runnable, "lifecycle-sweeper");
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  @Provides
+  @Named("sweepPeriodMillis")
+  static long provideSweepPeriodMillis() {
+    return TimeUnit.SECONDS.toMillis(30);
+  }
+
+  @Provides
+  static LifecycleSweeper.Options provideLifecycleOptions() {
+    String archiveDirectory = System.getProperty("avalon.archiveDir");
+    return new LifecycleSweeper.Options(
+        TimeUnit.MINUTES.toMillis(30),
+        TimeUnit.MINUTES.toMillis(5),
+        TimeUnit.HOURS.toMillis(24),
+        archiveDirectory == null ? null : Paths.get(archiveDirectory));
+  }
+
+  @Provides
+  static ShardMap.Options provideShardMapOptions() {
+    String nodes = System.getProperty("avalon.nodes");
+    if (nodes == null) {
+      return new ShardMap.Options(
+          Collections.singletonList("localhost:" + Integer.getInteger("avalon.port", 8980)), 0);
+    }
+    // Every node has to accept the tokens the others sign.
+    if (System.getProperty("avalon.tokenSecret") == null) {
+      throw new IllegalStateException("avalon.nodes requires avalon.tokenSecret");
+    }
+
+    return new ShardMap.Options(
+        Arrays.asList(nodes.split(",")), Integer.getInteger("avalon.node", 0));
+  }
+
+  @Provides
+  static ClusterClient.Options provideClusterClientOptions() {
+    return new ClusterClient.Options(Integer.getInteger("avalon.channelsPerNode", 8));
+  }
+
+  @Provides
+  static RoutingProxy.Options provideRoutingProxyOptions() {
+    return new RoutingProxy.Options(
+        Integer.getInteger("avalon.port", 8980), Long.getLong("avalon.proxyDeadlineMillis", 5_000));
+  }
+
+  /**
+   * The HMAC key signing tokens is the base64 {@code avalon.tokenSecret}. It is required with
+   * {@code avalon.eventLogDir}, since users restored from the log must keep their tokens. Without
+   * either, a random key is used, and every token stops validating on restart.
+   */
+  @Provides
+  static TokenSigner.Options provideTokenSignerOptions() {
+    String secret = System.getProperty("avalon.tokenSecret");
+    byte[] key = new byte[32];
+    if (secret != null) {
+      key = Base64.getDecoder().decode(secret);
+    } else if (System.getProperty("avalon.eventLogDir") != null) {
+      throw new IllegalStateException("avalon.eventLogDir requires avalon.tokenSecret");
+    } else {
+      logger.warning("avalon.tokenSecret is not set, tokens will not survive a restart");
+      new SecureRandom().nextBytes(key);
+    }
+
+    return new TokenSigner.Options(key, TimeUnit.DAYS.toMillis(1), TimeUnit.DAYS.toMillis(7));
+  }
+
+  @Provides
+  static Server.Options provideServerOptions() {
+    int cores = Runtime.getRuntime().availableProcessors();
+    return new Server.Options(
+        Integer.getInteger("avalon.port", 8980),
+        Integer.getInteger("avalon.bossThreads", 1),
+        Integer.getInteger("avalon.workerThreads", 0),
+        Server.ExecutorType.valueOf(System.getProperty("avalon.executor", "FIXED")),
+        Integer.getInteger("avalon.executorThreads", Math.max(16, cores * 4)),
+        Integer.getInteger("avalon.maxInboundMessageBytes", 1 << 20),
+        Integer.getInteger("avalon.flowControlWindowBytes", 1 << 20),
+        Long.getLong("avalon.keepAliveMillis", TimeUnit.MINUTES.toMillis(1)),
+        Long.getLong("avalon.keepAliveTimeoutMillis", TimeUnit.SECONDS.toMillis(20)),
+        Integer.getInteger("avalon.maxConcurrentStreams", 256),
+        Long.getLong("avalon.drainMillis", TimeUnit.SECONDS.toMillis(20)),
+        Integer.getInteger("avalon.adminPort", 9980));
+  }
+}
@@ -0,0 +1,48 @@
+package com.avalon.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import javax.inject.Inject;
+
+/**
+ * Serves {@link Metrics#scrape()} at {@code /metrics} over HTTP, on the loopback interface only.
+ */
+public class AdminServer {
+  private final Metrics metrics;
+  private HttpServer httpServer;
+
+  @Inject
+  AdminServer(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public void start(int port) throws IOException {
+    httpServer =
+        HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    httpServer.createContext(
+        "/metrics",
+        exchange -> {
+          byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+        });
+    httpServer.start();
+  }
+
+  public int port() {
+    return httpServer.getAddress().getPort();
+  }
+
+  public void stop() {
+    if (httpServer != null) {
+      httpServer.stop(0);
+    }
+  }
+}
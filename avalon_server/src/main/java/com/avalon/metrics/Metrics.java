@@ -0,0 +1,100 @@
+package com.avalon.metrics;
+
+import com.avalon.util.LatencyHistogram;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Registry of the server's metrics, rendered in the Prometheus text format by {@link #scrape()}.
+ *
+ * <p>Histograms are recorded lock-free by the code they measure; gauges are callbacks only sampled
+ * on a scrape, so they cost nothing in between. Look histograms up once and keep them, the lookup
+ * itself is not meant for the hot path.
+ */
+@Singleton
+public class Metrics {
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+  @Inject
+  public Metrics() {}
+
+  /**
+   * Returns the histogram of durations {@code name} with {@code labels}, such as {@code
+   * method="Propose"}, creating it on first use. It is exposed as a summary in seconds.
+   */
+  public LatencyHistogram histogram(String name, String help, String labels) {
+    return (LatencyHistogram)
+        family(name, "summary", help)
+            .series
+            .computeIfAbsent(labels, ignored -> new LatencyHistogram());
+  }
+
+  /** Registers a gauge, replacing any previous one with the same name and labels. */
+  public void gauge(String name, String help, String labels, LongSupplier value) {
+    family(name, "gauge", help).series.put(labels, value);
+  }
+
+  public String scrape() {
+    StringBuilder out = new StringBuilder();
+    for (Map.Entry<String, Family> entry : families.entrySet()) {
+      String name = entry.getKey();
+      Family family = entry.getValue();
+      out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+      out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+      for (Map.Entry<String, Object> series : family.series.entrySet()) {
+        String labels = series.getKey();
+        if (series.getValue() instanceof LongSupplier) {
+          sample(out, name, labels, ((LongSupplier) series.getValue()).getAsLong());
+          continue;
+        }
+
+        LatencyHistogram histogram = (LatencyHistogram) series.getValue();
+        String separator = labels.isEmpty() ? "" : ",";
+        for (double quantile : QUANTILES) {
+          sample(
+              out,
+              name,
+              labels + separator + "quantile=\"" + quantile + "\"",
+              histogram.percentileNanos(quantile) / NANOS_PER_SECOND);
+        }
+        sample(out, name + "_sum", labels, histogram.sumNanos() / NANOS_PER_SECOND);
+        sample(out, name + "_count", labels, histogram.count());
+      }
+    }
+    return out.toString();
+  }
+
+  private Family family(String name, String type, String help) {
+    Family family = families.computeIfAbsent(name, ignored -> new Family(type, help));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException(name + " is already a " + family.type);
+    }
+    return family;
+  }
+
+  private static void sample(StringBuilder out, String name, String labels, Object value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+
+  private static class Family {
+    final String type;
+    final String help;
+    final ConcurrentMap<String, Object> series = new ConcurrentSkipListMap<>();
+
+    Family(String type, String help) {
+      this.type = type;
+      this.help = help;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package com.avalon.metrics;
+
+import com.avalon.util.LatencyHistogram;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Records the latency of every call by method and status, and counts the open server streams. For
+ * streams, the latency is how long the stream stayed open.
+ */
+@Singleton
+public class MetricsInterceptor implements ServerInterceptor {
+  private final Metrics metrics;
+  private final ConcurrentMap<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+
+  @Inject
+  MetricsInterceptor(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+      ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+    MethodDescriptor<ReqT, RespT> method = call.getMethodDescriptor();
+    MethodMetrics methodMetrics =
+        methods.computeIfAbsent(method.getFullMethodName(), ignored -> new MethodMetrics(method));
+    CallMetrics callMetrics = new CallMetrics(methodMetrics);
+
+    ServerCall.Listener<ReqT> listener =
+        next.startCall(
+            new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+              @Override
+              public void close(Status status, Metadata trailers) {
+                callMetrics.end(status.getCode());
+                super.close(status, trailers);
+              }
+            },
+            headers);
+    return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+      @Override
+      public void onCancel() {
+        callMetrics.end(Status.Code.CANCELLED);
+        super.onCancel();
+      }
+    };
+  }
+
+  private class MethodMetrics {
+    final String method;
+    final boolean streaming;
+    final AtomicInteger activeStreams = new AtomicInteger();
+    final AtomicReferenceArray<LatencyHistogram> latencies =
+        new AtomicReferenceArray<>(Status.Code.values().length);
+
+    MethodMetrics(MethodDescriptor<?, ?> methodDescriptor) {
+      String fullMethodName = methodDescriptor.getFullMethodName();
+      this.method = fullMethodName.substring(fullMethodName.lastIndexOf('/') + 1);
+      this.streaming = !methodDescriptor.getType().serverSendsOneMessage();
+      if (streaming) {
+        metrics.gauge(
+            "avalon_active_streams",
+            "Open server streams.",
+            "method=\"" + method + "\"",
+            activeStreams::get);
+      }
+    }
+
+    LatencyHistogram latency(Status.Code code) {
+      LatencyHistogram latency = latencies.get(code.ordinal());
+      if (latency == null) {
+        latency =
+            metrics.histogram(
+                "avalon_rpc_latency_seconds",
+                "Duration of calls, or how long streams stayed open.",
+                "method=\"" + method + "\",code=\"" + code + "\"");
+        latencies.set(code.ordinal(), latency);
+      }
+      return latency;
+    }
+  }
+
+  private static class CallMetrics {
+    final MethodMetrics methodMetrics;
+    final long startNanos = System.nanoTime();
+    final AtomicBoolean ended = new AtomicBoolean();
+
+    CallMetrics(MethodMetrics methodMetrics) {
+      this.methodMetrics = methodMetrics;
+      if (methodMetrics.streaming) {
+        methodMetrics.activeStreams.incrementAndGet();
+      }
+    }
+
+    /** Only the first of close and cancel counts, a call may see both. */
+    void end(Status.Code code) {
+      if (!ended.compareAndSet(false, true)) {
+        return;
+      }
+
+      methodMetrics.latency(code).record(System.nanoTime() - startNanos);
+      if (methodMetrics.streaming) {
+        methodMetrics.activeStreams.decrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,405 @@
+package com.avalon.rules;
+
+import com.avalon.util.ResponseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The rules of one game, free of any transport or storage so that simulations can play millions of
+ * games. Actions check and apply a move, tell the {@link Listener}, then apply and tell what the
+ * move led to, such as the end of a round. The {@code apply} methods only change the state as the
+ * matching event did, to restore a game from its events. Not thread safe.
+ *
+ * <p>Seats are tracked as bits of a {@code long}.
+ */
+public final class GameRules {
+  public static final int MAX_PLAYERS = Long.SIZE - 1;
+  public static final int MISSIONS_TO_WIN = 3;
+
+  /** Team sizes of the five missions, for 5 to 10 players. */
+  private static final int[][] TEAM_SIZES = {
+    {2, 3, 2, 3, 3},
+    {2, 3, 4, 3, 4},
+    {2, 3, 3, 4, 4},
+    {3, 4, 4, 5, 5},
+    {3, 4, 4, 5, 5},
+    {3, 4, 4, 5, 5},
+  };
+
+  public enum Vote {
+    NONE,
+    AGREE,
+    DISAGREE,
+  }
+
+  /** Told of each event right after it is applied. */
+  public interface Listener {
+    Listener NONE = new Listener() {};
+
+    default void roundStarted(int round, int leader) {}
+
+    default void proposed(int fromWhom, long team) {}
+
+    default void votedForPlayer(int who, Vote vote) {}
+
+    default void votedResult(boolean approved, long agreed) {}
+
+    default void votedForTask(int who, boolean success) {}
+
+    default void missionEnded(boolean success) {}
+
+    default void ladyTested(int who, int whom) {}
+  }
+
+  private final int playerCount;
+  private final long allPlayers;
+  /** Rejected proposals that fail a mission, or 0 to never fail one that way. */
+  private final int maximumRound;
+
+  private final boolean hasLadyByTheLake;
+  private final Listener listener;
+  private Role[] roles;
+
+  /** Seats that voted on the current proposal, and the ones among them that agreed. */
+  private long votedMask;
+
+  private long agreedMask;
+  /** Team members that voted on the mission, and the ones among them that failed it. */
+  private long taskVotedMask;
+
+  private long taskFailedMask;
+  /** Seats on the leader's last proposed team, or 0 when there is none. */
+  private long teamMask;
+
+  private int leader;
+  private int ladyByTheLake;
+  private int mission;
+  private int round;
+  private boolean allowProposal = true;
+  private boolean[] missionResults = new boolean[5];
+  private int successes;
+  private int failures;
+
+  /**
+   * @param leader the seat before the first leader, who leads once the game is {@link #start()
+   *     started}, and the first holder of the lady by the lake
+   */
+  public GameRules(
+      Role[] roles, int leader, int maximumRound, boolean hasLadyByTheLake, Listener listener) {
+    this.roles = roles.clone();
+    this.playerCount = roles.length;
+    this.allPlayers = (1L << playerCount) - 1;
+    this.maximumRound = maximumRound;
+    this.hasLadyByTheLake = hasLadyByTheLake;
+    this.listener = listener;
+    this.leader = leader;
+    this.ladyByTheLake = leader;
+  }
+
+  /** Starts the first round of a new game; restored games get theirs from their events. */
+  public void start() {
+    newRound();
+  }
+
+  public void propose(int fromWhom, long team) throws ResponseException {
+    checkNotFinished();
+    if (!allowProposal) {
+      throw new ResponseException("Currently not supported to propose");
+    }
+    if (team == -1L) {
+      throw new ResponseException("Invalid player in proposal");
+    }
+
+    applyProposal(fromWhom, team);
+    listener.proposed(fromWhom, team);
+    maybeEndRound();
+  }
+
+  public void voteForPlayer(int who, Vote vote) throws ResponseException {
+    checkNotFinished();
+    if (!allowProposal || teamMask == 0) {
+      throw new ResponseException("No team to vote on");
+    }
+    checkSeat(who);
+
+    applyVote(who, vote);
+    listener.votedForPlayer(who, vote);
+    maybeEndRound();
+  }
+
+  public void voteForTask(int who, boolean success) throws ResponseException {
+    checkNotFinished();
+    if (allowProposal) {
+      throw new ResponseException("Team not approved");
+    }
+    if ((teamMask & (1L << who)) == 0) {
+      throw new ResponseException("Not in the task team");
+    }
+
+    applyTaskVote(who, success);
+    listener.votedForTask(who, success);
+    if (taskVotedMask == teamMask) {
+      endMission(taskFailedMask == 0);
+    }
+  }
+
+  /** Returns whether {@code whom} is blue, as told to {@code who}, the holder of the lady. */
+  public boolean ladyTest(int who, int whom) throws ResponseException {
+    checkNotFinished();
+    if (!hasLadyByTheLake) {
+      throw new ResponseException("No lady by the lake in this game");
+    }
+    if (who != ladyByTheLake) {
+      throw new ResponseException("Not holding the lady by the lake");
+    }
+    if (whom == who) {
+      throw new ResponseException("Cannot test oneself");
+    }
+    checkSeat(whom);
+
+    applyLadyTest(whom);
+    listener.ladyTested(who, whom);
+    return roles[whom].isBlue();
+  }
+
+  private void checkNotFinished() throws ResponseException {
+    if (finished()) {
+      throw new ResponseException("Game finished");
+    }
+  }
+
+  private void checkSeat(int seat) throws ResponseException {
+    if (seat < 0 || seat >= playerCount) {
+      throw new ResponseException("Invalid player");
+    }
+  }
+
+  private void maybeEndRound() {
+    if (teamMask == 0 || votedMask != allPlayers) {
+      return;
+    }
+
+    long agreed = agreedMask;
+    boolean approved = Long.bitCount(agreed) > playerCount / 2;
+    applyVotedResult(approved);
+    listener.votedResult(approved, agreed);
+    if (approved) {
+      return;
+    }
+
+    round++;
+    if (round == maximumRound) {
+      endMission(false);
+      return;
+    }
+    newRound();
+  }
+
+  private void newRound() {
+    int next = leader + 1 == playerCount ? 0 : leader + 1;
+    applyRoundStart(round, next);
+    listener.roundStarted(round, next);
+  }
+
+  private void endMission(boolean success) {
+    applyMissionResult(success);
+    listener.missionEnded(success);
+    if (!finished()) {
+      newRound();
+    }
+  }
+
+  public void applyRoundStart(int round, int leader) {
+    this.round = round;
+    this.leader = leader;
+    teamMask = 0;
+    clearVotes();
+    allowProposal = true;
+  }
+
+  public void applyProposal(int fromWhom, long team) {
+    if (fromWhom == leader) {
+      teamMask = team;
+    }
+  }
+
+  public void applyVote(int who, Vote vote) {
+    long bit = 1L << who;
+    votedMask = vote == Vote.NONE ? votedMask & ~bit : votedMask | bit;
+    agreedMask = vote == Vote.AGREE ? agreedMask | bit : agreedMask & ~bit;
+  }
+
+  public void applyVotedResult(boolean approved) {
+    allowProposal = false;
+    clearVotes();
+    if (approved) {
+      clearTaskVotes();
+    }
+  }
+
+  public void applyTaskVote(int who, boolean success) {
+    long bit = 1L << who;
+    taskVotedMask |= bit;
+    taskFailedMask = success ? taskFailedMask & ~bit : taskFailedMask | bit;
+  }
+
+  public void applyMissionResult(boolean success) {
+    teamMask = 0;
+    clearTaskVotes();
+    allowProposal = true;
+    addMissionResult(success);
+    mission++;
+    round = 0;
+  }
+
+  public void applyLadyTest(int whom) {
+    ladyByTheLake = whom;
+  }
+
+  /**
+   * Replaces the whole state but the votes, which are then restored with {@link #applyVote} and
+   * {@link #applyTaskVote}.
+   */
+  public void restore(
+      Role[] roles,
+      int mission,
+      int round,
+      int leader,
+      int ladyByTheLake,
+      boolean allowProposal,
+      long teamMask,
+      List<Boolean> missionResults) {
+    this.roles = roles.clone();
+    this.mission = mission;
+    this.round = round;
+    this.leader = leader;
+    this.ladyByTheLake = ladyByTheLake;
+    this.allowProposal = allowProposal;
+    this.teamMask = teamMask;
+    successes = 0;
+    failures = 0;
+    for (boolean missionResult : missionResults) {
+      addMissionResult(missionResult);
+    }
+    clearVotes();
+    clearTaskVotes();
+  }
+
+  /** Returns the team size of {@code mission}, or a third of the players outside 5 to 10. */
+  public static int teamSize(int players, int mission) {
+    if (players < 5 || players > 10) {
+      return Math.max(1, (players + 2) / 3);
+    }
+    return TEAM_SIZES[players - 5][Math.min(mission, 4)];
+  }
+
+  /** Returns the team as a bitmask, or -1 if it names a seat outside the game. */
+  public long team(List<Integer> players) {
+    long team = 0;
+    for (int i = 0; i < players.size(); i++) {
+      int player = players.get(i);
+      if (player < 0 || player >= playerCount) {
+        return -1L;
+      }
+      team |= 1L << player;
+    }
+
+    return team;
+  }
+
+  public int playerCount() {
+    return playerCount;
+  }
+
+  public int maximumRound() {
+    return maximumRound;
+  }
+
+  public Role role(int seat) {
+    return roles[seat];
+  }
+
+  public int leader() {
+    return leader;
+  }
+
+  public int ladyByTheLake() {
+    return ladyByTheLake;
+  }
+
+  public int mission() {
+    return mission;
+  }
+
+  public int round() {
+    return round;
+  }
+
+  public boolean allowProposal() {
+    return allowProposal;
+  }
+
+  public long teamMask() {
+    return teamMask;
+  }
+
+  public long votedMask() {
+    return votedMask;
+  }
+
+  public long agreedMask() {
+    return agreedMask;
+  }
+
+  public long taskVotedMask() {
+    return taskVotedMask;
+  }
+
+  public long taskFailedMask() {
+    return taskFailedMask;
+  }
+
+  public int successes() {
+    return successes;
+  }
+
+  public int failures() {
+    return failures;
+  }
+
+  public List<Boolean> missionResults() {
+    List<Boolean> results = new ArrayList<>(successes + failures);
+    for (int i = 0; i < successes + failures; i++) {
+      results.add(missionResults[i]);
+    }
+    return results;
+  }
+
+  public boolean finished() {
+    return successes >= MISSIONS_TO_WIN || failures >= MISSIONS_TO_WIN;
+  }
+
+  private void addMissionResult(boolean success) {
+    int count = successes + failures;
+    if (count == missionResults.length) {
+      missionResults = Arrays.copyOf(missionResults, count * 2);
+    }
+    missionResults[count] = success;
+    if (success) {
+      successes++;
+    } else {
+      failures++;
+    }
+  }
+
+  private void clearVotes() {
+    votedMask = 0;
+    agreedMask = 0;
+  }
+
+  private void clearTaskVotes() {
+    taskVotedMask = 0;
+    taskFailedMask = 0;
+  }
+}
@@ -0,0 +1,38 @@
+package com.avalon.rules;
+
+/**
+ * Plays on what the player was told at the start. Leaders pick themselves and players they do not
+ * know to be red, or for a red leader one red partner; players approve teams without a known red
+ * one, red players teams with a red one, and everyone approves the last proposal before the mission
+ * would fail. Red players always fail missions.
+ */
+public final class HeuristicPolicy implements Policy {
+  @Override
+  public long proposeTeam(PlayerView view, int teamSize) {
+    long self = 1L << view.seat;
+    long others = ((1L << view.rules.playerCount()) - 1) & ~self;
+    if (view.role.isBlue()) {
+      long trusted = others & ~view.knownRed;
+      long team = self | view.randomSeats(trusted, teamSize - 1);
+      return team | view.randomSeats(others & ~team, teamSize - Long.bitCount(team));
+    }
+
+    long team = self | view.randomSeats(view.knownRed, 1);
+    return team | view.randomSeats(others & ~view.knownRed & ~team, teamSize - Long.bitCount(team));
+  }
+
+  @Override
+  public boolean approve(PlayerView view, long team) {
+    int maximumRound = view.rules.maximumRound();
+    if (maximumRound > 0 && view.rules.round() == maximumRound - 1) {
+      return true;
+    }
+    long red = view.knownRed | (view.role.isBlue() ? 0 : 1L << view.seat);
+    return view.role.isBlue() ? (team & red) == 0 : (team & red) != 0;
+  }
+
+  @Override
+  public boolean succeed(PlayerView view) {
+    return view.role.isBlue();
+  }
+}
@@ -0,0 +1,37 @@
+package com.avalon.rules;
+
+/** What one player of a simulated game knows, handed to its {@link Policy}. */
+public final class PlayerView {
+  public final GameRules rules;
+  public final int seat;
+  public final Role role;
+  /** Seats this player was told are red. */
+  public final long knownRed;
+
+  public final Rng rng;
+
+  PlayerView(GameRules rules, Visibility visibility, int seat, Rng rng) {
+    this.rules = rules;
+    this.seat = seat;
+    this.role = rules.role(seat);
+    this.knownRed = visibility.knownRed(Visibility.Sight.of(role)) & ~(1L << seat);
+    this.rng = rng;
+  }
+
+  /** Returns {@code size} distinct seats picked at random among {@code candidates}, as a mask. */
+  public long randomSeats(long candidates, int size) {
+    long picked = 0;
+    for (int left = Long.bitCount(candidates); size > 0 && left > 0; left--) {
+      int nth = rng.nextInt(left);
+      long seats = candidates;
+      for (int i = 0; i < nth; i++) {
+        seats &= seats - 1;
+      }
+      long seat = Long.lowestOneBit(seats);
+      picked |= seat;
+      candidates &= ~seat;
+      size--;
+    }
+    return picked;
+  }
+}
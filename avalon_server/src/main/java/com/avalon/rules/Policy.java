@@ -0,0 +1,15 @@
+package com.avalon.rules;
+
+/**
+ * Decides the moves of a player in a simulated game. One instance may play any number of seats and
+ * games at once, so anything it remembers has to be kept per {@link PlayerView}.
+ */
+public interface Policy {
+  /** Returns the team of {@code teamSize} seats the leader proposes, as a mask. */
+  long proposeTeam(PlayerView view, int teamSize);
+
+  boolean approve(PlayerView view, long team);
+
+  /** Whether the player, being on the team, lets the mission succeed. */
+  boolean succeed(PlayerView view);
+}
@@ -0,0 +1,30 @@
+package com.avalon.rules;
+
+/**
+ * Plays without thinking: random teams, approving with a fixed probability, and red players failing
+ * missions with another. Blue players always let missions succeed.
+ */
+public final class RandomPolicy implements Policy {
+  private final double approveProbability;
+  private final double failProbability;
+
+  public RandomPolicy(double approveProbability, double failProbability) {
+    this.approveProbability = approveProbability;
+    this.failProbability = failProbability;
+  }
+
+  @Override
+  public long proposeTeam(PlayerView view, int teamSize) {
+    return view.randomSeats((1L << view.rules.playerCount()) - 1, teamSize);
+  }
+
+  @Override
+  public boolean approve(PlayerView view, long team) {
+    return view.rng.nextBoolean(approveProbability);
+  }
+
+  @Override
+  public boolean succeed(PlayerView view) {
+    return view.role.isBlue() || !view.rng.nextBoolean(failProbability);
+  }
+}
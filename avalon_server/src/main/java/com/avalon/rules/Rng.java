@@ -0,0 +1,46 @@
+package com.avalon.rules;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Randomness of a game. Simulations seed one per game so that any game can be replayed; live games
+ * use {@link #threadLocal()}, which needs no seed and is not shared between threads.
+ */
+public interface Rng {
+  long nextLong();
+
+  /** Returns a value in [0, {@code bound}), {@code bound} being positive. */
+  default int nextInt(int bound) {
+    return (int) (((nextLong() >>> 32) * bound) >>> 32);
+  }
+
+  /** Returns true with probability {@code probability}. */
+  default boolean nextBoolean(double probability) {
+    return (nextLong() >>> 11) * 0x1.0p-53 < probability;
+  }
+
+  default <T> void shuffle(List<T> list) {
+    for (int i = list.size() - 1; i > 0; i--) {
+      int j = nextInt(i + 1);
+      list.set(i, list.set(j, list.get(i)));
+    }
+  }
+
+  default <T> void shuffle(T[] array) {
+    for (int i = array.length - 1; i > 0; i--) {
+      int j = nextInt(i + 1);
+      T swapped = array[i];
+      array[i] = array[j];
+      array[j] = swapped;
+    }
+  }
+
+  static Rng seeded(long seed) {
+    return new SplitMix64(seed);
+  }
+
+  static Rng threadLocal() {
+    return () -> ThreadLocalRandom.current().nextLong();
+  }
+}
@@ -0,0 +1,47 @@
+package com.avalon.rules;
+
+/** The characters of the game, in the order of their numbers in the protocol. */
+public enum Role {
+  UNKNOWN(false),
+  MERLIN(true),
+  PERCIVAL(true),
+  ARTHUR_SERVANT(true),
+  MORDRED(false),
+  MORGANA(false),
+  ASSASSIN(false),
+  OBERON(false),
+  // Lancelots do not switch sides yet, and the lady of the lake has always seen both as red.
+  LANCELOT_BLUE(false),
+  LANCELOT_RED(false);
+
+  private static final Role[] VALUES = values();
+
+  private final boolean blue;
+
+  Role(boolean blue) {
+    this.blue = blue;
+  }
+
+  /** Returns the role numbered {@code number} in the protocol, or {@link #UNKNOWN}. */
+  public static Role forNumber(int number) {
+    return number > 0 && number < VALUES.length ? VALUES[number] : UNKNOWN;
+  }
+
+  public boolean isBlue() {
+    return blue;
+  }
+
+  /**
+   * Whether a player with this role is told at the start that {@code other} is red: Merlin sees the
+   * red players but Mordred, and the red players see each other but Oberon.
+   */
+  public boolean knowsRed(Role other) {
+    if (other.blue) {
+      return false;
+    }
+    if (this == MERLIN) {
+      return other != MORDRED;
+    }
+    return !blue && this != OBERON && this != UNKNOWN && other != OBERON && other != UNKNOWN;
+  }
+}
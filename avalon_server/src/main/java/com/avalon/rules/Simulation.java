@@ -0,0 +1,89 @@
+package com.avalon.rules;
+
+import com.avalon.util.ResponseException;
+
+/**
+ * Plays a whole game with a {@link Policy} per seat and no listener, so nothing is allocated per
+ * move. The leader proposes a team of the standard size for the mission, everyone votes, and the
+ * team votes on the mission once approved.
+ */
+public final class Simulation {
+  /** Stops games that policies never get to finish, such as ones rejecting every proposal. */
+  private static final int MAX_PROPOSALS = 1_000;
+
+  public static final class Outcome {
+    /** Whether the game ended, with three missions won by the same side. */
+    public final boolean finished;
+
+    public final int successes;
+    public final int failures;
+    public final int proposals;
+    /** Missions failed because every proposal of the mission was rejected. */
+    public final int rejectedMissions;
+
+    Outcome(boolean finished, int successes, int failures, int proposals, int rejectedMissions) {
+      this.finished = finished;
+      this.successes = successes;
+      this.failures = failures;
+      this.proposals = proposals;
+      this.rejectedMissions = rejectedMissions;
+    }
+
+    public boolean blueWon() {
+      return successes >= GameRules.MISSIONS_TO_WIN;
+    }
+  }
+
+  private Simulation() {}
+
+  /**
+   * Plays a game of {@code roles}, dealt to the seats at random along with the first leader.
+   *
+   * @param policies the policy of each role, indexed by its ordinal
+   */
+  public static Outcome play(Role[] roles, Policy[] policies, int maximumRound, Rng rng) {
+    Role[] seats = roles.clone();
+    rng.shuffle(seats);
+    GameRules rules =
+        new GameRules(
+            seats, rng.nextInt(seats.length), maximumRound, false, GameRules.Listener.NONE);
+    Visibility visibility = new Visibility(seats);
+    PlayerView[] views = new PlayerView[seats.length];
+    for (int seat = 0; seat < seats.length; seat++) {
+      views[seat] = new PlayerView(rules, visibility, seat, rng);
+    }
+
+    int proposals = 0;
+    int rejectedMissions = 0;
+    try {
+      rules.start();
+      while (!rules.finished() && proposals < MAX_PROPOSALS) {
+        int mission = rules.mission();
+        PlayerView leader = views[rules.leader()];
+        long team =
+            policies[leader.role.ordinal()].proposeTeam(
+                leader, GameRules.teamSize(seats.length, mission));
+        rules.propose(leader.seat, team);
+        proposals++;
+        for (PlayerView view : views) {
+          boolean agree = policies[view.role.ordinal()].approve(view, team);
+          rules.voteForPlayer(view.seat, agree ? GameRules.Vote.AGREE : GameRules.Vote.DISAGREE);
+        }
+
+        if (rules.mission() != mission) {
+          rejectedMissions++;
+        } else if (!rules.allowProposal()) {
+          for (long members = team; members != 0; members &= members - 1) {
+            PlayerView view = views[Long.numberOfTrailingZeros(members)];
+            rules.voteForTask(view.seat, policies[view.role.ordinal()].succeed(view));
+          }
+        }
+      }
+    } catch (ResponseException e) {
+      throw new IllegalStateException("Policy made an invalid move: " + e.getMessage(), e);
+    }
+
+    return new Outcome(
+        rules.finished(), rules.successes(), rules.failures(), proposals, rejectedMissions);
+  }
+}
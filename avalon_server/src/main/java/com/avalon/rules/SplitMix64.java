@@ -0,0 +1,27 @@
+package com.avalon.rules;
+
+/**
+ * The SplitMix64 generator: a counter run through a mixing function, so it is cheap to seed and
+ * nearby seeds give unrelated sequences. Not thread safe, unlike {@link java.util.Random} which
+ * pays for an atomic update on every call.
+ */
+final class SplitMix64 implements Rng {
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+  private long state;
+
+  SplitMix64(long seed) {
+    this.state = seed;
+  }
+
+  @Override
+  public long nextLong() {
+    return mix(state += GOLDEN_GAMMA);
+  }
+
+  static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,59 @@
+package com.avalon.rules;
+
+/**
+ * What the players of a game are told at the start, worked out once for each class of roles that
+ * are told the same rather than for each player.
+ */
+public final class Visibility {
+  /** Roles that are told the same things. */
+  public enum Sight {
+    /** Sees the red players but Mordred. */
+    MERLIN,
+    /** Sees Merlin and Morgana, without knowing which is which. */
+    PERCIVAL,
+    /** Sees the red players but Oberon, themselves included. */
+    RED,
+    /** Sees nothing, such as a servant or Oberon. */
+    NONE;
+
+    public static Sight of(Role role) {
+      if (role == Role.MERLIN) {
+        return MERLIN;
+      }
+      if (role == Role.PERCIVAL) {
+        return PERCIVAL;
+      }
+      // Past Merlin, only the red roles but Oberon see Morgana.
+      return role.knowsRed(Role.MORGANA) ? RED : NONE;
+    }
+  }
+
+  private final long[] knownRed = new long[Sight.values().length];
+  private final long[] knownPercival = new long[Sight.values().length];
+
+  public Visibility(Role[] seats) {
+    for (int seat = 0; seat < seats.length; seat++) {
+      Role role = seats[seat];
+      long bit = 1L << seat;
+      if (Role.MERLIN.knowsRed(role)) {
+        knownRed[Sight.MERLIN.ordinal()] |= bit;
+      }
+      if (Role.MORGANA.knowsRed(role)) {
+        knownRed[Sight.RED.ordinal()] |= bit;
+      }
+      if (role == Role.MERLIN || role == Role.MORGANA) {
+        knownPercival[Sight.PERCIVAL.ordinal()] |= bit;
+      }
+    }
+  }
+
+  /** Returns the seats {@code sight} is told are red, as a mask. */
+  public long knownRed(Sight sight) {
+    return knownRed[sight.ordinal()];
+  }
+
+  /** Returns the seats {@code sight} is told may be Merlin, as a mask. */
+  public long knownPercival(Sight sight) {
+    return knownPercival[sight.ordinal()];
+  }
+}
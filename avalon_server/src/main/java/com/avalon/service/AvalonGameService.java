@@ -7,33 +7,85 @@ import com.avalon.proto.game.AvalonGameServiceGrpc;
 import com.avalon.proto.game.GameStatusUpdate;
 import com.avalon.proto.game.LadyResponse;
 import com.avalon.proto.game.LadyTestRequest;
+import com.avalon.proto.game.PlayResponse;
 import com.avalon.proto.game.PollRequest;
 import com.avalon.proto.game.ProposeRequest;
 import com.avalon.proto.game.VoteForPlayerRequest;
 import com.avalon.proto.game.VoteForTaskRequest;
+import com.avalon.util.EncodedMessage;
 import com.avalon.util.ResponseException;
 import com.avalon.util.StatusOr;
+import io.grpc.CompressorRegistry;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import javax.inject.Inject;
 
 public class AvalonGameService extends AvalonGameServiceGrpc.AvalonGameServiceImplBase {
+  public static class Options {
+    final String historyCompression;
+
+    /**
+     * @param historyCompression the codec compressing bulk histories for the clients that accept
+     *     it, one registered with gRPC such as gzip, or identity to send them as they are
+     */
+    public Options(String historyCompression) {
+      if (CompressorRegistry.getDefaultInstance().lookupCompressor(historyCompression) == null) {
+        throw new IllegalArgumentException("Unknown compression " + historyCompression);
+      }
+      this.historyCompression = historyCompression;
+    }
+  }
+
+  private final Options options;
   private final GameManager gameManager;
 
   @Inject
-  AvalonGameService(GameManager gameManager) {
+  AvalonGameService(Options options, GameManager gameManager) {
+    this.options = options;
     this.gameManager = gameManager;
   }
 
-  @Override
-  public void pollGameStatus(
-      PollRequest request, StreamObserver<GameStatusUpdate> responseObserver) {
+  /**
+   * Binds the service with PollGameStatus and Play sending pre-serialized updates. Register this
+   * definition instead of the service itself: {@link #bindService()} leaves both unimplemented.
+   */
+  public ServerServiceDefinition bindEncodedService() {
+    ServerServiceDefinition definition =
+        EncodedMessage.bindServerStreaming(
+            bindService(),
+            AvalonGameServiceGrpc.getPollGameStatusMethod(),
+            GameStatusUpdate.getDefaultInstance(),
+            this::pollGameStatusEncoded);
+    return EncodedMessage.bindBidiStreaming(
+        definition,
+        AvalonGameServiceGrpc.getPlayMethod(),
+        PlayResponse.getDefaultInstance(),
+        responseObserver ->
+            new PlayStream(gameManager, options.historyCompression, responseObserver));
+  }
+
+  /** Serves PollGameStatus, sharing the serialized updates with the other subscribers. */
+  private void pollGameStatusEncoded(
+      PollRequest request, StreamObserver<EncodedMessage<GameStatusUpdate>> responseObserver) {
+    if (request.getBulkHistory()) {
+      responseObserver =
+          new HistoryCompressingObserver(
+              (ServerCallStreamObserver<EncodedMessage<GameStatusUpdate>>) responseObserver,
+              options.historyCompression);
+    }
     try {
-      gameManager.pollGameStatus(request.getAuth(), request.getGameId(), responseObserver);
+      gameManager.pollGameStatus(
+          request.getAuth(),
+          request.getGameId(),
+          request.getFromIndex(),
+          request.getBulkHistory(),
+          responseObserver);
     } catch (ResponseException responseException) {
       ResponseError responseError =
           ResponseError.newBuilder().setError(responseException.getMessage()).build();
       responseObserver.onNext(
-          GameStatusUpdate.newBuilder().setResponseError(responseError).build());
+          EncodedMessage.of(GameStatusUpdate.newBuilder().setResponseError(responseError).build()));
       responseObserver.onCompleted();
     }
   }
@@ -0,0 +1,51 @@
+package com.avalon.service;
+
+import com.avalon.cluster.NodeAuth;
+import com.avalon.cluster.ShardMap;
+import com.avalon.domain.UserManager;
+import com.avalon.proto.cluster.AvalonNodeServiceGrpc;
+import com.avalon.proto.cluster.GetUserRequest;
+import com.avalon.proto.cluster.GetUserResponse;
+import com.avalon.proto.cluster.PutUserRequest;
+import com.avalon.proto.cluster.PutUserResponse;
+import com.avalon.proto.service.User;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import javax.inject.Inject;
+
+/** Answers the other nodes of the cluster, whose calls are checked by {@link NodeAuth}. */
+public class AvalonNodeService extends AvalonNodeServiceGrpc.AvalonNodeServiceImplBase {
+  private final UserManager userManager;
+
+  @Inject
+  AvalonNodeService(UserManager userManager) {
+    this.userManager = userManager;
+  }
+
+  @Override
+  public void getUser(GetUserRequest request, StreamObserver<GetUserResponse> responseObserver) {
+    GetUserResponse.Builder response = GetUserResponse.newBuilder();
+    User user = userManager.localUser(request.getId());
+    if (user != null) {
+      response.setUser(user);
+    }
+
+    responseObserver.onNext(response.build());
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void putUser(PutUserRequest request, StreamObserver<PutUserResponse> responseObserver) {
+    if (request.getId() <= 0 || ShardMap.nodeOfId(request.getId()) != NodeAuth.callerNode()) {
+      responseObserver.onError(
+          Status.PERMISSION_DENIED
+              .withDescription("User " + request.getId() + " not issued by the caller")
+              .asRuntimeException());
+      return;
+    }
+
+    userManager.putUser(request.getId(), request.getUser());
+    responseObserver.onNext(PutUserResponse.getDefaultInstance());
+    responseObserver.onCompleted();
+  }
+}
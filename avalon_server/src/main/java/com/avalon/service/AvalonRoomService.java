@@ -1,5 +1,7 @@
 package com.avalon.service;
 
+import com.avalon.cluster.ClusterClient;
+import com.avalon.domain.Matchmaker;
 import com.avalon.domain.RoomManager;
 import com.avalon.domain.UserManager;
 import com.avalon.proto.base.ResponseError;
@@ -9,13 +11,20 @@ import com.avalon.proto.service.CreateRoomRequest;
 import com.avalon.proto.service.CreateRoomResponse;
 import com.avalon.proto.service.CreateUserRequest;
 import com.avalon.proto.service.CreateUserResponse;
+import com.avalon.proto.service.JoinQueueRequest;
 import com.avalon.proto.service.JoinRoomRequest;
 import com.avalon.proto.service.ListRoomRequest;
 import com.avalon.proto.service.ListRoomResponse;
+import com.avalon.proto.service.QueueUpdate;
+import com.avalon.proto.service.RoomDirectoryUpdate;
 import com.avalon.proto.service.RoomUpdate;
 import com.avalon.proto.service.StartGameRequest;
+import com.avalon.proto.service.WatchRoomsRequest;
+import com.avalon.util.EncodedMessage;
 import com.avalon.util.ResponseException;
 import com.avalon.util.StatusOr;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import javax.inject.Inject;
 
@@ -23,11 +32,19 @@ public class AvalonRoomService extends AvalonRoomServiceGrpc.AvalonRoomServiceIm
 
   private final UserManager userManager;
   private final RoomManager roomManager;
+  private final Matchmaker matchmaker;
+  private final ClusterClient clusterClient;
 
   @Inject
-  AvalonRoomService(UserManager userManager, RoomManager roomManager) {
+  AvalonRoomService(
+      UserManager userManager,
+      RoomManager roomManager,
+      Matchmaker matchmaker,
+      ClusterClient clusterClient) {
     this.userManager = userManager;
     this.roomManager = roomManager;
+    this.matchmaker = matchmaker;
+    this.clusterClient = clusterClient;
   }
 
   @Override
@@ -39,9 +56,20 @@ public class AvalonRoomService extends AvalonRoomServiceGrpc.AvalonRoomServiceIm
             .to(
                 auth -> CreateUserResponse.newBuilder().setAuth(auth).build(),
                 error -> CreateUserResponse.newBuilder().setResponseError(error).build());
+    if (!response.hasAuth()) {
+      responseObserver.onNext(response);
+      responseObserver.onCompleted();
+      return;
+    }
 
-    responseObserver.onNext(response);
-    responseObserver.onCompleted();
+    // The other nodes learn of the user first, so it can use their rooms as soon as it is told.
+    clusterClient.putUser(
+        response.getAuth().getId(),
+        request.getUser(),
+        () -> {
+          responseObserver.onNext(response);
+          responseObserver.onCompleted();
+        });
   }
 
   @Override
@@ -58,28 +86,68 @@ public class AvalonRoomService extends AvalonRoomServiceGrpc.AvalonRoomServiceIm
     responseObserver.onCompleted();
   }
 
-  @Override
-  public void listRooms(
-      ListRoomRequest request, StreamObserver<ListRoomResponse> responseObserver) {
-    ListRoomResponse response =
-        ListRoomResponse.newBuilder().addAllRoom(roomManager.listRoom()).build();
+  /**
+   * Binds the service with ListRooms, WatchRooms and JoinRoom sending pre-serialized responses.
+   * Register this definition instead of the service itself: {@link #bindService()} leaves them
+   * unimplemented.
+   */
+  public ServerServiceDefinition bindEncodedService() {
+    ServerServiceDefinition definition =
+        EncodedMessage.bindUnary(
+            bindService(),
+            AvalonRoomServiceGrpc.getListRoomsMethod(),
+            ListRoomResponse.getDefaultInstance(),
+            this::listRoomsEncoded);
+    definition =
+        EncodedMessage.bindServerStreaming(
+            definition,
+            AvalonRoomServiceGrpc.getWatchRoomsMethod(),
+            RoomDirectoryUpdate.getDefaultInstance(),
+            this::watchRoomsEncoded);
+    return EncodedMessage.bindServerStreaming(
+        definition,
+        AvalonRoomServiceGrpc.getJoinRoomMethod(),
+        RoomUpdate.getDefaultInstance(),
+        this::joinRoomEncoded);
+  }
 
-    responseObserver.onNext(response);
+  /** Serves ListRooms from the directory snapshot shared by all lobby clients. */
+  private void listRoomsEncoded(
+      ListRoomRequest request, StreamObserver<EncodedMessage<ListRoomResponse>> responseObserver) {
+    responseObserver.onNext(roomManager.listRooms(request));
     responseObserver.onCompleted();
   }
 
-  @Override
-  public void joinRoom(JoinRoomRequest request, StreamObserver<RoomUpdate> responseObserver) {
+  /** Serves WatchRooms, sharing the serialized deltas with the other watchers. */
+  private void watchRoomsEncoded(
+      WatchRoomsRequest request,
+      StreamObserver<EncodedMessage<RoomDirectoryUpdate>> responseObserver) {
+    try {
+      roomManager.watchRooms(request.getAuth(), request.getFromVersion(), responseObserver);
+    } catch (ResponseException responseException) {
+      responseObserver.onError(
+          Status.UNAUTHENTICATED
+              .withDescription(responseException.getMessage())
+              .asRuntimeException());
+    }
+  }
+
+  /** Serves JoinRoom, sharing the serialized updates with the other subscribers. */
+  private void joinRoomEncoded(
+      JoinRoomRequest request, StreamObserver<EncodedMessage<RoomUpdate>> responseObserver) {
     try {
       roomManager.joinRoom(request.getAuth(), request.getRoomName(), responseObserver);
     } catch (ResponseException responseException) {
       ResponseError responseError =
           ResponseError.newBuilder().setError(responseException.getMessage()).build();
       responseObserver.onNext(
-          RoomUpdate.newBuilder()
-              .setRoomClosedUpdate(
-                  RoomUpdate.RoomClosedUpdate.newBuilder().setResponseError(responseError).build())
-              .build());
+          EncodedMessage.of(
+              RoomUpdate.newBuilder()
+                  .setRoomClosedUpdate(
+                      RoomUpdate.RoomClosedUpdate.newBuilder()
+                          .setResponseError(responseError)
+                          .build())
+                  .build()));
       responseObserver.onCompleted();
     }
   }
@@ -96,10 +164,36 @@ public class AvalonRoomService extends AvalonRoomServiceGrpc.AvalonRoomServiceIm
                   return null;
                 })
             .to(ignored -> ResponseError.newBuilder().build(), error -> error);
+
+    responseObserver.onNext(response);
+    responseObserver.onCompleted();
   }
 
   @Override
   public void startGame(StartGameRequest request, StreamObserver<ResponseError> responseObserver) {
-    super.startGame(request, responseObserver);
+    ResponseError response =
+        StatusOr.success(null)
+            .transform(
+                ignored -> {
+                  roomManager.startGame(request.getAuth(), request.getRoomName());
+                  return null;
+                })
+            .to(ignored -> ResponseError.newBuilder().build(), error -> error);
+
+    responseObserver.onNext(response);
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void joinQueue(JoinQueueRequest request, StreamObserver<QueueUpdate> responseObserver) {
+    try {
+      matchmaker.joinQueue(request.getAuth(), request.getRoom(), responseObserver);
+    } catch (ResponseException responseException) {
+      responseObserver.onNext(
+          QueueUpdate.newBuilder()
+              .setResponseError(ResponseError.newBuilder().setError(responseException.getMessage()))
+              .build());
+      responseObserver.onCompleted();
+    }
   }
 }
@@ -0,0 +1,76 @@
+package com.avalon.service;
+
+import com.avalon.proto.game.GameStatusUpdate;
+import com.avalon.util.EncodedMessage;
+import io.grpc.stub.ServerCallStreamObserver;
+
+/**
+ * Compresses the history updates of a PollGameStatus stream, if the client accepts the codec, and
+ * sends the live updates as they are: a handful of bytes each, they would only grow.
+ */
+class HistoryCompressingObserver
+    extends ServerCallStreamObserver<EncodedMessage<GameStatusUpdate>> {
+  private final ServerCallStreamObserver<EncodedMessage<GameStatusUpdate>> call;
+
+  HistoryCompressingObserver(
+      ServerCallStreamObserver<EncodedMessage<GameStatusUpdate>> call, String compression) {
+    this.call = call;
+    call.setCompression(compression);
+  }
+
+  @Override
+  public void onNext(EncodedMessage<GameStatusUpdate> update) {
+    call.setMessageCompression(update.message().hasHistory());
+    call.onNext(update);
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    call.onError(t);
+  }
+
+  @Override
+  public void onCompleted() {
+    call.onCompleted();
+  }
+
+  @Override
+  public boolean isReady() {
+    return call.isReady();
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return call.isCancelled();
+  }
+
+  @Override
+  public void setOnReadyHandler(Runnable onReadyHandler) {
+    call.setOnReadyHandler(onReadyHandler);
+  }
+
+  @Override
+  public void setOnCancelHandler(Runnable onCancelHandler) {
+    call.setOnCancelHandler(onCancelHandler);
+  }
+
+  @Override
+  public void setCompression(String compression) {
+    call.setCompression(compression);
+  }
+
+  @Override
+  public void disableAutoInboundFlowControl() {
+    call.disableAutoInboundFlowControl();
+  }
+
+  @Override
+  public void request(int count) {
+    call.request(count);
+  }
+
+  @Override
+  public void setMessageCompression(boolean enable) {
+    call.setMessageCompression(enable);
+  }
+}
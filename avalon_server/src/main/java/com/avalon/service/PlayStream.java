@@ -0,0 +1,221 @@
+package com.avalon.service;
+
+import com.avalon.domain.GameManager;
+import com.avalon.proto.base.ResponseError;
+import com.avalon.proto.game.GameStatusUpdate;
+import com.avalon.proto.game.PlayRequest;
+import com.avalon.proto.game.PlayResponse;
+import com.avalon.proto.game.PollRequest;
+import com.avalon.util.EncodedMessage;
+import com.avalon.util.ResponseException;
+import com.avalon.util.StatusOr;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Serves a Play call: the first request binds the stream to a game, after which the game's updates
+ * and the acks of the player's actions share the response stream.
+ *
+ * <p>Updates go through the game's dispatcher, which honors flow control; acks are small and sent
+ * as soon as their action has run, so an ack may overtake the updates its action caused.
+ */
+class PlayStream implements StreamObserver<PlayRequest> {
+  private final GameManager gameManager;
+  private final String historyCompression;
+  private final ServerCallStreamObserver<EncodedMessage<PlayResponse>> call;
+  private final UpdateFeed updateFeed = new UpdateFeed();
+
+  @Nullable private volatile GameManager.Player player;
+
+  @GuardedBy("this")
+  private boolean closed;
+
+  /** Whether history updates are compressed, while the acks and live updates are not. */
+  @GuardedBy("this")
+  private boolean compressHistory;
+
+  PlayStream(
+      GameManager gameManager,
+      String historyCompression,
+      StreamObserver<EncodedMessage<PlayResponse>> call) {
+    this.gameManager = gameManager;
+    this.historyCompression = historyCompression;
+    this.call = (ServerCallStreamObserver<EncodedMessage<PlayResponse>>) call;
+    // Handlers can only be set before the call is handed its request observer, that is before the
+    // stream is bound, so they forward to the ones the dispatcher sets on the feed later.
+    this.call.setOnReadyHandler(updateFeed::onReady);
+    this.call.setOnCancelHandler(updateFeed::onCancel);
+  }
+
+  @Override
+  public void onNext(PlayRequest request) {
+    GameManager.Player boundPlayer = player;
+    if (boundPlayer == null) {
+      bind(request);
+    } else if (request.hasPoll()) {
+      ack(request.getId(), StatusOr.failure("Stream already bound"));
+    } else {
+      gameManager.play(boundPlayer, request, result -> ack(request.getId(), result));
+    }
+  }
+
+  private void bind(PlayRequest request) {
+    if (!request.hasPoll()) {
+      ack(request.getId(), StatusOr.failure("Stream not bound"));
+      complete();
+      return;
+    }
+
+    PollRequest pollRequest = request.getPoll();
+    if (pollRequest.getBulkHistory()) {
+      synchronized (this) {
+        call.setCompression(historyCompression);
+        compressHistory = true;
+      }
+    }
+    try {
+      player =
+          gameManager.bindPlayer(
+              pollRequest.getAuth(),
+              pollRequest.getGameId(),
+              pollRequest.getFromIndex(),
+              pollRequest.getBulkHistory(),
+              updateFeed);
+      ack(request.getId(), StatusOr.success(null));
+    } catch (ResponseException responseException) {
+      ack(request.getId(), StatusOr.failure(responseException.getMessage()));
+      complete();
+    }
+  }
+
+  /** The client is done sending actions; the updates keep flowing until the game ends. */
+  @Override
+  public void onCompleted() {}
+
+  /** The client went away; nothing more can be sent. */
+  @Override
+  public synchronized void onError(Throwable t) {
+    closed = true;
+  }
+
+  private void ack(int id, StatusOr<Boolean> result) {
+    PlayResponse.Ack ack =
+        result.to(
+            isBlue -> {
+              PlayResponse.Ack.Builder builder = PlayResponse.Ack.newBuilder().setId(id);
+              if (isBlue != null) {
+                builder.setIsBlue(isBlue);
+              }
+              return builder.build();
+            },
+            (ResponseError error) ->
+                PlayResponse.Ack.newBuilder().setId(id).setResponseError(error).build());
+    send(EncodedMessage.of(PlayResponse.newBuilder().setAck(ack).build()));
+  }
+
+  private synchronized void send(EncodedMessage<PlayResponse> response) {
+    if (closed) {
+      return;
+    }
+
+    if (compressHistory) {
+      call.setMessageCompression(response.message().getUpdate().hasHistory());
+    }
+    call.onNext(response);
+  }
+
+  private synchronized void complete() {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    call.onCompleted();
+  }
+
+  private synchronized void fail(Throwable t) {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    call.onError(t);
+  }
+
+  /** The game's updates as the dispatcher sees them, wrapped into responses of the call. */
+  private class UpdateFeed extends ServerCallStreamObserver<EncodedMessage<GameStatusUpdate>> {
+    @Nullable private volatile Runnable onReadyHandler;
+    @Nullable private volatile Runnable onCancelHandler;
+
+    void onReady() {
+      Runnable handler = onReadyHandler;
+      if (handler != null) {
+        handler.run();
+      }
+    }
+
+    void onCancel() {
+      Runnable handler = onCancelHandler;
+      if (handler != null) {
+        handler.run();
+      }
+    }
+
+    @Override
+    public void onNext(EncodedMessage<GameStatusUpdate> update) {
+      send(update.embedIn(PlayResponse.getDefaultInstance(), PlayResponse.UPDATE_FIELD_NUMBER));
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      fail(t);
+    }
+
+    @Override
+    public void onCompleted() {
+      complete();
+    }
+
+    @Override
+    public boolean isReady() {
+      return call.isReady();
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return call.isCancelled();
+    }
+
+    @Override
+    public void setOnReadyHandler(Runnable onReadyHandler) {
+      this.onReadyHandler = onReadyHandler;
+    }
+
+    @Override
+    public void setOnCancelHandler(Runnable onCancelHandler) {
+      this.onCancelHandler = onCancelHandler;
+    }
+
+    @Override
+    public void setCompression(String compression) {
+      call.setCompression(compression);
+    }
+
+    @Override
+    public void disableAutoInboundFlowControl() {
+      call.disableAutoInboundFlowControl();
+    }
+
+    @Override
+    public void request(int count) {
+      call.request(count);
+    }
+
+    @Override
+    public void setMessageCompression(boolean enable) {
+      call.setMessageCompression(enable);
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package com.avalon.store;
+
+import com.avalon.proto.store.StoredEvent;
+import java.util.function.Consumer;
+
+/** Event store for servers running without persistence. */
+public class DiscardingEventStore implements EventStore {
+  @Override
+  public void append(StoredEvent event) {}
+
+  @Override
+  public boolean isPersistent() {
+    return false;
+  }
+
+  @Override
+  public void flush() {}
+
+  @Override
+  public void replay(Consumer<StoredEvent> consumer) {}
+
+  @Override
+  public void close() {}
+}
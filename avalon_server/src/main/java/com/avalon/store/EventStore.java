@@ -0,0 +1,24 @@
+package com.avalon.store;
+
+import com.avalon.proto.store.StoredEvent;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/** Append-only log of everything needed to rebuild users, rooms and games after a restart. */
+public interface EventStore extends Closeable {
+  /**
+   * Appends {@code event} after every event appended before it. The event may only become durable
+   * on the next {@link #flush()}, which implementations also run periodically.
+   */
+  void append(StoredEvent event);
+
+  /** Returns whether appended events are kept, so callers can skip building them otherwise. */
+  boolean isPersistent();
+
+  /** Makes every appended event durable. */
+  void flush() throws IOException;
+
+  /** Feeds every stored event to {@code consumer}, in append order. */
+  void replay(Consumer<StoredEvent> consumer) throws IOException;
+}
@@ -0,0 +1,371 @@
+package com.avalon.store;
+
+import com.avalon.proto.store.StoredEvent;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Event store writing to a directory of append-only segment files.
+ *
+ * <p>Each record is the varint length of the payload, its little-endian CRC32 and the serialized
+ * {@link StoredEvent}. Appends are buffered in memory and a background thread writes and fsyncs
+ * them every {@code syncIntervalMillis}, so a burst of appends shares a single fsync. Every
+ * process starts a new segment, so a record torn by a crash can only end a segment.
+ *
+ * <p>Sealed segments are compacted into one at startup and whenever a segment fills up, keeping
+ * only what {@link LogCompactor} says replay still needs, so replay starts from each game's latest
+ * snapshot. A compacted segment begins with an {@link com.avalon.proto.store.IdsReserved} record,
+ * and makes every segment before it obsolete.
+ */
+public class FileEventStore implements EventStore {
+  private static final Logger logger = Logger.getLogger(FileEventStore.class.getName());
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String COMPACTING_SUFFIX = ".compacting";
+
+  private final Path directory;
+  private final long segmentBytes;
+  private final ScheduledExecutorService flusher;
+
+  private final Object pendingLock = new Object();
+
+  @GuardedBy("pendingLock")
+  private List<byte[]> pending = new ArrayList<>();
+
+  @GuardedBy("this")
+  private long segmentNumber;
+
+  @GuardedBy("this")
+  private FileChannel channel;
+
+  public FileEventStore(Path directory, long segmentBytes, long syncIntervalMillis)
+      throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+
+    Files.createDirectories(directory);
+    List<Path> segments = finishCompaction();
+    if (segments.size() > 1) {
+      compact(segments);
+    }
+    segmentNumber = segments.isEmpty() ? 1 : segmentNumber(segments.get(segments.size() - 1)) + 1;
+    channel = openSegment(segmentNumber);
+
+    flusher =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "event-store-flusher");
+              thread.setDaemon(true);
+              return thread;
+            });
+    flusher.scheduleWithFixedDelay(
+        this::flushQuietly, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void append(StoredEvent event) {
+    byte[] payload = event.toByteArray();
+    byte[] header = header(payload);
+    synchronized (pendingLock) {
+      pending.add(header);
+      pending.add(payload);
+    }
+  }
+
+  @Override
+  public boolean isPersistent() {
+    return true;
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    List<byte[]> batch;
+    synchronized (pendingLock) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = pending;
+      pending = new ArrayList<>(batch.size());
+    }
+
+    if (channel.size() >= segmentBytes) {
+      channel.close();
+      long sealed = segmentNumber;
+      channel = openSegment(++segmentNumber);
+      try {
+        flusher.execute(() -> compactQuietly(sealed));
+      } catch (RejectedExecutionException e) {
+        // Closing; the next start compacts.
+      }
+    }
+
+    ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+    long remaining = 0;
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = ByteBuffer.wrap(batch.get(i));
+      remaining += buffers[i].remaining();
+    }
+    while (remaining > 0) {
+      remaining -= channel.write(buffers);
+    }
+    channel.force(false);
+  }
+
+  @Override
+  public void replay(Consumer<StoredEvent> consumer) throws IOException {
+    flush();
+    for (Path segment : segments()) {
+      readSegment(segment, consumer);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    flusher.shutdown();
+    synchronized (this) {
+      flush();
+      channel.close();
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Failed to flush event store", e);
+    }
+  }
+
+  /**
+   * Deletes what a compaction interrupted by a crash left behind, and returns the segments from the
+   * last compacted one on.
+   */
+  private List<Path> finishCompaction() throws IOException {
+    try (Stream<Path> paths = Files.list(directory)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        if (path.getFileName().toString().endsWith(COMPACTING_SUFFIX)) {
+          Files.delete(path);
+        }
+      }
+    }
+
+    List<Path> segments = segments();
+    for (int i = segments.size() - 1; i > 0; i--) {
+      if (isCompacted(segments.get(i))) {
+        for (Path obsolete : segments.subList(0, i)) {
+          Files.delete(obsolete);
+        }
+        return new ArrayList<>(segments.subList(i, segments.size()));
+      }
+    }
+    return segments;
+  }
+
+  private void compactQuietly(long lastSegment) {
+    try {
+      List<Path> sealed = new ArrayList<>();
+      for (Path segment : segments()) {
+        if (segmentNumber(segment) <= lastSegment) {
+          sealed.add(segment);
+        }
+      }
+      if (sealed.size() > 1) {
+        compact(sealed);
+      }
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Failed to compact event store", e);
+    }
+  }
+
+  /**
+   * Rewrites {@code sealed} into its last segment. The rewrite replaces that segment atomically
+   * before the others are deleted, and a crash in between leaves them to {@link
+   * #finishCompaction()}.
+   */
+  private void compact(List<Path> sealed) throws IOException {
+    long start = System.nanoTime();
+    LogCompactor compactor = new LogCompactor();
+    for (Path segment : sealed) {
+      readSegment(segment, compactor);
+    }
+
+    Path last = sealed.get(sealed.size() - 1);
+    Path compacting = directory.resolve(last.getFileName() + COMPACTING_SUFFIX);
+    try (FileChannel output =
+        FileChannel.open(compacting, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(output), 1 << 16);
+      long[] position = new long[1];
+      try {
+        writeRecord(stream, compactor.idsReserved());
+        for (Path segment : sealed) {
+          readSegment(
+              segment,
+              event -> {
+                if (compactor.keep(position[0]++, event)) {
+                  writeRecord(stream, event);
+                }
+              });
+        }
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      stream.flush();
+      output.force(false);
+    }
+
+    Files.move(
+        compacting, last, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    for (Path obsolete : sealed.subList(0, sealed.size() - 1)) {
+      Files.delete(obsolete);
+    }
+    logger.info(
+        String.format(
+            "Compacted %d segments into %s (%d bytes) in %d ms",
+            sealed.size(),
+            last.getFileName(),
+            Files.size(last),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+  }
+
+  private static boolean isCompacted(Path segment) throws IOException {
+    try (FileChannel readChannel = FileChannel.open(segment, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer =
+          readChannel.map(FileChannel.MapMode.READ_ONLY, 0, readChannel.size());
+      int length = readLength(buffer);
+      if (length < 0 || buffer.remaining() < 4 + length) {
+        return false;
+      }
+
+      buffer.position(buffer.position() + 4);
+      buffer.limit(buffer.position() + length);
+      return StoredEvent.parseFrom(buffer).hasIdsReserved();
+    } catch (InvalidProtocolBufferException e) {
+      return false;
+    }
+  }
+
+  private static void writeRecord(OutputStream stream, StoredEvent event) {
+    byte[] payload = event.toByteArray();
+    try {
+      stream.write(header(payload));
+      stream.write(payload);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Returns the varint length and CRC32 that precede {@code payload} in a segment. */
+  private static byte[] header(byte[] payload) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(payload);
+
+    byte[] header = new byte[CodedOutputStream.computeUInt32SizeNoTag(payload.length) + 4];
+    CodedOutputStream output = CodedOutputStream.newInstance(header);
+    try {
+      output.writeUInt32NoTag(payload.length);
+      output.writeFixed32NoTag((int) crc32.getValue());
+      output.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return header;
+  }
+
+  private static void readSegment(Path segment, Consumer<StoredEvent> consumer) throws IOException {
+    try (FileChannel readChannel = FileChannel.open(segment, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer =
+          readChannel.map(FileChannel.MapMode.READ_ONLY, 0, readChannel.size());
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      replaySegment(segment, buffer, consumer);
+    }
+  }
+
+  private static void replaySegment(Path segment, ByteBuffer buffer, Consumer<StoredEvent> consumer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int start = buffer.position();
+      int length = readLength(buffer);
+      if (length < 0 || buffer.remaining() < 4 + length) {
+        logger.warning("Ignoring torn record at " + segment + ":" + start);
+        return;
+      }
+
+      int checksum = buffer.getInt();
+      ByteBuffer payload = buffer.slice();
+      payload.limit(length);
+      buffer.position(buffer.position() + length);
+
+      CRC32 crc32 = new CRC32();
+      crc32.update(payload.duplicate());
+      if ((int) crc32.getValue() != checksum) {
+        logger.warning("Ignoring corrupted record at " + segment + ":" + start);
+        return;
+      }
+
+      consumer.accept(StoredEvent.parseFrom(payload));
+    }
+  }
+
+  private static int readLength(ByteBuffer buffer) {
+    int result = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+
+      byte b = buffer.get();
+      result |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return result;
+      }
+    }
+
+    return -1;
+  }
+
+  private List<Path> segments() throws IOException {
+    try (Stream<Path> paths = Files.list(directory)) {
+      return paths
+          .filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static long segmentNumber(Path segment) {
+    String fileName = segment.getFileName().toString();
+    return Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  private FileChannel openSegment(long number) throws IOException {
+    return FileChannel.open(
+        directory.resolve(String.format("%012d%s", number, SEGMENT_SUFFIX)),
+        StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE);
+  }
+}
@@ -0,0 +1,31 @@
+package com.avalon.store;
+
+import com.avalon.proto.game.GameStatusUpdate;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Keeps the history of evicted games on local disk, one file of length-delimited {@link
+ * GameStatusUpdate}s per game.
+ */
+public class GameArchive {
+  private final Path directory;
+
+  public GameArchive(Path directory) throws IOException {
+    this.directory = directory;
+    Files.createDirectories(directory);
+  }
+
+  public void write(int gameId, List<GameStatusUpdate> history) throws IOException {
+    Path file = directory.resolve("game-" + gameId + ".bin");
+    try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(file))) {
+      for (GameStatusUpdate gameStatusUpdate : history) {
+        gameStatusUpdate.writeDelimitedTo(outputStream);
+      }
+    }
+  }
+}
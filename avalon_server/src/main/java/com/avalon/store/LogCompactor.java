@@ -0,0 +1,108 @@
+package com.avalon.store;
+
+import com.avalon.cluster.ShardMap;
+import com.avalon.proto.store.IdsReserved;
+import com.avalon.proto.store.StoredEvent;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Decides which records of a run of segments replay still needs, given every record of the run in
+ * order twice: once to {@link #accept} and once to {@link #keep}.
+ *
+ * <p>Dropped are game events and snapshots older than the latest snapshot of their game, everything
+ * about a room before it was last closed, including its games, and users that were removed later.
+ */
+final class LogCompactor implements Consumer<StoredEvent> {
+  private final Map<Integer, Long> userRemoved = new HashMap<>();
+  private final Map<String, Long> roomClosed = new HashMap<>();
+  private final Map<Integer, Long> latestSnapshot = new HashMap<>();
+  private final Map<Integer, Boolean> gameClosed = new HashMap<>();
+  private final Map<Integer, Integer> maxUserIds = new HashMap<>();
+  private final Map<Integer, Integer> maxGameIds = new HashMap<>();
+
+  private long position;
+
+  @Override
+  public void accept(StoredEvent event) {
+    switch (event.getEventCase()) {
+      case USER_CREATED:
+        reserve(maxUserIds, event.getUserCreated().getAuth().getId());
+        break;
+      case USER_REMOVED:
+        userRemoved.put(event.getUserRemoved().getId(), position);
+        break;
+      case GAME_CREATED:
+        reserve(maxGameIds, event.getGameCreated().getGameId());
+        break;
+      case GAME_SNAPSHOT:
+        latestSnapshot.put(event.getGameSnapshot().getGameId(), position);
+        break;
+      case ROOM_CLOSED:
+        roomClosed.put(event.getRoomClosed().getRoomName(), position);
+        break;
+      case IDS_RESERVED:
+        event.getIdsReserved().getUserIdList().forEach(id -> reserve(maxUserIds, id));
+        event.getIdsReserved().getGameIdList().forEach(id -> reserve(maxGameIds, id));
+        break;
+      default:
+        break;
+    }
+    position++;
+  }
+
+  /** Returns the record to start the compacted run with, standing in for the ids it dropped. */
+  StoredEvent idsReserved() {
+    return StoredEvent.newBuilder()
+        .setIdsReserved(
+            IdsReserved.newBuilder()
+                .addAllUserId(maxUserIds.values())
+                .addAllGameId(maxGameIds.values()))
+        .build();
+  }
+
+  /** Returns whether the {@code position}th record of the run is still needed by replay. */
+  boolean keep(long position, StoredEvent event) {
+    switch (event.getEventCase()) {
+      case USER_CREATED:
+        return userRemoved.getOrDefault(event.getUserCreated().getAuth().getId(), -1L) < position;
+      case ROOM_CREATED:
+        return isOpen(event.getRoomCreated().getRoom().getRoomName(), position);
+      case SEAT_ASSIGNED:
+        return isOpen(event.getSeatAssigned().getRoomName(), position);
+      case GAME_CREATED:
+        boolean open = isOpen(event.getGameCreated().getRoomName(), position);
+        gameClosed.put(event.getGameCreated().getGameId(), !open);
+        return open;
+      case GAME_EVENT:
+        return isLive(event.getGameEvent().getGameId(), position, false);
+      case GAME_SNAPSHOT:
+        return isLive(event.getGameSnapshot().getGameId(), position, true);
+      case USER_REMOVED:
+      case ROOM_CLOSED:
+      case IDS_RESERVED:
+        // Whatever these applied to is dropped, or superseded by idsReserved().
+        return false;
+      default:
+        return true;
+    }
+  }
+
+  private boolean isOpen(String roomName, long position) {
+    return roomClosed.getOrDefault(roomName, -1L) < position;
+  }
+
+  private boolean isLive(int gameId, long position, boolean snapshot) {
+    if (gameClosed.getOrDefault(gameId, false)) {
+      return false;
+    }
+
+    long snapshotPosition = latestSnapshot.getOrDefault(gameId, -1L);
+    return snapshot ? position == snapshotPosition : position > snapshotPosition;
+  }
+
+  private static void reserve(Map<Integer, Integer> maxIds, int id) {
+    maxIds.merge(ShardMap.nodeOfId(id), id, Math::max);
+  }
+}
@@ -0,0 +1,233 @@
+package com.avalon.util;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCalls;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * A proto message that is serialized at most once, however many streams it is sent on.
+ *
+ * <p>Broadcast paths wrap each update once and hand the same instance to every subscriber; the
+ * marshaller from {@link #marshaller} then writes the cached bytes instead of encoding the message
+ * again for each stream.
+ */
+public final class EncodedMessage<T extends Message> {
+  private final T message;
+  private final long createdNanos = System.nanoTime();
+  private volatile byte[] bytes;
+  private volatile Embedding embedding;
+
+  private EncodedMessage(T message) {
+    this.message = message;
+  }
+
+  private EncodedMessage(T message, byte[] bytes) {
+    this.message = message;
+    this.bytes = bytes;
+  }
+
+  public static <T extends Message> EncodedMessage<T> of(T message) {
+    return new EncodedMessage<>(message);
+  }
+
+  public T message() {
+    return message;
+  }
+
+  /** When the message was wrapped, which dispatch lag is measured from. */
+  public long createdNanos() {
+    return createdNanos;
+  }
+
+  public byte[] bytes() {
+    byte[] result = bytes;
+    if (result == null) {
+      result = message.toByteArray();
+      bytes = result;
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns a message of {@code defaultInstance}'s type holding this one as its field {@code
+   * fieldNumber}, or as its only element when repeated, whose bytes reuse the ones of this message.
+   * The result is cached, so that the streams sending it also share a single serialization.
+   */
+  @SuppressWarnings("unchecked")
+  public <R extends Message> EncodedMessage<R> embedIn(R defaultInstance, int fieldNumber) {
+    FieldDescriptor field = defaultInstance.getDescriptorForType().findFieldByNumber(fieldNumber);
+    Embedding cached = embedding;
+    if (cached != null && cached.field == field) {
+      return (EncodedMessage<R>) cached.message;
+    }
+
+    byte[] fieldBytes = bytes();
+    byte[] result = new byte[CodedOutputStream.computeByteArraySize(fieldNumber, fieldBytes)];
+    try {
+      CodedOutputStream output = CodedOutputStream.newInstance(result);
+      output.writeByteArray(fieldNumber, fieldBytes);
+      output.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    Message.Builder builder = defaultInstance.toBuilder();
+    if (field.isRepeated()) {
+      builder.addRepeatedField(field, message);
+    } else {
+      builder.setField(field, message);
+    }
+    R enclosing = (R) builder.build();
+    EncodedMessage<R> encodedMessage = new EncodedMessage<>(enclosing, result);
+    embedding = new Embedding(field, encodedMessage);
+    return encodedMessage;
+  }
+
+  /**
+   * Returns {@code message}, which has to be {@code parts} merged in order, to be sent as the
+   * concatenation of their bytes rather than encoded again.
+   */
+  public static <T extends Message> EncodedMessage<T> merge(
+      T message, List<EncodedMessage<T>> parts) {
+    int size = 0;
+    for (EncodedMessage<T> part : parts) {
+      size += part.bytes().length;
+    }
+
+    byte[] result = new byte[size];
+    int offset = 0;
+    for (EncodedMessage<T> part : parts) {
+      byte[] partBytes = part.bytes();
+      System.arraycopy(partBytes, 0, result, offset, partBytes.length);
+      offset += partBytes.length;
+    }
+    return new EncodedMessage<>(message, result);
+  }
+
+  public static <T extends Message> MethodDescriptor.Marshaller<EncodedMessage<T>> marshaller(
+      T defaultInstance) {
+    MethodDescriptor.Marshaller<T> protoMarshaller = ProtoUtils.marshaller(defaultInstance);
+    return new MethodDescriptor.Marshaller<EncodedMessage<T>>() {
+      @Override
+      public InputStream stream(EncodedMessage<T> value) {
+        return new BytesInputStream(value.bytes());
+      }
+
+      @Override
+      public EncodedMessage<T> parse(InputStream stream) {
+        return of(protoMarshaller.parse(stream));
+      }
+    };
+  }
+
+  /**
+   * Replaces the binding of the unary {@code method} in {@code definition} with {@code handler},
+   * whose response is sent through {@link #marshaller}.
+   */
+  public static <ReqT, RespT extends Message> ServerServiceDefinition bindUnary(
+      ServerServiceDefinition definition,
+      MethodDescriptor<ReqT, RespT> method,
+      RespT defaultInstance,
+      ServerCalls.UnaryMethod<ReqT, EncodedMessage<RespT>> handler) {
+    return rebind(definition, method, defaultInstance, ServerCalls.asyncUnaryCall(handler));
+  }
+
+  /**
+   * Replaces the binding of the server streaming {@code method} in {@code definition} with
+   * {@code handler}, whose responses are sent through {@link #marshaller}.
+   */
+  public static <ReqT, RespT extends Message> ServerServiceDefinition bindServerStreaming(
+      ServerServiceDefinition definition,
+      MethodDescriptor<ReqT, RespT> method,
+      RespT defaultInstance,
+      ServerCalls.ServerStreamingMethod<ReqT, EncodedMessage<RespT>> handler) {
+    return rebind(
+        definition, method, defaultInstance, ServerCalls.asyncServerStreamingCall(handler));
+  }
+
+  /**
+   * Replaces the binding of the bidirectional streaming {@code method} in {@code definition} with
+   * {@code handler}, whose responses are sent through {@link #marshaller}.
+   */
+  public static <ReqT, RespT extends Message> ServerServiceDefinition bindBidiStreaming(
+      ServerServiceDefinition definition,
+      MethodDescriptor<ReqT, RespT> method,
+      RespT defaultInstance,
+      ServerCalls.BidiStreamingMethod<ReqT, EncodedMessage<RespT>> handler) {
+    return rebind(definition, method, defaultInstance, ServerCalls.asyncBidiStreamingCall(handler));
+  }
+
+  private static <ReqT, RespT extends Message> ServerServiceDefinition rebind(
+      ServerServiceDefinition definition,
+      MethodDescriptor<ReqT, RespT> method,
+      RespT defaultInstance,
+      ServerCallHandler<ReqT, EncodedMessage<RespT>> callHandler) {
+    MethodDescriptor<ReqT, EncodedMessage<RespT>> encodedMethod =
+        method.toBuilder(method.getRequestMarshaller(), marshaller(defaultInstance)).build();
+
+    ServiceDescriptor serviceDescriptor = definition.getServiceDescriptor();
+    ServiceDescriptor.Builder descriptorBuilder =
+        ServiceDescriptor.newBuilder(serviceDescriptor.getName())
+            .setSchemaDescriptor(serviceDescriptor.getSchemaDescriptor());
+    for (MethodDescriptor<?, ?> methodDescriptor : serviceDescriptor.getMethods()) {
+      if (!methodDescriptor.getFullMethodName().equals(method.getFullMethodName())) {
+        descriptorBuilder.addMethod(methodDescriptor);
+      }
+    }
+    descriptorBuilder.addMethod(encodedMethod);
+
+    ServerServiceDefinition.Builder builder =
+        ServerServiceDefinition.builder(descriptorBuilder.build());
+    for (ServerMethodDefinition<?, ?> methodDefinition : definition.getMethods()) {
+      if (!methodDefinition
+          .getMethodDescriptor()
+          .getFullMethodName()
+          .equals(method.getFullMethodName())) {
+        builder.addMethod(methodDefinition);
+      }
+    }
+    builder.addMethod(encodedMethod, callHandler);
+
+    return builder.build();
+  }
+
+  private static class Embedding {
+    final FieldDescriptor field;
+    final EncodedMessage<?> message;
+
+    Embedding(FieldDescriptor field, EncodedMessage<?> message) {
+      this.field = field;
+      this.message = message;
+    }
+  }
+
+  private static class BytesInputStream extends ByteArrayInputStream
+      implements KnownLength, Drainable {
+    BytesInputStream(byte[] bytes) {
+      super(bytes);
+    }
+
+    @Override
+    public int drainTo(OutputStream target) throws IOException {
+      int length = count - pos;
+      target.write(buf, pos, length);
+      pos = count;
+      return length;
+    }
+  }
+}
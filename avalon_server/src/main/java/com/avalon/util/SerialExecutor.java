@@ -0,0 +1,104 @@
+package com.avalon.util;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs submitted tasks one at a time, in submission order, on top of a shared executor.
+ *
+ * <p>Each instance is a mailbox with a single logical writer: at most one drain is scheduled on
+ * the delegate at any time, so state only touched from this executor needs no further locking.
+ * A drain gives the thread back after {@link #MAX_BATCH} tasks so that one busy mailbox cannot
+ * starve the others sharing the pool.
+ */
+public class SerialExecutor implements Executor {
+  private static final Logger logger = Logger.getLogger(SerialExecutor.class.getName());
+  private static final int MAX_BATCH = 64;
+
+  private final Executor delegate;
+  private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  public SerialExecutor(Executor delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void execute(Runnable runnable) {
+    mailbox.add(runnable);
+    schedule();
+  }
+
+  /** Runs {@code task} in this mailbox and waits for its result. */
+  public <T> T call(SupplierThatThrows<T, ResponseException> task) throws ResponseException {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    execute(
+        () -> {
+          try {
+            future.complete(task.get());
+          } catch (Throwable throwable) {
+            future.completeExceptionally(throwable);
+          }
+        });
+
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ResponseException("Interrupted");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ResponseException) {
+        throw (ResponseException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  private void schedule() {
+    if (!scheduled.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      delegate.execute(this::drain);
+    } catch (RuntimeException e) {
+      scheduled.set(false);
+      throw e;
+    }
+  }
+
+  private void drain() {
+    try {
+      for (int i = 0; i < MAX_BATCH; i++) {
+        Runnable task = mailbox.poll();
+        if (task == null) {
+          break;
+        }
+
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          logger.log(Level.SEVERE, "Task failed in serial executor", e);
+        }
+      }
+    } finally {
+      scheduled.set(false);
+      if (!mailbox.isEmpty()) {
+        schedule();
+      }
+    }
+  }
+}
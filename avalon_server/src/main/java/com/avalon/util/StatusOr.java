@@ -22,7 +22,7 @@ public class StatusOr<T> {
   }
 
   public boolean isSuccessful() {
-    return t != null;
+    return errorMesasge == null;
   }
 
   public <OutputT> StatusOr<OutputT> transformStatus(Function<T, StatusOr<OutputT>> function) {
@@ -0,0 +1,33 @@
+package com.avalon.util;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+/** Ends the server side of calls that the client may cancel at any time. */
+public final class StreamObservers {
+  private StreamObservers() {}
+
+  public static <T> void sendQuietly(StreamObserver<T> observer, T message) {
+    try {
+      observer.onNext(message);
+    } catch (RuntimeException ignored) {
+      // Already cancelled, so there is no one left to tell.
+    }
+  }
+
+  public static void completeQuietly(StreamObserver<?> observer) {
+    try {
+      observer.onCompleted();
+    } catch (RuntimeException ignored) {
+      // Already cancelled, so there is no one left to tell.
+    }
+  }
+
+  public static void failQuietly(StreamObserver<?> observer, Status status) {
+    try {
+      observer.onError(status.asRuntimeException());
+    } catch (RuntimeException ignored) {
+      // Already cancelled, so there is no one left to tell.
+    }
+  }
+}
@@ -0,0 +1,5 @@
+package com.avalon.util;
+
+public interface SupplierThatThrows<O, E extends Exception> {
+  O get() throws E;
+}
@@ -0,0 +1,283 @@
+package com.avalon.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks after a delay on a hashed wheel turned by one thread, so that scheduling and
+ * cancelling cost the same however many timers are pending. Timers fire at most a tick late, by
+ * deadline and then in the order they were scheduled.
+ */
+public final class TimerWheel {
+  private static final Logger logger = Logger.getLogger(TimerWheel.class.getName());
+
+  private static final int PENDING = 0;
+  private static final int CANCELLED = 1;
+  private static final int EXPIRED = 2;
+
+  private static final Comparator<Entry> FIRING_ORDER =
+      Comparator.<Entry>comparingLong(entry -> entry.deadline).thenComparingLong(entry -> entry.id);
+
+  /** A scheduled task. */
+  public interface Timeout {
+    /** Stops the task from running, and returns whether it had yet to. */
+    boolean cancel();
+  }
+
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final long startNanos = System.nanoTime();
+  private final Queue<Entry> added = new ConcurrentLinkedQueue<>();
+  private final Queue<Entry> cancelled = new ConcurrentLinkedQueue<>();
+  private final AtomicLong ids = new AtomicLong();
+  private final AtomicLong pending = new AtomicLong();
+
+  /** Ticks elapsed since the start, only touched by the ticker. */
+  private long tick;
+
+  /**
+   * @param tickMillis how often the wheel turns, which is also how late a timer may fire
+   * @param ticksPerWheel buckets of the wheel, rounded up to a power of two; timers within one turn
+   *     of the wheel are found without counting turns
+   */
+  public TimerWheel(String name, long tickMillis, int ticksPerWheel) {
+    if (tickMillis <= 0 || ticksPerWheel <= 0 || ticksPerWheel > 1 << 20) {
+      throw new IllegalArgumentException("Invalid timer wheel " + tickMillis + "/" + ticksPerWheel);
+    }
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    int buckets = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+    this.wheel = new Bucket[Math.max(buckets, 1)];
+    for (int i = 0; i < wheel.length; i++) {
+      wheel[i] = new Bucket();
+    }
+    this.mask = wheel.length - 1;
+
+    Thread ticker = new Thread(this::run, name);
+    ticker.setDaemon(true);
+    ticker.start();
+  }
+
+  /** Runs {@code task} on {@code executor} once {@code delay} has passed. */
+  public Timeout schedule(long delay, TimeUnit unit, Executor executor, Runnable task) {
+    Entry entry =
+        new Entry(
+            System.nanoTime() - startNanos + Math.max(unit.toNanos(delay), 0),
+            ids.incrementAndGet(),
+            executor,
+            task);
+    pending.incrementAndGet();
+    added.add(entry);
+    return entry;
+  }
+
+  /**
+   * Runs {@code task} on {@code executor} every {@code period}, counted from the end of the
+   * previous run, until cancelled.
+   */
+  public Timeout scheduleWithFixedDelay(
+      long period, TimeUnit unit, Executor executor, Runnable task) {
+    Repeating repeating = new Repeating(unit.toNanos(period), executor, task);
+    repeating.next = schedule(period, unit, executor, repeating);
+    return repeating;
+  }
+
+  /** Returns the timers scheduled and not yet fired or cancelled. */
+  public long size() {
+    return pending.get();
+  }
+
+  private void run() {
+    List<Entry> expired = new ArrayList<>();
+    while (true) {
+      long sleepNanos = tickNanos * (tick + 1) - (System.nanoTime() - startNanos);
+      if (sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+          return;
+        }
+        continue;
+      }
+
+      unlinkCancelled();
+      transferAdded();
+      wheel[(int) (tick & mask)].expire(expired);
+      expired.sort(FIRING_ORDER);
+      for (Entry entry : expired) {
+        entry.fire();
+      }
+      expired.clear();
+      tick++;
+    }
+  }
+
+  private void unlinkCancelled() {
+    for (Entry entry = cancelled.poll(); entry != null; entry = cancelled.poll()) {
+      if (entry.bucket != null) {
+        entry.bucket.remove(entry);
+      }
+    }
+  }
+
+  /**
+   * Moves every timer scheduled since the last tick to the wheel. Leaving some for the next tick
+   * would let them fire after timers of a later deadline, so a burst delays the tick instead.
+   */
+  private void transferAdded() {
+    for (Entry entry = added.poll(); entry != null; entry = added.poll()) {
+      if (entry.state.get() != PENDING) {
+        continue;
+      }
+
+      long expiryTick = entry.deadline / tickNanos;
+      entry.remainingRounds = (expiryTick - tick) / wheel.length;
+      // A deadline already passed goes to the current tick rather than a whole turn later.
+      wheel[(int) (Math.max(expiryTick, tick) & mask)].add(entry);
+    }
+  }
+
+  private final class Entry implements Timeout {
+    /** Nanoseconds from the start of the wheel. */
+    final long deadline;
+
+    final long id;
+    final Executor executor;
+    final Runnable task;
+    final AtomicInteger state = new AtomicInteger(PENDING);
+
+    // Only touched by the ticker.
+    long remainingRounds;
+    Bucket bucket;
+    Entry previous;
+    Entry next;
+
+    Entry(long deadline, long id, Executor executor, Runnable task) {
+      this.deadline = deadline;
+      this.id = id;
+      this.executor = executor;
+      this.task = task;
+    }
+
+    @Override
+    public boolean cancel() {
+      if (!state.compareAndSet(PENDING, CANCELLED)) {
+        return false;
+      }
+
+      pending.decrementAndGet();
+      cancelled.add(this);
+      return true;
+    }
+
+    void fire() {
+      try {
+        executor.execute(task);
+      } catch (RuntimeException e) {
+        logger.log(Level.SEVERE, "Failed to run timer", e);
+      }
+    }
+  }
+
+  /** Timers of a tick, as an intrusive doubly linked list. */
+  private final class Bucket {
+    private Entry head;
+    private Entry tail;
+
+    void add(Entry entry) {
+      entry.bucket = this;
+      if (head == null) {
+        head = entry;
+      } else {
+        tail.next = entry;
+        entry.previous = tail;
+      }
+      tail = entry;
+    }
+
+    /** Moves the timers due in this turn of the wheel to {@code expired}. */
+    void expire(List<Entry> expired) {
+      Entry entry = head;
+      while (entry != null) {
+        Entry next = entry.next;
+        if (entry.remainingRounds <= 0) {
+          remove(entry);
+          if (entry.state.compareAndSet(PENDING, EXPIRED)) {
+            pending.decrementAndGet();
+            expired.add(entry);
+          }
+        } else {
+          entry.remainingRounds--;
+        }
+        entry = next;
+      }
+    }
+
+    void remove(Entry entry) {
+      if (entry.previous == null) {
+        head = entry.next;
+      } else {
+        entry.previous.next = entry.next;
+      }
+      if (entry.next == null) {
+        tail = entry.previous;
+      } else {
+        entry.next.previous = entry.previous;
+      }
+      entry.previous = null;
+      entry.next = null;
+      entry.bucket = null;
+    }
+  }
+
+  /** Reschedules itself after each run, so only one timer of the task is ever pending. */
+  private final class Repeating implements Timeout, Runnable {
+    private final long periodNanos;
+    private final Executor executor;
+    private final Runnable task;
+    private volatile Timeout next;
+    private volatile boolean cancelled;
+
+    Repeating(long periodNanos, Executor executor, Runnable task) {
+      this.periodNanos = periodNanos;
+      this.executor = executor;
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      if (cancelled) {
+        return;
+      }
+
+      try {
+        task.run();
+      } finally {
+        next = schedule(periodNanos, TimeUnit.NANOSECONDS, executor, this);
+        if (cancelled) {
+          next.cancel();
+        }
+      }
+    }
+
+    @Override
+    public boolean cancel() {
+      if (cancelled) {
+        return false;
+      }
+
+      cancelled = true;
+      next.cancel();
+      return true;
+    }
+  }
+}
@@ -0,0 +1,267 @@
+package com.avalon.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.avalon.util.ResponseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GameRulesTest {
+  private static final Role[] ROLES = {
+    Role.MERLIN, Role.PERCIVAL, Role.ARTHUR_SERVANT, Role.MORGANA, Role.ASSASSIN,
+  };
+  private static final long TEAM = 0b00011;
+
+  private final List<String> events = new ArrayList<>();
+  private GameRules rules;
+
+  @Before
+  public void setUp() {
+    rules =
+        new GameRules(
+            ROLES,
+            ROLES.length - 1,
+            5,
+            true,
+            new GameRules.Listener() {
+              @Override
+              public void roundStarted(int round, int leader) {
+                events.add("round " + round + " led by " + leader);
+              }
+
+              @Override
+              public void votedResult(boolean approved, long agreed) {
+                events.add((approved ? "approved" : "rejected") + " by " + agreed);
+              }
+
+              @Override
+              public void missionEnded(boolean success) {
+                events.add(success ? "mission succeeded" : "mission failed");
+              }
+            });
+    rules.start();
+  }
+
+  @Test
+  public void start_leadsWithTheFirstSeat() {
+    assertEquals(0, rules.leader());
+    assertEquals(0, rules.round());
+    assertTrue(rules.allowProposal());
+    assertEquals(Arrays.asList("round 0 led by 0"), events);
+  }
+
+  @Test
+  public void propose_ignoresOthersThanTheLeader() throws ResponseException {
+    rules.propose(1, TEAM);
+
+    assertEquals(0, rules.teamMask());
+  }
+
+  @Test
+  public void voteForPlayer_approvesWithAMajority() throws ResponseException {
+    rules.propose(0, TEAM);
+    vote(true, true, true, false, false);
+
+    assertFalse(rules.allowProposal());
+    assertEquals(TEAM, rules.teamMask());
+    assertEquals(0, rules.votedMask());
+    assertEquals(0, rules.agreedMask());
+    assertEquals("approved by 7", events.get(events.size() - 1));
+  }
+
+  @Test
+  public void voteForPlayer_rejectionStartsTheNextRound() throws ResponseException {
+    rules.propose(0, TEAM);
+    vote(true, true, false, false, false);
+
+    assertTrue(rules.allowProposal());
+    assertEquals(1, rules.round());
+    assertEquals(1, rules.leader());
+    assertEquals(0, rules.teamMask());
+    assertEquals(Arrays.asList("round 0 led by 0", "rejected by 3", "round 1 led by 1"), events);
+  }
+
+  @Test
+  public void voteForPlayer_lastRejectionFailsTheMission() throws ResponseException {
+    for (int round = 0; round < 5; round++) {
+      rules.propose(rules.leader(), TEAM);
+      vote(false, false, false, false, false);
+    }
+
+    assertEquals(1, rules.failures());
+    assertEquals(1, rules.mission());
+    assertEquals(0, rules.round());
+    assertTrue(events.contains("mission failed"));
+  }
+
+  @Test(expected = ResponseException.class)
+  public void voteForPlayer_rejectsWithoutATeam() throws ResponseException {
+    rules.voteForPlayer(0, GameRules.Vote.AGREE);
+  }
+
+  @Test(expected = ResponseException.class)
+  public void voteForPlayer_rejectsAfterApproval() throws ResponseException {
+    rules.propose(0, TEAM);
+    vote(true, true, true, true, true);
+
+    rules.voteForPlayer(0, GameRules.Vote.DISAGREE);
+  }
+
+  @Test(expected = ResponseException.class)
+  public void voteForPlayer_rejectsAnInvalidSeat() throws ResponseException {
+    rules.propose(0, TEAM);
+
+    rules.voteForPlayer(ROLES.length, GameRules.Vote.AGREE);
+  }
+
+  @Test(expected = ResponseException.class)
+  public void voteForTask_rejectsBeforeApproval() throws ResponseException {
+    rules.propose(0, TEAM);
+
+    rules.voteForTask(0, true);
+  }
+
+  @Test(expected = ResponseException.class)
+  public void voteForTask_rejectsOutsideTheTeam() throws ResponseException {
+    rules.propose(0, TEAM);
+    vote(true, true, true, true, true);
+
+    rules.voteForTask(2, true);
+  }
+
+  @Test
+  public void voteForTask_endsTheMissionOnceTheTeamVoted() throws ResponseException {
+    rules.propose(0, TEAM);
+    vote(true, true, true, true, true);
+    rules.voteForTask(0, true);
+
+    assertEquals(0, rules.mission());
+    rules.voteForTask(1, false);
+
+    assertEquals(Arrays.asList(false), rules.missionResults());
+    assertEquals(1, rules.mission());
+    assertEquals(1, rules.leader());
+    assertTrue(rules.allowProposal());
+    assertEquals(0, rules.taskVotedMask());
+  }
+
+  @Test
+  public void voteForTask_threeSuccessesFinishTheGame() throws ResponseException {
+    for (int mission = 0; mission < GameRules.MISSIONS_TO_WIN; mission++) {
+      assertFalse(rules.finished());
+      rules.propose(rules.leader(), TEAM);
+      vote(true, true, true, true, true);
+      rules.voteForTask(0, true);
+      rules.voteForTask(1, true);
+    }
+
+    assertTrue(rules.finished());
+    assertEquals(GameRules.MISSIONS_TO_WIN, rules.successes());
+    assertEquals("mission succeeded", events.get(events.size() - 1));
+  }
+
+  @Test
+  public void actions_rejectedAfterTheThirdSuccess() throws ResponseException {
+    for (int mission = 0; mission < GameRules.MISSIONS_TO_WIN; mission++) {
+      playMission(true);
+    }
+
+    assertRejectedAsFinished();
+  }
+
+  @Test
+  public void actions_rejectedAfterTheThirdFailure() throws ResponseException {
+    for (int mission = 0; mission < GameRules.MISSIONS_TO_WIN; mission++) {
+      playMission(false);
+    }
+
+    assertTrue(rules.finished());
+    assertEquals(GameRules.MISSIONS_TO_WIN, rules.failures());
+    assertEquals("mission failed", events.get(events.size() - 1));
+    assertRejectedAsFinished();
+  }
+
+  @Test
+  public void ladyTest_tellsTheSideAndPassesTheLady() throws ResponseException {
+    assertEquals(ROLES.length - 1, rules.ladyByTheLake());
+    assertTrue(rules.ladyTest(4, 1));
+    assertEquals(1, rules.ladyByTheLake());
+    assertFalse(rules.ladyTest(1, 4));
+    assertEquals(4, rules.ladyByTheLake());
+  }
+
+  @Test(expected = ResponseException.class)
+  public void ladyTest_rejectsAnInvalidSeat() throws ResponseException {
+    rules.ladyTest(rules.ladyByTheLake(), ROLES.length);
+  }
+
+  @Test(expected = ResponseException.class)
+  public void ladyTest_rejectsOthersThanTheHolder() throws ResponseException {
+    rules.ladyTest(0, 1);
+  }
+
+  @Test(expected = ResponseException.class)
+  public void ladyTest_rejectsThePreviousHolder() throws ResponseException {
+    rules.ladyTest(4, 1);
+
+    rules.ladyTest(4, 2);
+  }
+
+  @Test(expected = ResponseException.class)
+  public void ladyTest_rejectsTestingOneself() throws ResponseException {
+    rules.ladyTest(rules.ladyByTheLake(), rules.ladyByTheLake());
+  }
+
+  @Test(expected = ResponseException.class)
+  public void ladyTest_rejectsWithoutTheLady() throws ResponseException {
+    GameRules withoutLady =
+        new GameRules(ROLES, ROLES.length - 1, 5, false, GameRules.Listener.NONE);
+    withoutLady.start();
+
+    withoutLady.ladyTest(withoutLady.ladyByTheLake(), 0);
+  }
+
+  private void playMission(boolean success) throws ResponseException {
+    rules.propose(rules.leader(), TEAM);
+    vote(true, true, true, true, true);
+    rules.voteForTask(0, success);
+    rules.voteForTask(1, success);
+  }
+
+  /** Checks that every action is refused, the leader and the lady holder included. */
+  private void assertRejectedAsFinished() {
+    int leader = rules.leader();
+    int lady = rules.ladyByTheLake();
+    List<Action> actions =
+        Arrays.asList(
+            () -> rules.propose(leader, TEAM),
+            () -> rules.voteForPlayer(leader, GameRules.Vote.AGREE),
+            () -> rules.voteForTask(0, true),
+            () -> rules.ladyTest(lady, (lady + 1) % ROLES.length));
+    for (Action action : actions) {
+      try {
+        action.run();
+        fail("Accepted an action after the game finished");
+      } catch (ResponseException e) {
+        assertEquals("Game finished", e.getMessage());
+      }
+    }
+    assertEquals(0, rules.teamMask());
+  }
+
+  private interface Action {
+    void run() throws ResponseException;
+  }
+
+  private void vote(boolean... agree) throws ResponseException {
+    for (int seat = 0; seat < agree.length; seat++) {
+      rules.voteForPlayer(seat, agree[seat] ? GameRules.Vote.AGREE : GameRules.Vote.DISAGREE);
+    }
+  }
+}
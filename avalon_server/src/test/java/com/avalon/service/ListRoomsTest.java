@@ -0,0 +1,115 @@
+package com.avalon.service;
+
+import static org.junit.Assert.assertEquals;
+
+import com.avalon.entry.AppComponent;
+import com.avalon.entry.DaggerAppComponent;
+import com.avalon.proto.base.Auth;
+import com.avalon.proto.game.Character;
+import com.avalon.proto.game.Room;
+import com.avalon.proto.service.AvalonRoomServiceGrpc;
+import com.avalon.proto.service.CreateRoomRequest;
+import com.avalon.proto.service.CreateUserRequest;
+import com.avalon.proto.service.ListRoomRequest;
+import com.avalon.proto.service.ListRoomResponse;
+import com.avalon.proto.service.RoomListing;
+import com.avalon.proto.service.User;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("deprecation")
+public class ListRoomsTest {
+  private Server server;
+  private ManagedChannel channel;
+  private AvalonRoomServiceGrpc.AvalonRoomServiceBlockingStub roomStub;
+
+  @Before
+  public void setUp() throws IOException {
+    AppComponent appComponent = DaggerAppComponent.create();
+    String name = InProcessServerBuilder.generateName();
+    server =
+        InProcessServerBuilder.forName(name)
+            .addService(appComponent.avalonRoomService().bindEncodedService())
+            .build()
+            .start();
+    channel = InProcessChannelBuilder.forName(name).build();
+    roomStub = AvalonRoomServiceGrpc.newBlockingStub(channel);
+
+    Auth auth =
+        roomStub
+            .createUser(
+                CreateUserRequest.newBuilder()
+                    .setUser(User.newBuilder().setUsername("owner"))
+                    .build())
+            .getAuth();
+    for (String roomName : new String[] {"room-b", "room-a", "room-c"}) {
+      roomStub.createRoom(
+          CreateRoomRequest.newBuilder()
+              .setAuth(auth)
+              .setRoom(
+                  Room.newBuilder()
+                      .setRoomName(roomName)
+                      .setMaximumRound(5)
+                      .addCharacter(Character.MERLIN)
+                      .addCharacter(Character.ASSASSIN))
+              .build());
+    }
+  }
+
+  @After
+  public void tearDown() {
+    channel.shutdownNow();
+    server.shutdownNow();
+  }
+
+  @Test
+  public void listRooms_fillsTheDeprecatedRoomsNextToTheListings() {
+    ListRoomResponse response = roomStub.listRooms(ListRoomRequest.getDefaultInstance());
+
+    assertEquals(Arrays.asList("room-a", "room-b", "room-c"), roomNames(response));
+    assertEquals(listedRooms(response), response.getRoomList());
+    assertEquals("", response.getNextPageToken());
+  }
+
+  @Test
+  public void listRooms_fillsTheDeprecatedRoomsOfEveryPage() {
+    ListRoomResponse first =
+        roomStub.listRooms(ListRoomRequest.newBuilder().setPageSize(2).build());
+    ListRoomResponse second =
+        roomStub.listRooms(
+            ListRoomRequest.newBuilder()
+                .setPageSize(2)
+                .setPageToken(first.getNextPageToken())
+                .build());
+
+    assertEquals(Arrays.asList("room-a", "room-b"), roomNames(first));
+    assertEquals(listedRooms(first), first.getRoomList());
+    assertEquals(Arrays.asList("room-c"), roomNames(second));
+    assertEquals(listedRooms(second), second.getRoomList());
+  }
+
+  private static List<String> roomNames(ListRoomResponse response) {
+    List<String> names = new ArrayList<>();
+    for (Room room : response.getRoomList()) {
+      names.add(room.getRoomName());
+    }
+    return names;
+  }
+
+  private static List<Room> listedRooms(ListRoomResponse response) {
+    List<Room> rooms = new ArrayList<>();
+    for (RoomListing listing : response.getRoomListingList()) {
+      rooms.add(listing.getRoom());
+    }
+    return rooms;
+  }
+}
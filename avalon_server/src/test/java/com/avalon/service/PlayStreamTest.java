@@ -0,0 +1,216 @@
+package com.avalon.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.avalon.entry.AppComponent;
+import com.avalon.entry.DaggerAppComponent;
+import com.avalon.proto.base.Auth;
+import com.avalon.proto.game.AvalonGameServiceGrpc;
+import com.avalon.proto.game.Character;
+import com.avalon.proto.game.PlayRequest;
+import com.avalon.proto.game.PlayResponse;
+import com.avalon.proto.game.PollRequest;
+import com.avalon.proto.game.Proposal;
+import com.avalon.proto.game.Room;
+import com.avalon.proto.game.VoteForPlayerRequest;
+import com.avalon.proto.service.AvalonRoomServiceGrpc;
+import com.avalon.proto.service.ChangeSeatRequest;
+import com.avalon.proto.service.CreateRoomRequest;
+import com.avalon.proto.service.CreateUserRequest;
+import com.avalon.proto.service.JoinRoomRequest;
+import com.avalon.proto.service.RoomUpdate;
+import com.avalon.proto.service.StartGameRequest;
+import com.avalon.proto.service.User;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PlayStreamTest {
+  private static final Character[] CHARACTERS = {
+    Character.MERLIN,
+    Character.ASSASSIN,
+    Character.PERCIVAL,
+    Character.MORGANA,
+    Character.ARTHUR_SERVANT,
+  };
+
+  private Server server;
+  private ManagedChannel channel;
+  private AvalonRoomServiceGrpc.AvalonRoomServiceBlockingStub roomStub;
+  private AvalonGameServiceGrpc.AvalonGameServiceStub gameStub;
+
+  @Before
+  public void setUp() throws IOException {
+    AppComponent appComponent = DaggerAppComponent.create();
+    String name = InProcessServerBuilder.generateName();
+    server =
+        InProcessServerBuilder.forName(name)
+            .addService(appComponent.avalonRoomService().bindEncodedService())
+            .addService(appComponent.avalonGameService().bindEncodedService())
+            .build()
+            .start();
+    channel = InProcessChannelBuilder.forName(name).build();
+    roomStub = AvalonRoomServiceGrpc.newBlockingStub(channel);
+    gameStub = AvalonGameServiceGrpc.newStub(channel);
+  }
+
+  @After
+  public void tearDown() {
+    channel.shutdownNow();
+    server.shutdownNow();
+  }
+
+  @Test
+  public void play_acksAnActionBeforeBindingAndCompletes() throws InterruptedException {
+    PlayClient client = new PlayClient();
+    client.send(
+        PlayRequest.newBuilder().setId(1).setVoteForPlayer(VoteForPlayerRequest.Voting.AGREE));
+
+    PlayResponse.Ack ack = client.nextAck();
+    assertEquals(1, ack.getId());
+    assertEquals("Stream not bound", ack.getResponseError().getError());
+    assertNotNull(client.responses.poll(5, TimeUnit.SECONDS));
+    assertTrue(client.completed);
+  }
+
+  @Test
+  public void play_acksEveryActionInOrder() throws InterruptedException {
+    Auth[] players = new Auth[CHARACTERS.length];
+    for (int i = 0; i < players.length; i++) {
+      players[i] =
+          roomStub
+              .createUser(
+                  CreateUserRequest.newBuilder()
+                      .setUser(User.newBuilder().setUsername("player-" + i))
+                      .build())
+              .getAuth();
+    }
+    int gameId = startGame(players);
+
+    PlayClient client = new PlayClient();
+    client.send(
+        PlayRequest.newBuilder()
+            .setId(1)
+            .setPoll(PollRequest.newBuilder().setAuth(players[0]).setGameId(gameId)));
+    client.send(PlayRequest.newBuilder().setId(2));
+    client.send(
+        PlayRequest.newBuilder().setId(3).setVoteForPlayer(VoteForPlayerRequest.Voting.AGREE));
+    client.send(PlayRequest.newBuilder().setId(4).setLadyTest(players.length));
+    client.send(
+        PlayRequest.newBuilder()
+            .setId(5)
+            .setProposal(Proposal.newBuilder().setFromWhom(1).addPlayers(0).addPlayers(1)));
+
+    assertEquals("", client.nextAck(1).getResponseError().getError());
+    assertEquals("Unsupported action", client.nextAck(2).getResponseError().getError());
+    assertEquals("No team to vote on", client.nextAck(3).getResponseError().getError());
+    assertFalse(client.nextAck(4).getResponseError().getError().isEmpty());
+    // Either the proposal of the leader, or ignored as coming from another seat, but acked.
+    client.nextAck(5);
+    assertFalse(client.completed);
+  }
+
+  private int startGame(Auth[] players) {
+    Room.Builder room = Room.newBuilder().setRoomName("play-stream-test").setMaximumRound(5);
+    for (Character character : CHARACTERS) {
+      room.addCharacter(character);
+    }
+    roomStub.createRoom(CreateRoomRequest.newBuilder().setAuth(players[0]).setRoom(room).build());
+
+    Iterator<RoomUpdate> roomUpdates = null;
+    for (int i = 0; i < players.length; i++) {
+      Iterator<RoomUpdate> updates =
+          roomStub.joinRoom(
+              JoinRoomRequest.newBuilder()
+                  .setAuth(players[i])
+                  .setRoomName(room.getRoomName())
+                  .build());
+      if (i == 0) {
+        roomUpdates = updates;
+      }
+      assertEquals(
+          "",
+          roomStub
+              .changeSeat(
+                  ChangeSeatRequest.newBuilder()
+                      .setAuth(players[i])
+                      .setRoomName(room.getRoomName())
+                      .setSeat(i)
+                      .build())
+              .getError());
+    }
+    assertEquals(
+        "",
+        roomStub
+            .startGame(
+                StartGameRequest.newBuilder()
+                    .setAuth(players[0])
+                    .setRoomName(room.getRoomName())
+                    .build())
+            .getError());
+
+    while (true) {
+      RoomUpdate roomUpdate = roomUpdates.next();
+      if (roomUpdate.hasGameStartUpdate()) {
+        return roomUpdate.getGameStartUpdate().getGame();
+      }
+    }
+  }
+
+  /** Client side of a Play call, queueing what the server sends. */
+  private final class PlayClient implements StreamObserver<PlayResponse> {
+    final BlockingQueue<PlayResponse> responses = new LinkedBlockingQueue<>();
+    final StreamObserver<PlayRequest> requests = gameStub.play(this);
+    volatile boolean completed;
+
+    void send(PlayRequest.Builder request) {
+      requests.onNext(request.build());
+    }
+
+    /** Returns the next ack, skipping the game's updates. */
+    PlayResponse.Ack nextAck() throws InterruptedException {
+      while (true) {
+        PlayResponse response = responses.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No ack", response);
+        if (response.hasAck()) {
+          return response.getAck();
+        }
+      }
+    }
+
+    PlayResponse.Ack nextAck(int id) throws InterruptedException {
+      PlayResponse.Ack ack = nextAck();
+      assertEquals(id, ack.getId());
+      return ack;
+    }
+
+    @Override
+    public void onNext(PlayResponse response) {
+      responses.add(response);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      responses.add(PlayResponse.getDefaultInstance());
+    }
+
+    @Override
+    public void onCompleted() {
+      completed = true;
+      responses.add(PlayResponse.getDefaultInstance());
+    }
+  }
+}
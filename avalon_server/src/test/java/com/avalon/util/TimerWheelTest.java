@@ -0,0 +1,54 @@
+package com.avalon.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TimerWheelTest {
+  // Few buckets, so some timers wait for more than one turn of the wheel.
+  private final TimerWheel timerWheel = new TimerWheel("test-timer-wheel", 5, 4);
+
+  @Test
+  public void schedule_firesByDeadlineThenInScheduleOrder() throws InterruptedException {
+    List<Integer> fired = Collections.synchronizedList(new ArrayList<>());
+    int[] delays = {300, 50, 150, 0, 150, 100, 50, 300};
+    CountDownLatch latch = new CountDownLatch(delays.length);
+    for (int i = 0; i < delays.length; i++) {
+      int timer = i;
+      timerWheel.schedule(
+          delays[i],
+          TimeUnit.MILLISECONDS,
+          Runnable::run,
+          () -> {
+            fired.add(timer);
+            latch.countDown();
+          });
+    }
+
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList(3, 1, 6, 5, 2, 4, 0, 7), fired);
+    assertEquals(0, timerWheel.size());
+  }
+
+  @Test
+  public void cancel_stopsThePendingTask() throws InterruptedException {
+    CountDownLatch cancelledRan = new CountDownLatch(1);
+    CountDownLatch laterRan = new CountDownLatch(1);
+    TimerWheel.Timeout timeout =
+        timerWheel.schedule(10, TimeUnit.MILLISECONDS, Runnable::run, cancelledRan::countDown);
+    timerWheel.schedule(30, TimeUnit.MILLISECONDS, Runnable::run, laterRan::countDown);
+
+    assertTrue(timeout.cancel());
+    assertFalse(timeout.cancel());
+    assertTrue(laterRan.await(5, TimeUnit.SECONDS));
+    assertEquals(1, cancelledRan.getCount());
+  }
+}